@@ -0,0 +1,545 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc.emulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.vmware.qc.QcConnector;
+import com.vmware.qc.QcTestStatus;
+
+/**
+ * In-process emulator of the QC REST web service used by {@link QcConnector}.
+ * It serves seeded test lab data in the XML format read by QcXmlConfigUtil, so the connector can be
+ * load tested and regression tested without a QC server.
+ *
+ * Emulated services [under any url prefix, Ex : /QCIntgrt/rest/domain/project] :
+ *  GET /test-sets?folderPath=... - test sets of the emulated test set folder [any folder path is accepted].
+ *  GET /test-lab-tree?folderID=... - test sets of the folder and of its sub-folder.
+ *  GET /test-instances?testSetIDs=...&startIndex=... - test instances of test sets, paged by
+ *      {@link QcConnector#TEST_INSTANCES_PAGE_SIZE} [see {@link #setPageSize(int)}]. The total number of
+ *      test instances is returned in the "total" attribute of the root element.
+ *  GET /test-instance/{id}, GET /test-case/{id}
+ *  POST /run - creates a test run and updates the status of its test instance.
+ *  POST /run/{id}/log-attachment - accepts a multipart log file upload.
+ *
+ * GET responses carry an ETag that changes whenever a test run is posted, and If-None-Match is answered with 304.
+ * Latency and 503 failures can be injected into every request.
+ *
+ * The connector is pointed at the emulator by setting qc.server=localhost and qc.port to the emulator port.
+ */
+public class QcEmulator
+{
+   private static final Pattern TEST_INSTANCE_PATH = Pattern.compile(".*/test-instance/(\\d+)/?");
+   private static final Pattern TEST_CASE_PATH = Pattern.compile(".*/test-case/(\\d+)/?");
+   private static final Pattern LOG_ATTACHMENT_PATH = Pattern.compile(".*/run/(\\d+)/log-attachment/?");
+   private static final Pattern FILE_NAME = Pattern.compile("filename=\"([^\"]*)\"");
+   private static final long FOLDER_ID = 1000;
+   private static final long SUB_FOLDER_ID = 1001;
+   private static final long FIRST_TEST_SET_ID = 2000;
+   private static final long FIRST_TEST_INSTANCE_ID = 100000;
+   private static final long FIRST_TEST_ID = 500000;
+   private final static Logger log = LoggerFactory.getLogger(QcEmulator.class);
+
+   private final int port;
+   private final int testSetCount;
+   private final int testInstancesPerSet;
+   private volatile int pageSize = QcConnector.TEST_INSTANCES_PAGE_SIZE;
+   private final Map<Long, String> testSets = new HashMap<Long, String>();
+   private final Map<Long, List<Long>> testSetInstances = new LinkedHashMap<Long, List<Long>>();
+   private final ConcurrentMap<Long, EmulatedTestInstance> testInstances = new ConcurrentHashMap<Long, EmulatedTestInstance>();
+   private final AtomicLong nextRunId = new AtomicLong(1);
+   private final AtomicLong dataVersion = new AtomicLong(1);
+   private final AtomicLong requestCount = new AtomicLong();
+   private final AtomicLong runsPosted = new AtomicLong();
+   private final AtomicLong logsUploaded = new AtomicLong();
+   private volatile long minLatency = 0;
+   private volatile long maxLatency = 0;
+   private volatile double failureRate = 0;
+   private int threads = 50;
+   private HttpServer server;
+   private ExecutorService executor;
+
+   private static class EmulatedTestInstance
+   {
+      private final long id;
+      private final String name;
+      private final long testId;
+      private final long testSetId;
+      private volatile QcTestStatus status = QcTestStatus.NOT_COMPLETED;
+
+      EmulatedTestInstance(long id, String name, long testId, long testSetId)
+      {
+         this.id = id;
+         this.name = name;
+         this.testId = testId;
+         this.testSetId = testSetId;
+      }
+   }
+
+   /**
+    * Constructor. Seeds the test lab with the given number of test sets; the first half of them
+    * is in the emulated folder, the rest in its sub-folder.
+    *
+    * @param port port to listen on, 0 for any free port.
+    * @param testSetCount number of test sets.
+    * @param testInstancesPerSet number of test instances in every test set.
+    */
+   public QcEmulator(int port,
+                     int testSetCount,
+                     int testInstancesPerSet)
+   {
+      this.port = port;
+      this.testSetCount = testSetCount;
+      this.testInstancesPerSet = testInstancesPerSet;
+      long testInstanceId = FIRST_TEST_INSTANCE_ID;
+      for (int i = 0; i < testSetCount; i++) {
+         long testSetId = FIRST_TEST_SET_ID + i;
+         testSets.put(testSetId, "TestSet" + i);
+         List<Long> instanceIds = new ArrayList<Long>();
+         for (int j = 0; j < testInstancesPerSet; j++) {
+            String testName = "com.vmware.qc.emulator.Test" + j + ".test";
+            EmulatedTestInstance testInstance = new EmulatedTestInstance(testInstanceId, testName,
+                     FIRST_TEST_ID + j, testSetId);
+            testInstances.put(testInstanceId, testInstance);
+            instanceIds.add(testInstanceId);
+            testInstanceId++;
+         }
+         testSetInstances.put(testSetId, instanceIds);
+      }
+   }
+
+   /**
+    * Set latency injected into every request. Each request waits a random time between min and max.
+    */
+   public void setLatency(long minLatency, long maxLatency)
+   {
+      this.minLatency = minLatency;
+      this.maxLatency = Math.max(minLatency, maxLatency);
+   }
+
+   /**
+    * Set fraction [0..1] of requests answered with 503 Service Unavailable.
+    */
+   public void setFailureRate(double failureRate)
+   {
+      this.failureRate = failureRate;
+   }
+
+   /**
+    * Set maximum number of test instances returned in a page.
+    */
+   public void setPageSize(int pageSize)
+   {
+      this.pageSize = pageSize;
+   }
+
+   /**
+    * Set number of threads serving requests. It must be set before the emulator is started.
+    */
+   public void setThreads(int threads)
+   {
+      this.threads = threads;
+   }
+
+   /**
+    * Starts serving requests.
+    */
+   public synchronized void start() throws IOException
+   {
+      server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+      executor = Executors.newFixedThreadPool(threads);
+      server.setExecutor(executor);
+      server.createContext("/", new HttpHandler() {
+         public void handle(HttpExchange exchange) throws IOException
+         {
+            QcEmulator.this.handle(exchange);
+         }
+      });
+      server.start();
+      log.info("QC emulator started on port " + getPort() + " with " + testSetCount + " test sets of "
+               + testInstancesPerSet + " test instances");
+   }
+
+   /**
+    * Stops serving requests.
+    */
+   public synchronized void stop()
+   {
+      if (server != null) {
+         server.stop(0);
+         executor.shutdownNow();
+         server = null;
+         log.info("QC emulator stopped after " + requestCount.get() + " requests");
+      }
+   }
+
+   /**
+    * Return port the emulator listens on.
+    */
+   public int getPort()
+   {
+      return (server != null ? server.getAddress().getPort() : port);
+   }
+
+   /**
+    * Return id of the emulated test set folder.
+    */
+   public long getFolderId()
+   {
+      return FOLDER_ID;
+   }
+
+   /**
+    * Return ids of all emulated test sets.
+    */
+   public List<Long> getTestSetIds()
+   {
+      return new ArrayList<Long>(testSetInstances.keySet());
+   }
+
+   /**
+    * Return ids of all emulated test instances.
+    */
+   public List<Long> getTestInstanceIds()
+   {
+      return new ArrayList<Long>(testInstances.keySet());
+   }
+
+   public long getRequestCount()
+   {
+      return requestCount.get();
+   }
+
+   public long getRunsPosted()
+   {
+      return runsPosted.get();
+   }
+
+   public long getLogsUploaded()
+   {
+      return logsUploaded.get();
+   }
+
+   /**
+    * Dispatches a request to the emulated service.
+    */
+   private void handle(HttpExchange exchange) throws IOException
+   {
+      requestCount.incrementAndGet();
+      try {
+         injectLatency();
+         if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+            drain(exchange.getRequestBody());
+            send(exchange, 503, "<Error>Service Unavailable</Error>", false);
+            return;
+         }
+         String path = exchange.getRequestURI().getPath();
+         Map<String, String> params = parseQuery(exchange.getRequestURI());
+         boolean post = "POST".equals(exchange.getRequestMethod());
+         Matcher matcher;
+         if (post && path.endsWith("/run")) {
+            postRun(exchange);
+         } else if (post && (matcher = LOG_ATTACHMENT_PATH.matcher(path)).matches()) {
+            uploadLog(exchange, Long.parseLong(matcher.group(1)));
+         } else if (post) {
+            send(exchange, 404, "<Error>Unknown service " + path + "</Error>", false);
+         } else if (isNotModified(exchange)) {
+            exchange.getResponseHeaders().set("ETag", getEtag());
+            exchange.sendResponseHeaders(304, -1);
+         } else if (path.endsWith("/test-sets")) {
+            getTestSets(exchange);
+         } else if (path.endsWith("/test-lab-tree")) {
+            getTestSetTree(exchange);
+         } else if (path.endsWith("/test-instances")) {
+            getTestInstances(exchange, params);
+         } else if ((matcher = TEST_INSTANCE_PATH.matcher(path)).matches()) {
+            EmulatedTestInstance testInstance = testInstances.get(Long.parseLong(matcher.group(1)));
+            if (testInstance == null) {
+               send(exchange, 404, "<Error>Test instance not found</Error>", false);
+            } else {
+               StringBuilder xml = new StringBuilder();
+               appendTestInstance(xml, testInstance);
+               send(exchange, 200, xml.toString(), true);
+            }
+         } else if ((matcher = TEST_CASE_PATH.matcher(path)).matches()) {
+            getTestCase(exchange, Long.parseLong(matcher.group(1)));
+         } else {
+            send(exchange, 404, "<Error>Unknown service " + path + "</Error>", false);
+         }
+      } catch (Exception ex) {
+         log.error("QC emulator failed to serve " + exchange.getRequestURI(), ex);
+         send(exchange, 500, "<Error>" + escape(ex.toString()) + "</Error>", false);
+      } finally {
+         exchange.close();
+      }
+   }
+
+   private void getTestSets(HttpExchange exchange) throws IOException
+   {
+      StringBuilder xml = new StringBuilder("<TestSets>");
+      for (int i = 0; i < (testSetCount + 1) / 2; i++) {
+         appendTestSet(xml, FIRST_TEST_SET_ID + i, FOLDER_ID);
+      }
+      xml.append("</TestSets>");
+      send(exchange, 200, xml.toString(), true);
+   }
+
+   private void getTestSetTree(HttpExchange exchange) throws IOException
+   {
+      StringBuilder xml = new StringBuilder("<TestSetFolder>");
+      xml.append("<ID>").append(FOLDER_ID).append("</ID><name>Emulator</name><testSets>");
+      for (int i = 0; i < (testSetCount + 1) / 2; i++) {
+         appendTestSet(xml, FIRST_TEST_SET_ID + i, FOLDER_ID);
+      }
+      xml.append("</testSets><subFolders><TestSetFolder>");
+      xml.append("<ID>").append(SUB_FOLDER_ID).append("</ID><name>SubFolder</name><testSets>");
+      for (int i = (testSetCount + 1) / 2; i < testSetCount; i++) {
+         appendTestSet(xml, FIRST_TEST_SET_ID + i, SUB_FOLDER_ID);
+      }
+      xml.append("</testSets></TestSetFolder></subFolders></TestSetFolder>");
+      send(exchange, 200, xml.toString(), true);
+   }
+
+   private void getTestInstances(HttpExchange exchange,
+                                 Map<String, String> params)
+                                 throws IOException
+   {
+      List<Long> instanceIds = new ArrayList<Long>();
+      String testSetIds = params.get("testSetIDs");
+      if (testSetIds != null) {
+         for (String testSetId : testSetIds.split(",")) {
+            List<Long> ids = testSetInstances.get(Long.parseLong(testSetId.trim()));
+            if (ids != null) {
+               instanceIds.addAll(ids);
+            }
+         }
+      }
+      int startIndex = (params.get("startIndex") != null ? Integer.parseInt(params.get("startIndex")) : 1);
+      int from = Math.max(0, startIndex - 1);
+      if (from >= instanceIds.size()) {
+         send(exchange, 404, "<Error>No test instances found</Error>", false);
+         return;
+      }
+      int to = Math.min(instanceIds.size(), from + pageSize);
+      StringBuilder xml = new StringBuilder("<TestInstances total=\"").append(instanceIds.size()).append("\">");
+      for (Long instanceId : instanceIds.subList(from, to)) {
+         appendTestInstance(xml, testInstances.get(instanceId));
+      }
+      xml.append("</TestInstances>");
+      send(exchange, 200, xml.toString(), true);
+   }
+
+   private void getTestCase(HttpExchange exchange,
+                            long testId)
+                            throws IOException
+   {
+      if (testId < FIRST_TEST_ID || testId >= FIRST_TEST_ID + testInstancesPerSet) {
+         send(exchange, 404, "<Error>Test case not found</Error>", false);
+         return;
+      }
+      StringBuilder xml = new StringBuilder("<TestCase>");
+      xml.append("<ID>").append(testId).append("</ID>");
+      xml.append("<name>com.vmware.qc.emulator.Test").append(testId - FIRST_TEST_ID).append(".test</name>");
+      xml.append("<product>Emulator</product><funcArea>Connector</funcArea><component>REST</component>");
+      xml.append("<autoLevel>Automated</autoLevel><priority>P1</priority></TestCase>");
+      send(exchange, 200, xml.toString(), true);
+   }
+
+   private void postRun(HttpExchange exchange) throws IOException
+   {
+      Map<String, String> form = parseForm(new String(exchange.getRequestBody().readAllBytes(),
+               StandardCharsets.UTF_8));
+      EmulatedTestInstance testInstance = null;
+      if (form.get("testInstanceID") != null) {
+         testInstance = testInstances.get(Long.parseLong(form.get("testInstanceID")));
+      }
+      QcTestStatus status = (form.get("status") != null ? QcTestStatus.fromValue(form.get("status")) : null);
+      if (testInstance == null || status == null) {
+         send(exchange, 400, "<Error>Invalid test instance or status</Error>", false);
+         return;
+      }
+      testInstance.status = status;
+      dataVersion.incrementAndGet();
+      runsPosted.incrementAndGet();
+      long runId = nextRunId.getAndIncrement();
+      StringBuilder xml = new StringBuilder("<TestRun>");
+      xml.append("<ID>").append(runId).append("</ID>");
+      xml.append("<name>Run_").append(runId).append("</name>");
+      xml.append("<testInstanceID>").append(testInstance.id).append("</testInstanceID>");
+      xml.append("<testID>").append(testInstance.testId).append("</testID>");
+      xml.append("<status>").append(status).append("</status>");
+      xml.append("<logsLocation>/logs/run/").append(runId).append("</logsLocation>");
+      if (form.get("build") != null) {
+         xml.append("<build>").append(escape(form.get("build"))).append("</build>");
+      }
+      if (form.get("tester") != null) {
+         xml.append("<tester>").append(escape(form.get("tester"))).append("</tester>");
+      }
+      xml.append("</TestRun>");
+      send(exchange, 201, xml.toString(), false);
+   }
+
+   private void uploadLog(HttpExchange exchange,
+                          long runId)
+                          throws IOException
+   {
+      InputStream body = exchange.getRequestBody();
+      byte[] head = new byte[4096];
+      int headLength = 0;
+      int read;
+      while (headLength < head.length && (read = body.read(head, headLength, head.length - headLength)) > 0) {
+         headLength += read;
+      }
+      drain(body);
+      Matcher matcher = FILE_NAME.matcher(new String(head, 0, headLength, StandardCharsets.ISO_8859_1));
+      String fileName = (matcher.find() ? matcher.group(1) : "log.txt");
+      logsUploaded.incrementAndGet();
+      StringBuilder xml = new StringBuilder("<LogFile>");
+      xml.append("<runID>").append(runId).append("</runID>");
+      xml.append("<type>Attachment</type>");
+      xml.append("<name>").append(escape(fileName)).append("</name>");
+      xml.append("<filePath>/logs/run/").append(runId).append("/").append(escape(fileName)).append("</filePath>");
+      xml.append("</LogFile>");
+      send(exchange, 201, xml.toString(), false);
+   }
+
+   private void appendTestSet(StringBuilder xml,
+                              long testSetId,
+                              long folderId)
+   {
+      xml.append("<TestSet><ID>").append(testSetId).append("</ID>");
+      xml.append("<name>").append(escape(testSets.get(testSetId))).append("</name>");
+      xml.append("<parentFolderID>").append(folderId).append("</parentFolderID></TestSet>");
+   }
+
+   private void appendTestInstance(StringBuilder xml,
+                                   EmulatedTestInstance testInstance)
+   {
+      xml.append("<TestInstance><ID>").append(testInstance.id).append("</ID>");
+      xml.append("<name>").append(escape(testInstance.name)).append("</name>");
+      xml.append("<testID>").append(testInstance.testId).append("</testID>");
+      xml.append("<testName>").append(escape(testInstance.name)).append("</testName>");
+      xml.append("<status>").append(testInstance.status).append("</status>");
+      xml.append("<testSetID>").append(testInstance.testSetId).append("</testSetID></TestInstance>");
+   }
+
+   private boolean isNotModified(HttpExchange exchange)
+   {
+      return getEtag().equals(exchange.getRequestHeaders().getFirst("If-None-Match"));
+   }
+
+   private String getEtag()
+   {
+      return "\"v" + dataVersion.get() + "\"";
+   }
+
+   private void injectLatency() throws InterruptedException
+   {
+      long latency = minLatency;
+      if (maxLatency > minLatency) {
+         latency += ThreadLocalRandom.current().nextLong(maxLatency - minLatency + 1);
+      }
+      if (latency > 0) {
+         Thread.sleep(latency);
+      }
+   }
+
+   private void send(HttpExchange exchange,
+                     int statusCode,
+                     String xml,
+                     boolean cacheable)
+                     throws IOException
+   {
+      byte[] body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "application/xml");
+      if (cacheable) {
+         exchange.getResponseHeaders().set("ETag", getEtag());
+      }
+      exchange.sendResponseHeaders(statusCode, body.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(body);
+      out.close();
+   }
+
+   private static Map<String, String> parseQuery(URI uri)
+   {
+      return parseForm(uri.getRawQuery());
+   }
+
+   private static Map<String, String> parseForm(String form)
+   {
+      Map<String, String> params = new HashMap<String, String>();
+      if (form != null) {
+         for (String pair : form.split("&")) {
+            int index = pair.indexOf('=');
+            if (index > 0) {
+               params.put(URLDecoder.decode(pair.substring(0, index), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(index + 1), StandardCharsets.UTF_8));
+            }
+         }
+      }
+      return params;
+   }
+
+   private static void drain(InputStream in) throws IOException
+   {
+      byte[] buffer = new byte[8192];
+      while (in.read(buffer) >= 0) {
+         //discard request data.
+      }
+   }
+
+   private static String escape(String text)
+   {
+      return StringEscapeUtils.escapeXml(text);
+   }
+
+   /**
+    * Starts an emulator from the command line.
+    *
+    * Usage : QcEmulator [port] [testSets] [testInstancesPerSet] [minLatency] [maxLatency] [failureRate]
+    */
+   public static void main(String[] args) throws Exception
+   {
+      int port = (args.length > 0 ? Integer.parseInt(args[0]) : 8080);
+      int testSetCount = (args.length > 1 ? Integer.parseInt(args[1]) : 10);
+      int testInstancesPerSet = (args.length > 2 ? Integer.parseInt(args[2]) : 100);
+      QcEmulator emulator = new QcEmulator(port, testSetCount, testInstancesPerSet);
+      if (args.length > 3) {
+         emulator.setLatency(Long.parseLong(args[3]), args.length > 4 ? Long.parseLong(args[4])
+                  : Long.parseLong(args[3]));
+      }
+      if (args.length > 5) {
+         emulator.setFailureRate(Double.parseDouble(args[5]));
+      }
+      emulator.start();
+   }
+}
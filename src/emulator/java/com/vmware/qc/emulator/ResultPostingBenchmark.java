@@ -0,0 +1,217 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc.emulator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vmware.qc.PostResult2Qc;
+import com.vmware.qc.PostStatistics;
+import com.vmware.qc.QcTestStatus;
+import com.vmware.qc.TestRunInfo;
+
+/**
+ * Compares the threads a PostResult2Qc pipeline posts test results on [qc.post.threads] :
+ *  platform - a pool of qc.post.workers platform threads.
+ *  virtual - a virtual thread per result, at most qc.post.workers posted at a time [Java 21 or later].
+ * All results are added to a pipeline at once and posted to a QcEmulator. The concurrency limit and
+ * the http pool are pinned to [workers], so both modes post the same number of results at a time.
+ * Every mode and number of results runs in its own JVM, as QcConstants are read once per JVM; the
+ * emulator runs in the launching JVM, so its threads and heap are not counted. For every run, it
+ * reports the throughput, the peak number of platform threads and the peak heap used.
+ *
+ * Usage : ResultPostingBenchmark [workers] [latency] [results...]
+ * Defaults : 16 workers, 20 ms latency, 1000 10000 100000 results.
+ */
+public class ResultPostingBenchmark
+{
+   private static final int PORT = 18089;
+   private static final int WARMUP_RESULTS = 1000;
+   private static final String RESULT_PREFIX = "benchmark :";
+
+   public static void main(String[] args) throws Exception
+   {
+      int workers = (args.length > 0 ? Integer.parseInt(args[0]) : 16);
+      long latency = (args.length > 1 ? Long.parseLong(args[1]) : 20);
+      if (System.getProperty("benchmark.mode") != null) {
+         //child JVM, args : workers latency results.
+         runPipeline(System.getProperty("benchmark.mode"), Integer.parseInt(args[2]));
+         return;
+      }
+      int[] resultCounts = new int[] { 1000, 10000, 100000 };
+      if (args.length > 2) {
+         resultCounts = new int[args.length - 2];
+         for (int i = 2; i < args.length; i++) {
+            resultCounts[i - 2] = Integer.parseInt(args[i]);
+         }
+      }
+      QcEmulator emulator = new QcEmulator(PORT, 1, 1000);
+      emulator.setLatency(latency, latency);
+      emulator.setThreads(workers * 2);
+      emulator.start();
+      File spoolDir = Files.createTempDirectory("qc-benchmark-spool").toFile();
+      try {
+         StringBuilder testInstanceIds = new StringBuilder();
+         for (Long testInstanceId : emulator.getTestInstanceIds()) {
+            testInstanceIds.append(testInstanceIds.length() > 0 ? "," : "").append(testInstanceId);
+         }
+         System.out.println("Java " + System.getProperty("java.version") + ", " + workers + " workers, "
+                  + latency + " ms latency");
+         for (int resultCount : resultCounts) {
+            for (String mode : new String[] { "platform", "virtual" }) {
+               launch(mode, workers, latency, resultCount, testInstanceIds.toString(), spoolDir);
+            }
+         }
+      } finally {
+         emulator.stop();
+         for (File file : spoolDir.listFiles()) {
+            file.delete();
+         }
+         spoolDir.delete();
+      }
+   }
+
+   /**
+    * Runs one mode and number of results in a new JVM and prints its result line.
+    */
+   private static void launch(String mode,
+                              int workers,
+                              long latency,
+                              int resultCount,
+                              String testInstanceIds,
+                              File spoolDir) throws Exception
+   {
+      List<String> command = new ArrayList<String>();
+      command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+      command.add("-cp");
+      command.add(System.getProperty("java.class.path"));
+      //connector settings given on the command line [Ex : -Dqc.domain.name] are passed on.
+      for (String key : System.getProperties().stringPropertyNames()) {
+         if (key.startsWith("qc.")) {
+            command.add("-D" + key + "=" + System.getProperty(key));
+         }
+      }
+      command.add("-Dqc.server=localhost");
+      command.add("-Dqc.port=" + PORT);
+      command.add("-Dqc.domain.name=" + System.getProperty("qc.domain.name", "benchmark"));
+      command.add("-Dqc.project.name=" + System.getProperty("qc.project.name", "benchmark"));
+      command.add("-Dqc.cache.enable=false");
+      command.add("-Dqc.overwrite.pass.status=true");
+      command.add("-Dqc.ratelimit.run.post.rate=1000000");
+      command.add("-Dqc.ratelimit.run.post.burst=1000000");
+      command.add("-Dqc.concurrency.initial=" + workers);
+      command.add("-Dqc.concurrency.min=" + workers);
+      command.add("-Dqc.concurrency.max=" + workers);
+      command.add("-Dqc.http.pool.size=" + workers);
+      command.add("-Dqc.post.workers=" + workers);
+      command.add("-Dqc.post.threads=" + mode);
+      command.add("-Dqc.spool.dir=" + spoolDir.getPath());
+      command.add("-Dbenchmark.mode=" + mode);
+      command.add("-Dbenchmark.testInstanceIds=" + testInstanceIds);
+      command.add(ResultPostingBenchmark.class.getName());
+      command.add(String.valueOf(workers));
+      command.add(String.valueOf(latency));
+      command.add(String.valueOf(resultCount));
+      Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+      BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+      String line;
+      String result = null;
+      while ((line = reader.readLine()) != null) {
+         //connector logging is dropped.
+         if (line.startsWith(RESULT_PREFIX)) {
+            result = line.substring(RESULT_PREFIX.length());
+         }
+      }
+      int exitCode = process.waitFor();
+      System.out.println(result != null ? result : String.format("%-8s %7d results : benchmark JVM exited with %d",
+               mode, resultCount, exitCode));
+   }
+
+   /**
+    * Posts the results through a PostResult2Qc pipeline [child JVM].
+    */
+   private static void runPipeline(String mode,
+                                   int resultCount) throws Exception
+   {
+      String[] testInstanceIds = System.getProperty("benchmark.testInstanceIds").split(",");
+      PostResult2Qc pipeline = new PostResult2Qc("benchmark");
+      pipeline.start();
+      //warms up the JIT and the connections.
+      addResults(pipeline, testInstanceIds, WARMUP_RESULTS);
+      pipeline.awaitIdle(Long.MAX_VALUE);
+      PostStatistics statistics = pipeline.getStatistics();
+      long postedBefore = statistics.getPosted();
+      ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+      MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+      System.gc();
+      threadBean.resetPeakThreadCount();
+      final AtomicLong peakHeap = new AtomicLong(memoryBean.getHeapMemoryUsage().getUsed());
+      Thread heapSampler = startHeapSampler(memoryBean, peakHeap);
+      long start = System.nanoTime();
+      addResults(pipeline, testInstanceIds, resultCount);
+      pipeline.awaitIdle(Long.MAX_VALUE);
+      long elapsed = System.nanoTime() - start;
+      heapSampler.interrupt();
+      long posted = statistics.getPosted() - postedBefore;
+      pipeline.stop();
+      String threads = ("virtual".equals(mode) && !isVirtualThreadSupported()
+               ? "virtual threads are not supported, platform threads used" : "");
+      System.out.println(RESULT_PREFIX + String.format("%-8s %7d results %9.0f results/s %7d peak threads %8.1f MB peak heap %d failed %s",
+               mode, resultCount, resultCount / (elapsed / 1e9), threadBean.getPeakThreadCount(),
+               peakHeap.get() / 1048576.0, resultCount - posted, threads));
+   }
+
+   private static void addResults(PostResult2Qc pipeline,
+                                  String[] testInstanceIds,
+                                  int resultCount)
+   {
+      for (int i = 0; i < resultCount; i++) {
+         TestRunInfo testRunInfo = new TestRunInfo();
+         testRunInfo.setTestInstanceId(Long.parseLong(testInstanceIds[i % testInstanceIds.length]));
+         testRunInfo.setName("Run_" + i);
+         testRunInfo.setStatus(QcTestStatus.PASSED);
+         pipeline.addToQueue(testRunInfo);
+      }
+   }
+
+   private static boolean isVirtualThreadSupported()
+   {
+      try {
+         Thread.class.getMethod("ofVirtual");
+         return true;
+      } catch (NoSuchMethodException nsme) {
+         return false;
+      }
+   }
+
+   private static Thread startHeapSampler(final MemoryMXBean memoryBean,
+                                          final AtomicLong peakHeap)
+   {
+      Thread sampler = new Thread("HeapSampler") {
+         public void run()
+         {
+            while (!isInterrupted()) {
+               peakHeap.accumulateAndGet(memoryBean.getHeapMemoryUsage().getUsed(), Math::max);
+               try {
+                  Thread.sleep(10);
+               } catch (InterruptedException ie) {
+                  break;
+               }
+            }
+         }
+      };
+      sampler.setDaemon(true);
+      sampler.start();
+      return sampler;
+   }
+}
@@ -0,0 +1,112 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc.emulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+
+import org.apache.commons.configuration.XMLConfiguration;
+
+import com.vmware.qc.QcConnector;
+import com.vmware.qc.QcXmlConfigUtil;
+import com.vmware.qc.QcXmlStreamParser;
+import com.vmware.qc.TestInstanceInfo;
+
+/**
+ * Compares parsing a page of test instances into an XMLConfiguration DOM [QcXmlConfigUtil]
+ * with streaming it through StAX [QcXmlStreamParser].
+ * The page is served once by a QcEmulator and then parsed from memory, so only parsing is measured.
+ *
+ * Usage : XmlParserBenchmark [iterations]
+ */
+public class XmlParserBenchmark
+{
+   private interface Parser
+   {
+      List<TestInstanceInfo> parse(byte[] page) throws Exception;
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      int iterations = (args.length > 0 ? Integer.parseInt(args[0]) : 2000);
+      QcEmulator emulator = new QcEmulator(0, 1, QcConnector.TEST_INSTANCES_PAGE_SIZE);
+      emulator.start();
+      byte[] page;
+      try {
+         page = fetch("http://localhost:" + emulator.getPort() + "/qcbin/test-instances?testSetIDs="
+                  + emulator.getTestSetIds().get(0) + "&startIndex=1");
+      } finally {
+         emulator.stop();
+      }
+      System.out.println("Page size :" + page.length + " bytes, "
+               + QcConnector.TEST_INSTANCES_PAGE_SIZE + " test instances");
+
+      Parser dom = new Parser() {
+         public List<TestInstanceInfo> parse(byte[] page) throws Exception
+         {
+            XMLConfiguration config = new XMLConfiguration();
+            config.load(new ByteArrayInputStream(page));
+            return QcXmlConfigUtil.getTestInstances(config);
+         }
+      };
+      Parser stax = new Parser() {
+         public List<TestInstanceInfo> parse(byte[] page) throws Exception
+         {
+            return QcXmlStreamParser.getTestInstances(new ByteArrayInputStream(page));
+         }
+      };
+      //first round warms up the JIT, second round is reported.
+      for (int round = 0; round < 2; round++) {
+         run("XMLConfiguration", dom, page, iterations, round == 1);
+         run("StAX", stax, page, iterations, round == 1);
+      }
+   }
+
+   private static void run(String name,
+                           Parser parser,
+                           byte[] page,
+                           int iterations,
+                           boolean report) throws Exception
+   {
+      com.sun.management.ThreadMXBean threadBean =
+               (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      long threadId = Thread.currentThread().getId();
+      long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+      long start = System.nanoTime();
+      int parsed = 0;
+      for (int i = 0; i < iterations; i++) {
+         parsed += parser.parse(page).size();
+      }
+      long elapsed = System.nanoTime() - start;
+      long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+      if (report) {
+         System.out.println(String.format("%-16s %8.3f ms/op %12d bytes/op [%d test instances parsed]",
+                  name, elapsed / 1e6 / iterations, allocated / iterations, parsed));
+      }
+   }
+
+   private static byte[] fetch(String url) throws Exception
+   {
+      HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+      InputStream in = connection.getInputStream();
+      try {
+         ByteArrayOutputStream out = new ByteArrayOutputStream();
+         byte[] buffer = new byte[8192];
+         int read;
+         while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+         }
+         return out.toByteArray();
+      } finally {
+         in.close();
+         connection.disconnect();
+      }
+   }
+}
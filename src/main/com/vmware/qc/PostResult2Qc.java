@@ -5,42 +5,205 @@
  */
 package com.vmware.qc;
 
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.vmware.qc.exception.DeadlineExceeded;
+import com.vmware.qc.exception.QcUnavailable;
+import com.vmware.qc.http.AdaptiveConcurrencyLimit;
+import com.vmware.qc.http.CircuitBreaker;
+import com.vmware.qc.http.RetryPolicy;
+
 /**
- * This class maintains a queue through which test results are added.
- * It spawns a separate thread to monitor the queue to receive the test results and post them into QC.
- * It is a singleton class.
+ * This class maintains a bounded queue through which test results are added.
+ * It spawns a separate thread to monitor the queue to receive the test results and hands them to a
+ * fixed pool of qc.post.workers threads that post them into QC. When the queue is full, adding a
+ * result blocks, blocks for at most qc.post.queue.timeout milliseconds and then spools the result,
+ * or spools it at once, as selected by qc.post.queue.policy [see {@link BackpressurePolicy}].
+ * With qc.post.threads=virtual every result is posted on its own virtual thread instead, and a
+ * semaphore of qc.post.workers permits bounds the number of results posted at a time.
+ * While QC is unavailable [the circuit breaker is not closed], results are written to a durable
+ * local spool instead; a spool drainer thread feeds them back into the queue once QC recovers.
+ * The number of results posted concurrently follows an {@link AdaptiveConcurrencyLimit}, so it
+ * converges to what QC can currently absorb.
+ * Once stopped, the queue is closed [results added afterwards are rejected, callers waiting for
+ * room in queue spool their result] and queued results are posted until the job deadline
+ * [qc.job.timeout after the stop, unless set explicitly]; results that cannot be posted before it
+ * are spooled and requests still running at the deadline are cancelled.
+ *
+ * Every instance is an independent pipeline with its own queue, workers and statistics, so several
+ * suites or bulk uploads can post results side by side in one JVM. A pipeline can be started again
+ * after it is stopped; {@link #getInstance()} returns a shared default pipeline.
+ * Every pipeline spools into its own directory [see {@link #getResultSpool()}], so it only drains
+ * results it spooled itself.
+ *
+ * Adding a result returns a future of its {@link TestRunOutcome}, completed once the result is
+ * posted, skipped, spooled or failed. Counters of all outcomes are kept in {@link PostStatistics},
+ * which can be read while the pipeline is running.
+ *
+ * Optionally results for the same test instance are coalesced before they are posted, so that
+ * reruns and retried tests create one run in QC instead of one per result [see {@link CoalescePolicy}].
  */
 public class PostResult2Qc
 {
-   private final BlockingQueue<TestRunInfo> queue;
-   private final PostResult2QcThreadExecutor postResult2QcThreadExecutor;
-   private static PostResult2Qc postResult2Qc = new PostResult2Qc();
+   private static final AtomicInteger pipelineCount = new AtomicInteger();
+   private static final String DEFAULT_PIPELINE = "default";
+   //milliseconds a caller waiting for room in queue sleeps before checking whether the queue is closed.
+   private static final long QUEUE_CLOSE_CHECK_INTERVAL = 100;
+   private final String name;
+   private final BlockingQueue<QueuedRun> queue;
+   //closed by stop(), so that no result is queued after the last one is taken. Guarded by queueLock,
+   //volatile for callers waiting for room in queue.
+   private final Object queueLock = new Object();
+   private volatile boolean queueClosed = false;
+   //callers of addToQueue that passed the closed check and have not returned yet.
+   private int queueWriters = 0;
+   private volatile PostResult2QcThreadExecutor postResult2QcThreadExecutor;
+   private SpoolDrainer spoolDrainer;
+   private Thread shutdownHook;
+   private final ResultSpool resultSpool;
+   private final PostStatistics statistics = new PostStatistics();
+   //latest qc.post.outcomes.retained outcomes of posted and failed results, for getTestRunsPostedStatus.
+   //Guarded by itself.
+   private final ArrayDeque<TestRunOutcome> postOutcomes = new ArrayDeque<TestRunOutcome>();
+   //results queued or being posted, awaitIdle waits on its monitor.
+   private final AtomicInteger pending = new AtomicInteger();
+   private final CircuitBreaker circuitBreaker = CircuitBreaker.getDefault();
+   //at most one result per worker is in flight, so dispatched results never wait for a worker.
+   private final AdaptiveConcurrencyLimit concurrencyLimit = AdaptiveConcurrencyLimit.newDefault(QcConstants.QC_POST_WORKERS);
+   private final BackpressurePolicy backpressurePolicy;
+   private final CoalescePolicy coalescePolicy;
+   private volatile long jobDeadline = 0;
    private final static Logger log = LoggerFactory.getLogger(PostResult2Qc.class);
+   private static PostResult2Qc postResult2Qc = new PostResult2Qc(DEFAULT_PIPELINE);
+
+   /**
+    * What adding a test run result to a full queue does.
+    */
+   public enum BackpressurePolicy {
+      /** Waits until the queue has room. */
+      BLOCK,
+      /** Waits at most qc.post.queue.timeout milliseconds, then spools the result. */
+      TIMEOUT,
+      /** Spools the result without waiting. */
+      SPILL;
+
+      /**
+       * Converts a policy name [Ex : block] into enum constant. Unknown names are BLOCK.
+       */
+      public static BackpressurePolicy parse(String policy)
+      {
+         for (BackpressurePolicy value : values()) {
+            if (value.name().equalsIgnoreCase(policy == null ? null : policy.trim())) {
+               return value;
+            }
+         }
+         log.warn("Unknown queue policy " + policy + ", using " + BLOCK);
+         return BLOCK;
+      }
+   }
 
    /**
-    * Private constructor.
+    * Which of the queued test run results for the same test instance is posted.
     */
-   private PostResult2Qc()
+   public enum CoalescePolicy {
+      /** Every result is posted. */
+      OFF,
+      /** The result queued last is posted. */
+      LATEST,
+      /** The result with the worst status is posted [Failed, Not Completed, Passed], the latest of equal ones. */
+      WORST;
+
+      /**
+       * Converts a policy name [Ex : latest] into enum constant. Unknown names are OFF.
+       */
+      public static CoalescePolicy parse(String policy)
+      {
+         for (CoalescePolicy value : values()) {
+            if (value.name().equalsIgnoreCase(policy == null ? null : policy.trim())) {
+               return value;
+            }
+         }
+         log.warn("Unknown coalesce policy " + policy + ", using " + OFF);
+         return OFF;
+      }
+
+      /**
+       * Checks whether a result supersedes a result for the same test instance queued before it.
+       */
+      private boolean supersedes(TestRunInfo later,
+                                 TestRunInfo earlier)
+      {
+         return this == LATEST || severity(later.getStatus()) >= severity(earlier.getStatus());
+      }
+
+      private static int severity(QcTestStatus status)
+      {
+         if (status == null || status == QcTestStatus.PASSED) {
+            return 0;
+         }
+         return (status == QcTestStatus.NOT_COMPLETED ? 1 : 2);
+      }
+   }
+
+   /**
+    * Constructor. Creates a pipeline named pipeline-N.
+    */
+   public PostResult2Qc()
    {
-      queue = new LinkedBlockingQueue<TestRunInfo>();
-      postResult2QcThreadExecutor = this.new PostResult2QcThreadExecutor(queue);
+      this(null);
+   }
+
+   /**
+    * Constructor.
+    *
+    * @param name pipeline name, used in the names of its threads and of its spool directory.
+    *          Results a pipeline leaves spooled are posted by the pipeline of the same name
+    *          started later [Ex : in the next JVM], so long lived pipelines should have a fixed name.
+    *          Pipelines running at the same time must have different names.
+    */
+   public PostResult2Qc(String name)
+   {
+      this.name = (name != null ? name : "pipeline-" + pipelineCount.incrementAndGet());
+      queue = new LinkedBlockingQueue<QueuedRun>(QcConstants.QC_POST_QUEUE_CAPACITY);
+      backpressurePolicy = BackpressurePolicy.parse(QcConstants.QC_POST_QUEUE_POLICY);
+      coalescePolicy = CoalescePolicy.parse(QcConstants.QC_POST_COALESCE);
+      resultSpool = new ResultSpool(getSpoolDir(this.name));
+   }
+
+   /**
+    * Return spool directory of a pipeline : qc.spool.dir for the default pipeline [which therefore
+    * also posts results spooled before pipelines had their own spools], else a sub directory of
+    * qc.spool.dir named after the pipeline.
+    */
+   private static File getSpoolDir(String name)
+   {
+      File spoolDir = new File(QcConstants.QC_SPOOL_DIR);
+      if (DEFAULT_PIPELINE.equals(name)) {
+         return spoolDir;
+      }
+      return new File(spoolDir, name.replaceAll("[^A-Za-z0-9._-]", "_"));
    }
 
    /**
-    * Returns a singleton instance of this class.
+    * Returns the shared default pipeline.
     */
    public static PostResult2Qc getInstance()
    {
@@ -48,115 +211,649 @@ public class PostResult2Qc
    }
 
    /**
-    * Starts PostResult2Qc thread executor.
+    * Starts PostResult2Qc thread executor. Posted statuses and statistics of a previous run are cleared.
+    * Starting a running pipeline has no effect.
     */
-   public void start()
+   public synchronized void start()
    {
-      log.info("Starting PostResult2Qc thread executor .....");
+      if (isRunning()) {
+         log.warn("PostResult2Qc " + name + " is already running");
+         return;
+      }
+      log.info("Starting PostResult2Qc thread executor " + name + " .....");
+      if (jobDeadline > 0 && isJobDeadlineExceeded()) {
+         //deadline of the previous run.
+         jobDeadline = 0;
+      }
+      synchronized (postOutcomes) {
+         postOutcomes.clear();
+      }
+      statistics.reset();
+      synchronized (queueLock) {
+         queueClosed = false;
+      }
+      postResult2QcThreadExecutor = this.new PostResult2QcThreadExecutor(queue);
+      spoolDrainer = this.new SpoolDrainer();
       postResult2QcThreadExecutor.start();
+      spoolDrainer.start();
       //Add ShutdownHook which is invoked when application is shut down, either normally or abnormally.
-      Runtime.getRuntime().addShutdownHook(new Thread() {
+      shutdownHook = new Thread("PostResult2QcShutdown-" + name) {
          public void run()
          {
             //Stop PostResult2Qc thread gracefully.
-            if (postResult2QcThreadExecutor.isAlive()) {
-               log.warn("PostResult2Qc thread executor is still running and request to stop thread is initiated.");
-               PostResult2Qc.getInstance().stop();
+            if (isRunning()) {
+               log.warn("PostResult2Qc thread executor " + name + " is still running and request to stop thread is initiated.");
+               PostResult2Qc.this.stop();
             }
          }
-      });
+      };
+      Runtime.getRuntime().addShutdownHook(shutdownHook);
+   }
+
+   /**
+    * Checks whether the pipeline is started and not stopped yet.
+    */
+   public boolean isRunning()
+   {
+      PostResult2QcThreadExecutor executor = postResult2QcThreadExecutor;
+      return executor != null && executor.isAlive() && !executor.stop;
    }
 
    /**
     * Adds a test run result into queue.
     *
     * @param testrunInfo - test run result.
+    * @return future of the result's outcome, completed once the result is posted, skipped,
+    *         spooled or failed [at once if the result is not queued]. SPOOLED is final, see
+    *         {@link TestRunOutcome.Status#SPOOLED}.
     */
-   public void addToQueue(TestRunInfo testrunInfo)
+   public CompletableFuture<TestRunOutcome> addToQueue(TestRunInfo testrunInfo)
    {
+      QueuedRun run = new QueuedRun(testrunInfo);
+      boolean closed;
+      synchronized (queueLock) {
+         closed = queueClosed;
+         if (!closed) {
+            queueWriters++;
+         }
+      }
+      if (closed) {
+         log.warn("Queue is closed, no more result is added to queue");
+         finish(run, TestRunOutcome.Status.REJECTED);
+         return run.future;
+      }
       try {
-         if (!postResult2QcThreadExecutor.stop) {
-            queue.put(testrunInfo);
+         if (circuitBreaker.getState() != CircuitBreaker.State.CLOSED) {
+            log.warn("QC is unavailable, spooling test run result");
+            spool(run);
+         } else if (enqueue(run)) {
             log.info("Added test run result into queue :" + testrunInfo);
+         } else if (queueClosed) {
+            log.warn("Queue is closed while waiting for room in queue, spooling test run result");
+            spool(run);
          } else {
-            log.warn("Queue is closed, no more result is added to queue");
+            log.warn("Queue is full [" + QcConstants.QC_POST_QUEUE_CAPACITY + " results], spooling test run result");
+            spool(run);
          }
+      } catch(InterruptedException ie) {
+         log.warn("Interrupted while waiting for room in queue, spooling test run result");
+         spool(run);
+         Thread.currentThread().interrupt();
       } catch(Exception ex) {
          log.error("Got an exception while putting testInstance into queue :", ex);
+         finish(run, TestRunOutcome.Status.FAILED);
+      } finally {
+         synchronized (queueLock) {
+            if (--queueWriters == 0) {
+               queueLock.notifyAll();
+            }
+         }
       }
+      return run.future;
    }
 
    /**
-    * Stops PostResult2Qc thread.
+    * Closes the queue : results added from now on are rejected, callers waiting for room in queue
+    * give up and spool their result. Returns once no caller can still put a result into queue.
     */
-   public void stop()
+   private void closeQueue() throws InterruptedException
    {
-      log.info("Stopping PostResult2Qc thread executor.....");
+      synchronized (queueLock) {
+         queueClosed = true;
+         while (queueWriters > 0) {
+            queueLock.wait();
+         }
+      }
+   }
+
+   /**
+    * Puts a test run result into queue as the backpressure policy allows.
+    *
+    * @return true if the result is queued, false if the queue stayed full.
+    */
+   private boolean enqueue(QueuedRun run) throws InterruptedException
+   {
+      //counted before it is queued, so it never completes before it is counted.
+      pending.incrementAndGet();
+      boolean queued = false;
       try {
+         queued = offer(run);
+      } finally {
+         if (queued) {
+            statistics.queued();
+         } else {
+            completed();
+         }
+      }
+      return queued;
+   }
+
+   /**
+    * Offers a test run result to the queue. A caller waiting for room in queue gives up once the
+    * queue is closed.
+    */
+   private boolean offer(QueuedRun run) throws InterruptedException
+   {
+      if (backpressurePolicy == BackpressurePolicy.SPILL) {
+         return queue.offer(run);
+      }
+      long endTime = (backpressurePolicy == BackpressurePolicy.TIMEOUT
+               ? System.currentTimeMillis() + QcConstants.QC_POST_QUEUE_TIMEOUT : Long.MAX_VALUE);
+      while (!queueClosed) {
+         long timeLeft = endTime - System.currentTimeMillis();
+         if (timeLeft <= 0) {
+            return false;
+         }
+         if (queue.offer(run, Math.min(timeLeft, QUEUE_CLOSE_CHECK_INTERVAL), TimeUnit.MILLISECONDS)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Writes a test run result into the spool and completes its outcome as SPOOLED,
+    * or as FAILED if it could not be written.
+    */
+   private void spool(QueuedRun run)
+   {
+      finish(run, spoolStatus(run));
+   }
+
+   /**
+    * Writes a test run result into the spool [a result drained from the spool is returned into it].
+    *
+    * @return SPOOLED, or FAILED if the result could not be written.
+    */
+   private TestRunOutcome.Status spoolStatus(QueuedRun run)
+   {
+      boolean spooled = (run.spoolEntry != null ? resultSpool.release(run.spoolEntry)
+               : resultSpool.spool(run.outcome.getTestRunInfo()));
+      return (spooled ? TestRunOutcome.Status.SPOOLED : TestRunOutcome.Status.FAILED);
+   }
+
+   /**
+    * Completes the outcome of a test run result and counts it.
+    */
+   private void finish(QueuedRun run,
+                       TestRunOutcome.Status status)
+   {
+      TestRunOutcome outcome = run.outcome;
+      if (run.spoolEntry != null && status != TestRunOutcome.Status.SPOOLED) {
+         //done with the result drained from the spool, its file is kept only if it failed to post.
+         resultSpool.remove(run.spoolEntry, status == TestRunOutcome.Status.FAILED);
+      }
+      outcome.finished(status);
+      statistics.finished(outcome);
+      if ((status == TestRunOutcome.Status.POSTED || status == TestRunOutcome.Status.FAILED)
+               && QcConstants.QC_POST_OUTCOMES_RETAINED > 0) {
+         synchronized (postOutcomes) {
+            if (postOutcomes.size() >= QcConstants.QC_POST_OUTCOMES_RETAINED) {
+               postOutcomes.poll();
+            }
+            postOutcomes.add(outcome);
+         }
+      }
+      run.future.complete(outcome);
+   }
+
+   /**
+    * Stops PostResult2Qc thread. Queued results are posted until the job deadline.
+    * The pipeline can be started again.
+    */
+   public synchronized void stop()
+   {
+      if (postResult2QcThreadExecutor == null || !postResult2QcThreadExecutor.isAlive()) {
+         log.info("PostResult2Qc thread executor " + name + " is not running");
+         return;
+      }
+      log.info("Stopping PostResult2Qc thread executor " + name + ".....");
+      try {
+         closeQueue();
+         spoolDrainer.interrupt();
+         spoolDrainer.join();
          postResult2QcThreadExecutor.interrupt();
          postResult2QcThreadExecutor.join();
-         log.info("PostResult2Qc thread executor stopped successfully");
+         log.info("PostResult2Qc thread executor " + name + " stopped successfully");
+         if (Thread.currentThread() != shutdownHook) {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+         }
+         int spooled = resultSpool.size();
+         if (spooled > 0) {
+            log.warn(spooled + " test run result(s) remain spooled in " + resultSpool.getSpoolDir()
+                     + " and will be posted when PostResult2Qc is started again and QC is available");
+         }
       } catch (Exception ex) {
          log.error("Got an exception while stopping the thread executor :", ex);
       }
    }
 
    /**
-    * Gets the POST status of test runs in QC.
+    * Gets the POST status of test runs in QC. Results skipped by the overwrite rule, spooled or
+    * rejected are not included, and only the latest qc.post.outcomes.retained results are kept.
     *
     * @return status map [key = testRun object | Value = Update Status (true / false )]
+    * @deprecated use the outcome futures returned by {@link #addToQueue(TestRunInfo)} or
+    *             {@link #getStatistics()}; test runs are mutable and make unreliable keys.
     */
+   @Deprecated
    public Map<TestRunInfo, Boolean> getTestRunsPostedStatus()
    {
-      return Collections.unmodifiableMap(postResult2QcThreadExecutor.testRunsPostedStatus);
+      Map<TestRunInfo, Boolean> testRunsPostedStatus = new LinkedHashMap<TestRunInfo, Boolean>();
+      for (TestRunOutcome outcome : getPostOutcomes()) {
+         testRunsPostedStatus.put(outcome.getTestRunInfo(), outcome.isPosted() && outcome.isLogsUploaded());
+      }
+      return Collections.unmodifiableMap(testRunsPostedStatus);
+   }
+
+   /**
+    * Return outcomes of the test run results posted into QC or failed since the pipeline was started
+    * [the latest qc.post.outcomes.retained of them].
+    *
+    * @deprecated use the outcome futures returned by {@link #addToQueue(TestRunInfo)} or
+    *             {@link #getStatistics()}.
+    */
+   @Deprecated
+   public List<TestRunOutcome> getPostOutcomes()
+   {
+      synchronized (postOutcomes) {
+         return new ArrayList<TestRunOutcome>(postOutcomes);
+      }
+   }
+
+   /**
+    * Return live counters of the pipeline, reset when it is started.
+    */
+   public PostStatistics getStatistics()
+   {
+      return statistics;
+   }
+
+   /**
+    * Waits until no test run result is queued or being posted, without stopping the pipeline.
+    *
+    * @param timeout maximum time to wait in milliseconds.
+    * @return true if all results are processed, false if the timeout elapsed first.
+    */
+   public boolean awaitIdle(long timeout) throws InterruptedException
+   {
+      long endTime = System.currentTimeMillis() + timeout;
+      synchronized (pending) {
+         while (pending.get() > 0) {
+            long timeLeft = endTime - System.currentTimeMillis();
+            if (timeLeft <= 0) {
+               return false;
+            }
+            pending.wait(timeLeft);
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Return number of test run results queued or being posted.
+    */
+   public int getPendingCount()
+   {
+      return pending.get();
+   }
+
+   /**
+    * Return pipeline name.
+    */
+   public String getName()
+   {
+      return name;
+   }
+
+   /**
+    * Marks a queued test run result as processed [posted, ignored or spooled].
+    */
+   private void completed()
+   {
+      if (pending.decrementAndGet() == 0) {
+         synchronized (pending) {
+            pending.notifyAll();
+         }
+      }
+   }
+
+   /**
+    * Return number of test run results waiting in queue.
+    */
+   public int getQueueSize()
+   {
+      return queue.size();
+   }
+
+   /**
+    * Return what adding a test run result to a full queue does.
+    */
+   public BackpressurePolicy getBackpressurePolicy()
+   {
+      return backpressurePolicy;
+   }
+
+   /**
+    * Return which of the queued test run results for the same test instance is posted.
+    */
+   public CoalescePolicy getCoalescePolicy()
+   {
+      return coalescePolicy;
+   }
+
+   /**
+    * Return the spool holding test run results of this pipeline that are waiting for QC to become
+    * available. Only the spool drainer of this pipeline moves them back into its queue.
+    */
+   public ResultSpool getResultSpool()
+   {
+      return resultSpool;
+   }
+
+   /**
+    * Set time [in milliseconds since epoch] by which all queued results must be posted.
+    * By default the deadline is set to qc.job.timeout milliseconds after PostResult2Qc is stopped.
+    *
+    * @param jobDeadline deadline, 0 for the default.
+    */
+   public void setJobDeadline(long jobDeadline)
+   {
+      this.jobDeadline = jobDeadline;
+   }
+
+   /**
+    * Return job deadline, 0 if it is not set yet.
+    */
+   public long getJobDeadline()
+   {
+      return jobDeadline;
+   }
+
+   /**
+    * Checks whether the job deadline has passed.
+    */
+   private boolean isJobDeadlineExceeded()
+   {
+      return jobDeadline > 0 && System.currentTimeMillis() >= jobDeadline;
+   }
+
+   /**
+    * Return the limit of test results posted concurrently. Its current value is
+    * {@link AdaptiveConcurrencyLimit#getLimit()}.
+    */
+   public AdaptiveConcurrencyLimit getConcurrencyLimit()
+   {
+      return concurrencyLimit;
+   }
+
+   /**
+    * This thread moves spooled test run results back into the queue. While the circuit breaker
+    * is half-open, one result is queued at a time and its post acts as the probe request;
+    * once the breaker is closed, the whole spool is drained.
+    */
+   private class SpoolDrainer extends Thread
+   {
+      private final Logger log = LoggerFactory.getLogger(SpoolDrainer.class);
+
+      public SpoolDrainer()
+      {
+         setName("QcSpoolDrainer-" + name);
+         setDaemon(true);
+      }
+
+      public void run()
+      {
+         while (!isInterrupted()) {
+            try {
+               Thread.sleep(QcConstants.QC_SPOOL_DRAIN_INTERVAL);
+               CircuitBreaker.State state = circuitBreaker.getState();
+               if (state == CircuitBreaker.State.CLOSED) {
+                  drain(Integer.MAX_VALUE);
+               } else if (state == CircuitBreaker.State.HALF_OPEN && !circuitBreaker.isProbeInFlight()) {
+                  drain(1);
+               }
+            } catch (InterruptedException ie) {
+               break;
+            } catch (Exception ex) {
+               log.error("Got an exception while draining spooled test run results :", ex);
+            }
+         }
+      }
+
+      /**
+       * Moves at most maxResults results from the spool into the queue.
+       */
+      private void drain(int maxResults) throws InterruptedException
+      {
+         int drained = 0;
+         ResultSpool.Entry spoolEntry = null;
+         try {
+            while (drained < maxResults && (spoolEntry = resultSpool.poll()) != null) {
+               pending.incrementAndGet();
+               //the future of the caller that added the result is already completed as SPOOLED.
+               queue.put(new QueuedRun(spoolEntry));
+               statistics.queued();
+               spoolEntry = null;
+               drained++;
+            }
+         } finally {
+            if (spoolEntry != null) {
+               //interrupted while waiting for room in queue, not counted as queued.
+               resultSpool.release(spoolEntry);
+               completed();
+            }
+         }
+         if (drained > 0) {
+            log.info("Moved " + drained + " spooled test run result(s) into queue");
+         }
+      }
    }
 
    /**
     * This thread executor monitors test run results that are added in the queue
-    * and spawns a new thread for each test run result and delegates result
-    * posting task to the new thread.
+    * and delegates result posting task to a fixed pool of worker threads [or to a virtual
+    * thread per result, see qc.post.threads]. A result is
+    * taken from the queue only when the concurrency limit has a free slot; the limit is at most
+    * qc.post.workers, so a dispatched result never waits for a free worker.
+    * When results are coalesced, a result taken from the queue is held until its coalesce window
+    * has passed [before a concurrency limit slot is taken], then the queued results for the same
+    * test instance are removed from the queue and only the one that supersedes the others is dispatched.
     */
    private class PostResult2QcThreadExecutor extends Thread
    {
       private final ExecutorService executorService;
-      private final BlockingQueue<TestRunInfo> queue;
-      private final Hashtable<TestRunInfo, Boolean> testRunsPostedStatus;
-      private boolean stop = false;
+      private final Semaphore workerPermits;
+      private final BlockingQueue<QueuedRun> queue;
+      //result taken from the queue, waiting for a concurrency limit slot.
+      private QueuedRun held = null;
+      private volatile boolean stop = false;
       private final Logger log = LoggerFactory.getLogger(PostResult2QcThreadExecutor.class);
 
-      public PostResult2QcThreadExecutor(final BlockingQueue<TestRunInfo> queue)
+      public PostResult2QcThreadExecutor(final BlockingQueue<QueuedRun> queue)
       {
          this.queue = queue;
-         this.executorService = Executors.newCachedThreadPool();
-         this.testRunsPostedStatus = new Hashtable<TestRunInfo, Boolean>();
+         setName("PostResult2Qc-" + name);
+         ExecutorService virtualThreadExecutor = null;
+         if ("virtual".equalsIgnoreCase(QcConstants.QC_POST_THREADS)) {
+            virtualThreadExecutor = QcUtil.newVirtualThreadExecutor();
+            if (virtualThreadExecutor == null) {
+               log.warn("Virtual threads are not supported by Java " + System.getProperty("java.version")
+                        + ", posting test results on platform threads");
+            }
+         }
+         if (virtualThreadExecutor != null) {
+            log.info("Posting test results on virtual threads, at most " + QcConstants.QC_POST_WORKERS
+                     + " at a time");
+            this.executorService = virtualThreadExecutor;
+            this.workerPermits = new Semaphore(QcConstants.QC_POST_WORKERS);
+         } else {
+            final AtomicInteger workerCount = new AtomicInteger();
+            this.executorService = new ThreadPoolExecutor(QcConstants.QC_POST_WORKERS,
+                     QcConstants.QC_POST_WORKERS, 0, TimeUnit.MILLISECONDS,
+                     new LinkedBlockingQueue<Runnable>(), runnable -> {
+                        return new Thread(runnable, "QcResultPoster-" + name + "-" + workerCount.incrementAndGet());
+                     });
+            this.workerPermits = null;
+         }
       }
 
       /**
-       * Takes test run result when added into queue and passes the result to a new thread.
+       * Takes test run result when added into queue and passes the result to a worker thread.
        */
       public void run()
       {
          do {
+            boolean acquired = false;
+            QueuedRun run = null;
             try {
-               log.info("Waiting to receive test run data in queue....");
-               TestRunInfo testrunInfo = queue.take();
-               log.info("Taking test run from queue :" + testrunInfo);
-               executorService.execute(new PostResult2QcThread(testrunInfo));
+               if (held == null) {
+                  log.info("Waiting to receive test run data in queue....");
+                  held = next();
+               }
+               concurrencyLimit.acquire();
+               acquired = true;
+               run = held;
+               held = null;
+               log.info("Taking test run from queue :" + run.outcome.getTestRunInfo());
+               if (isJobDeadlineExceeded()) {
+                  log.warn("Job deadline exceeded, spooling test run result instead of posting it");
+                  spool(run);
+                  completed();
+                  continue;
+               }
+               executorService.execute(new PostResult2QcThread(run));
+               acquired = false;
             } catch(InterruptedException ie) {
                stop = true;
+               if (jobDeadline <= 0) {
+                  jobDeadline = System.currentTimeMillis() + QcConstants.QC_JOB_TIMEOUT;
+               }
             } catch(Exception ex) {
                log.error("Got an exception while processing test run result from queue :", ex);
+               QueuedRun notDispatched = (run != null && acquired ? run : held);
+               held = null;
+               if (notDispatched != null) {
+                  spool(notDispatched);
+                  completed();
+               }
+            } finally {
+               if (acquired) {
+                  concurrencyLimit.onIgnored();
+               }
             }
-         } while(!(stop && queue.isEmpty()));
+         } while(!(stop && queue.isEmpty() && held == null));
 
          executorService.shutdown();
          log.info("ThreadExecutor is shutdown");
          try {
-            executorService.awaitTermination(30, TimeUnit.MINUTES);
-            log.info("All result posting tasks have been completed successfully");
+            long timeLeft = Math.max(0, jobDeadline - System.currentTimeMillis());
+            if (executorService.awaitTermination(timeLeft, TimeUnit.MILLISECONDS)) {
+               log.info("All result posting tasks have been completed successfully");
+            } else {
+               log.warn("Job deadline exceeded, cancelling result posting tasks that are still running");
+               for (Runnable notStarted : executorService.shutdownNow()) {
+                  PostResult2QcThread task = (PostResult2QcThread) notStarted;
+                  spool(task.run);
+                  completed();
+                  concurrencyLimit.onIgnored();
+               }
+            }
          } catch(Exception ex) {
             log.error("Got exception in awaitTermination :", ex);
          }
+         //the queue is closed before the executor is stopped, so this only catches what the
+         //loop above could not take [Ex : an unexpected error].
+         QueuedRun left;
+         while ((left = queue.poll()) != null) {
+            log.warn("Spooling test run result left in queue :" + left.outcome.getTestRunInfo());
+            spool(left);
+            completed();
+         }
+      }
+
+      /**
+       * Takes the next test run result to dispatch, coalescing it with the queued results for the
+       * same test instance if enabled. The result is held until its coalesce window has passed,
+       * unless the pipeline is stopping.
+       */
+      private QueuedRun next() throws InterruptedException
+      {
+         QueuedRun first = queue.take();
+         if (coalescePolicy == CoalescePolicy.OFF || first.outcome.getTestRunInfo().getTestInstanceId() <= 0) {
+            return first;
+         }
+         boolean interrupted = false;
+         long windowLeft = first.outcome.getQueuedAt() + QcConstants.QC_POST_COALESCE_WINDOW
+                  - System.currentTimeMillis();
+         if (!stop && windowLeft > 0) {
+            try {
+               Thread.sleep(windowLeft);
+            } catch (InterruptedException ie) {
+               //stop is requested, the result is still dispatched.
+               interrupted = true;
+            }
+         }
+         QueuedRun kept = coalesce(first);
+         if (interrupted) {
+            Thread.currentThread().interrupt();
+         }
+         return kept;
+      }
+
+      /**
+       * Coalesces a result taken from the queue with the queued results for the same test instance.
+       * They are removed from the queue in place, so no more results are held than the queue takes.
+       *
+       * @return the result to dispatch for the test instance, the others are superseded.
+       */
+      private QueuedRun coalesce(QueuedRun first)
+      {
+         long testInstanceId = first.outcome.getTestRunInfo().getTestInstanceId();
+         QueuedRun kept = first;
+         int superseded = 0;
+         for (Iterator<QueuedRun> it = queue.iterator(); it.hasNext();) {
+            QueuedRun run = it.next();
+            if (run.outcome.getTestRunInfo().getTestInstanceId() != testInstanceId) {
+               continue;
+            }
+            it.remove();
+            QueuedRun dropped;
+            if (coalescePolicy.supersedes(run.outcome.getTestRunInfo(), kept.outcome.getTestRunInfo())) {
+               dropped = kept;
+               kept = run;
+            } else {
+               dropped = run;
+            }
+            finish(dropped, TestRunOutcome.Status.SUPERSEDED);
+            completed();
+            superseded++;
+         }
+         if (superseded > 0) {
+            log.info("Coalesced " + (superseded + 1) + " queued test run results for test instance "
+                     + testInstanceId + ", " + superseded + " superseded result(s) are not posted");
+         }
+         return kept;
       }
 
       /**
@@ -165,13 +862,19 @@ public class PostResult2Qc
       private class PostResult2QcThread implements Runnable
       {
          private final QcConnector qcConnector;
-         private TestRunInfo testRunInfo;
+         private final QueuedRun run;
+         private final TestRunInfo testRunInfo;
+         private final TestRunOutcome outcome;
+         private long postLatency = -1;
+         private boolean postFailed = false;
          private final Logger log = LoggerFactory.getLogger(PostResult2QcThread.class);
 
-         public PostResult2QcThread(TestRunInfo testRunInfo)
+         public PostResult2QcThread(QueuedRun run)
          {
             this.qcConnector = new QcConnector();
-            this.testRunInfo = testRunInfo;
+            this.run = run;
+            this.outcome = run.outcome;
+            this.testRunInfo = outcome.getTestRunInfo();
          }
 
          /**
@@ -180,6 +883,46 @@ public class PostResult2Qc
          public void run()
          {
             try {
+               if (workerPermits != null) {
+                  workerPermits.acquire();
+               }
+               outcome.started();
+               try {
+                  finish(run, process());
+               } finally {
+                  if (workerPermits != null) {
+                     workerPermits.release();
+                  }
+               }
+            } catch (InterruptedException ie) {
+               log.warn("Interrupted while waiting to post test run result, spooling it");
+               spool(run);
+            } finally {
+               if (postFailed) {
+                  concurrencyLimit.onDropped();
+               } else if (postLatency >= 0) {
+                  concurrencyLimit.onSuccess(postLatency);
+               } else {
+                  concurrencyLimit.onIgnored();
+               }
+               completed();
+            }
+         }
+
+         /**
+          * Applies the overwrite rule and posts the result, spooling it if QC is unavailable.
+          *
+          * @return outcome status of the result.
+          */
+         private TestRunOutcome.Status process()
+         {
+            try {
+               if (jobDeadline > 0) {
+                  if (isJobDeadlineExceeded()) {
+                     throw new DeadlineExceeded("Job deadline exceeded before posting started");
+                  }
+                  qcConnector.setDeadline(jobDeadline);
+               }
                /*
                 * Ignore test status if test already passed and current status is not PASS.
                 */
@@ -194,58 +937,113 @@ public class PostResult2Qc
                   }
                }
                if (canOverwriteStatus) {
-                  boolean success = post2Qc();
-                  testRunsPostedStatus.put(testRunInfo, success);
-               } else {
-                  log.warn("Ignoring current test status as the test already passed & current status is not PASS:"
-                           + testInstanceInfo.getTestName());
+                  return (post2Qc() ? TestRunOutcome.Status.POSTED : TestRunOutcome.Status.FAILED);
                }
+               log.warn("Ignoring current test status as the test already passed & current status is not PASS:"
+                        + testInstanceInfo.getTestName());
+               return TestRunOutcome.Status.SKIPPED;
+            } catch (DeadlineExceeded de) {
+               log.warn("Test run result is not posted, spooling it :" + de.getMessage());
+               return spoolStatus(run);
+            } catch (QcUnavailable qu) {
+               postFailed = true;
+               log.warn("QC is unavailable, spooling test run result :" + qu.getMessage());
+               return spoolStatus(run);
             } catch (Exception ex) {
+               //failed before the run is posted [post2Qc does not throw other exceptions].
+               postFailed = true;
+               if (circuitBreaker.getState() != CircuitBreaker.State.CLOSED) {
+                  log.warn("QC became unavailable, spooling test run result :" + ex.getMessage());
+                  return spoolStatus(run);
+               }
                log.error("Got an exception while processing test run result into QC :", ex);
+               return TestRunOutcome.Status.FAILED;
             }
          }
 
          /**
-          * Posts test run result and test log files to QC by invoking QCConnector
+          * Posts test run result and test log files to QC by invoking QCConnector. The new test
+          * run id and the outcome of every log upload are recorded in the result's outcome.
           *
-          * @param testrunInfo - test run information.
-          * @return true if posting to QC is successful, else returns false.
+          * @return true if the test run is created in QC, else returns false [log uploads may still have failed].
+          * @throws QcUnavailable if the result is not sent because QC is unavailable [the circuit
+          *          breaker rejected it or the connection could not be established].
+          * @throws DeadlineExceeded if the result is not sent because the job deadline has passed.
           */
-         private boolean post2Qc()
+         private boolean post2Qc() throws QcUnavailable, DeadlineExceeded
          {
-            boolean uploaded = true;
             List<String> logFilePaths = testRunInfo.getClientLogFilePaths();
             TestRunInfo newTestRun = null;
+            long postStartTime = System.currentTimeMillis();
             try {
                newTestRun = qcConnector.postResult2Qc(testRunInfo);
+               postLatency = System.currentTimeMillis() - postStartTime;
                if (newTestRun != null) {
+                  outcome.setTestRunId(newTestRun.getId());
                   log.info("Successfully posted test run result into QC :" + newTestRun.getId());
                } else {
                   log.error("Failed to post test result into QC");
                }
+            } catch(QcUnavailable qu) {
+               //rejected by the circuit breaker, the run is not sent.
+               throw qu;
+            } catch(DeadlineExceeded de) {
+               //the run is not sent : the deadline passed before an attempt started.
+               throw de;
             } catch(Exception ex) {
-               log.error("Got an exception when posting test run result into QC",
+               postFailed = true;
+               if (RetryPolicy.isConnectFailure(ex)) {
+                  throw new QcUnavailable("Test run result is not sent, QC is not reachable :" + ex);
+               }
+               //QC may have created the run [Ex : read timeout], spooling it could post it twice.
+               log.error("Got an exception when posting test run result into QC after "
+                        + testRunInfo.getRequestAttempts(TestRunInfo.RUN_POST_REQUEST) + " attempt(s)",
                         ex);
             }
-            try {
-               if (newTestRun != null && logFilePaths != null && !logFilePaths.isEmpty()) {
-                  for(String logFilePath : logFilePaths) {
-                     if (qcConnector.uploadLogFile2Qc(newTestRun.getId(), logFilePath) != null) {
-                        log.info("Test logs are successfully uploaded into QC :" + logFilePaths);
+            if (newTestRun != null && logFilePaths != null && !logFilePaths.isEmpty()) {
+               for(String logFilePath : logFilePaths) {
+                  boolean uploaded = false;
+                  try {
+                     if (qcConnector.uploadLogFile2Qc(newTestRun.getId(), logFilePath,
+                              testRunInfo) != null) {
+                        log.info("Test log is successfully uploaded into QC :" + logFilePath);
+                        uploaded = true;
                      } else {
-                        log.error("Failed to upload test logs into QC :" + logFilePaths);
-                        uploaded = false;
+                        log.error("Failed to upload test log into QC :" + logFilePath);
                      }
+                  } catch(Exception ex) {
+                     log.error("Got an exception when uploading testlog file into QC :" + logFilePath, ex);
                   }
+                  outcome.addLogUpload(logFilePath, uploaded);
+                  statistics.logUploaded(uploaded);
                }
-            } catch(Exception ex) {
-               log.error("Got an exception when uploading testlog files into QC", ex);
-               uploaded = false;
             }
-            return newTestRun != null && uploaded;
+            return newTestRun != null;
          }
 
       }
    }
 
+   /**
+    * A queued test run result with the future of its outcome.
+    */
+   private static class QueuedRun
+   {
+      private final TestRunOutcome outcome;
+      private final CompletableFuture<TestRunOutcome> future = new CompletableFuture<TestRunOutcome>();
+      //spool entry of a result drained from the spool, else null.
+      private final ResultSpool.Entry spoolEntry;
+
+      public QueuedRun(TestRunInfo testRunInfo)
+      {
+         this.outcome = new TestRunOutcome(testRunInfo);
+         this.spoolEntry = null;
+      }
+
+      public QueuedRun(ResultSpool.Entry spoolEntry)
+      {
+         this.outcome = new TestRunOutcome(spoolEntry.getTestRunInfo());
+         this.spoolEntry = spoolEntry;
+      }
+   }
 }
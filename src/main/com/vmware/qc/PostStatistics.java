@@ -0,0 +1,186 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a {@link PostResult2Qc} pipeline. Counters are LongAdders, so worker threads update
+ * them without contention, and they can be read at any time while the pipeline is running.
+ * A read of several counters is not an atomic snapshot.
+ */
+public class PostStatistics
+{
+   private final LongAdder queued = new LongAdder();
+   private final LongAdder posted = new LongAdder();
+   private final LongAdder failed = new LongAdder();
+   private final LongAdder skipped = new LongAdder();
+   private final LongAdder spooled = new LongAdder();
+   private final LongAdder rejected = new LongAdder();
+   private final LongAdder superseded = new LongAdder();
+   private final LongAdder logsUploaded = new LongAdder();
+   private final LongAdder logUploadsFailed = new LongAdder();
+   private final LongAdder postTime = new LongAdder();
+
+   /**
+    * Count a test run result added to the queue.
+    */
+   void queued()
+   {
+      queued.increment();
+   }
+
+   /**
+    * Count the outcome of a test run result.
+    */
+   void finished(TestRunOutcome outcome)
+   {
+      switch (outcome.getStatus()) {
+         case POSTED:
+            posted.increment();
+            break;
+         case SKIPPED:
+            skipped.increment();
+            break;
+         case SPOOLED:
+            spooled.increment();
+            break;
+         case REJECTED:
+            rejected.increment();
+            break;
+         case SUPERSEDED:
+            superseded.increment();
+            break;
+         default:
+            failed.increment();
+      }
+      if (outcome.getPostTime() >= 0) {
+         postTime.add(outcome.getPostTime());
+      }
+   }
+
+   /**
+    * Count a log file upload.
+    */
+   void logUploaded(boolean uploaded)
+   {
+      (uploaded ? logsUploaded : logUploadsFailed).increment();
+   }
+
+   /**
+    * Resets all counters.
+    */
+   void reset()
+   {
+      queued.reset();
+      posted.reset();
+      failed.reset();
+      skipped.reset();
+      spooled.reset();
+      rejected.reset();
+      superseded.reset();
+      logsUploaded.reset();
+      logUploadsFailed.reset();
+      postTime.reset();
+   }
+
+   /**
+    * Return number of test run results added to the queue [spooled results moved back included].
+    */
+   public long getQueued()
+   {
+      return queued.sum();
+   }
+
+   /**
+    * Return number of test runs created in QC.
+    */
+   public long getPosted()
+   {
+      return posted.sum();
+   }
+
+   /**
+    * Return number of test run results that could not be posted.
+    */
+   public long getFailed()
+   {
+      return failed.sum();
+   }
+
+   /**
+    * Return number of test run results not posted by the overwrite of pass status rule.
+    */
+   public long getSkipped()
+   {
+      return skipped.sum();
+   }
+
+   /**
+    * Return number of test run results written into the result spool. A spooled result that the
+    * spool drainer moves back into the queue is counted again as queued and by its final outcome.
+    */
+   public long getSpooled()
+   {
+      return spooled.sum();
+   }
+
+   /**
+    * Return number of test run results not accepted by a stopping pipeline.
+    */
+   public long getRejected()
+   {
+      return rejected.sum();
+   }
+
+   /**
+    * Return number of test run results superseded by a later or worse result for the same test
+    * instance, i.e. the number of QC run writes saved by coalescing.
+    */
+   public long getSuperseded()
+   {
+      return superseded.sum();
+   }
+
+   /**
+    * Return number of log files uploaded.
+    */
+   public long getLogsUploaded()
+   {
+      return logsUploaded.sum();
+   }
+
+   /**
+    * Return number of log files that could not be uploaded.
+    */
+   public long getLogUploadsFailed()
+   {
+      return logUploadsFailed.sum();
+   }
+
+   /**
+    * Return total milliseconds spent in posting results and uploading their logs.
+    */
+   public long getPostTime()
+   {
+      return postTime.sum();
+   }
+
+   public String toString()
+   {
+      StringBuilder sb = new StringBuilder();
+      sb.append("queued =" + getQueued())
+        .append(", posted =" + getPosted())
+        .append(", failed =" + getFailed())
+        .append(", skipped =" + getSkipped())
+        .append(", spooled =" + getSpooled())
+        .append(", rejected =" + getRejected())
+        .append(", superseded =" + getSuperseded())
+        .append(", logsUploaded =" + getLogsUploaded())
+        .append(", logUploadsFailed =" + getLogUploadsFailed())
+        .append(", postTime =" + getPostTime());
+      return sb.toString();
+   }
+}
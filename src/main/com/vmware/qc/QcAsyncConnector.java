@@ -0,0 +1,347 @@
+/**
+ ***********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ ************************************************************************
+ */
+package com.vmware.qc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vmware.qc.exception.NotFound;
+import com.vmware.qc.exception.TestInstanceNotFound;
+
+/**
+ * Non-blocking counterpart of {@link QcConnector}. Every method sends its requests through
+ * the shared HTTP transport and returns immediately with a CompletableFuture, so a few threads
+ * can keep many QC requests in flight and callers can chain QC operations
+ * [Ex : post test run, then upload its logs] without parking a thread on each step.
+ *
+ * Futures are completed with the same values that the corresponding QcConnector methods return,
+ * or exceptionally with the exception those methods throw.
+ */
+public class QcAsyncConnector
+{
+   private final QcRestClient restClient;
+   private final static Logger log = LoggerFactory.getLogger(QcAsyncConnector.class);
+
+   public QcAsyncConnector()
+   {
+      restClient = new QcRestClient();
+   }
+
+   /**
+    * Set time [in milliseconds since epoch] by which every QC request made by this connector
+    * must be completed. Requests that cannot complete before it fail with DeadlineExceeded
+    * instead of being sent.
+    *
+    * @param deadline deadline, 0 for none.
+    */
+   public void setDeadline(long deadline)
+   {
+      restClient.setDeadline(deadline);
+   }
+
+   /**
+    * Retrieves all test sets under a specific folder and optionally its sub-folders in QC.
+    *
+    * @param testSetFolderPath - testset folder path [ Example : Root\\MN.Next\\Beta\\Cycle1\\CoreVC\\VC-ESX50i ].
+    * @param includeSubFolders if this flag is true, test sets in sub-folders will be included.
+    * @return future of the list of test sets, null if no test set is found.
+    */
+   public CompletableFuture<List<TestSetInfo>> getTestSets(final String testSetFolderPath,
+                                                           final boolean includeSubFolders)
+   {
+      CompletableFuture<List<TestSetInfo>> testSets = restClient.getAsync(
+               QcConnector.newTestSetsRequest(testSetFolderPath), QcXmlStreamParser.TEST_SETS);
+      testSets = whenNotFound(testSets, null, "No test sets found in the folder :" + testSetFolderPath);
+      if (!includeSubFolders) {
+         return testSets;
+      }
+      return testSets.thenCompose(testSetInfos -> {
+         if (testSetInfos == null || testSetInfos.isEmpty()) {
+            return CompletableFuture.completedFuture(testSetInfos);
+         }
+         long targetFolderId = testSetInfos.get(0).getParentFolderId();
+         return restClient.getAsync(QcConnector.newTestSetTreeRequest(targetFolderId, true),
+                  QcXmlStreamParser.TEST_SET_TREE);
+      });
+   }
+
+   /**
+    * Gets all test instances from QC associated to specific test sets. The first page is requested
+    * alone, as it tells the total number of test instances and the page size QC uses; then all
+    * remaining pages up to the total are requested at once and merged in page order. If QC does not
+    * report the total, or a page comes back with another size than the first one, the pages from
+    * there on are requested one after another until a page is not full.
+    *
+    * @param testSetIds - list of testset ids.
+    * @return future of the list of test instances, null if no test instance is found.
+    */
+   public CompletableFuture<List<TestInstanceInfo>> getTestInstances(final List<Long> testSetIds)
+   {
+      return getTestInstancePage(testSetIds, 1).thenCompose(firstPage -> {
+         final List<TestInstanceInfo> allTestInstances = new ArrayList<TestInstanceInfo>();
+         if (firstPage == null || firstPage.size() == 0) {
+            return CompletableFuture.completedFuture(allTestInstances);
+         }
+         allTestInstances.addAll(firstPage.getTestInstances());
+         final int pageSize = firstPage.size();
+         final int total = firstPage.getTotal();
+         if (total < 0) {
+            return getTestInstances(testSetIds, pageSize + 1, pageSize, total, allTestInstances);
+         }
+         if (pageSize >= total) {
+            return CompletableFuture.completedFuture(allTestInstances);
+         }
+         QcConnector.learnPageSize(pageSize);
+         final List<CompletableFuture<TestInstancePage>> pages = new ArrayList<CompletableFuture<TestInstancePage>>();
+         for (int startIndex = pageSize + 1; startIndex <= total; startIndex += pageSize) {
+            pages.add(getTestInstancePage(testSetIds, startIndex));
+         }
+         return CompletableFuture.allOf(pages.toArray(new CompletableFuture<?>[0])).thenCompose(done -> {
+            int startIndex = pageSize + 1;
+            for (CompletableFuture<TestInstancePage> pageFuture : pages) {
+               TestInstancePage page = pageFuture.join();
+               int size = (page != null ? page.size() : 0);
+               if (size > 0) {
+                  allTestInstances.addAll(page.getTestInstances());
+               }
+               if (size != pageSize) {
+                  //last page, or the pages after this one were requested at wrong start indexes.
+                  return (size == 0 || startIndex + size > total ? CompletableFuture.completedFuture(allTestInstances)
+                           : getTestInstances(testSetIds, startIndex + size, pageSize, total, allTestInstances));
+               }
+               startIndex += size;
+            }
+            return CompletableFuture.completedFuture(allTestInstances);
+         });
+      }).thenApply(allTestInstances -> (!allTestInstances.isEmpty() ? allTestInstances : null));
+   }
+
+   /**
+    * Requests the page at startIndex and chains the request of the next page until the total is
+    * reached [if known] or a page is not full.
+    */
+   private CompletableFuture<List<TestInstanceInfo>> getTestInstances(final List<Long> testSetIds,
+                                                                      final int startIndex,
+                                                                      final int pageSize,
+                                                                      final int total,
+                                                                      final List<TestInstanceInfo> allTestInstances)
+   {
+      return getTestInstancePage(testSetIds, startIndex).thenCompose(page -> {
+         int size = (page != null ? page.size() : 0);
+         if (size == 0) {
+            return CompletableFuture.completedFuture(allTestInstances);
+         }
+         allTestInstances.addAll(page.getTestInstances());
+         int nextStartIndex = startIndex + size;
+         if (total >= 0 ? nextStartIndex > total : size < pageSize) {
+            return CompletableFuture.completedFuture(allTestInstances);
+         }
+         return getTestInstances(testSetIds, nextStartIndex, pageSize, total, allTestInstances);
+      });
+   }
+
+   /**
+    * Requests the page of test instances at startIndex. A missing page completes the future with null.
+    */
+   private CompletableFuture<TestInstancePage> getTestInstancePage(List<Long> testSetIds,
+                                                                  int startIndex)
+   {
+      CompletableFuture<TestInstancePage> page = restClient.getAsync(
+               QcConnector.newTestInstancesRequest(testSetIds, startIndex), QcXmlStreamParser.TEST_INSTANCE_PAGE);
+      return whenNotFound(page, null, "No test instances found from index " + startIndex + " for testsets :"
+               + testSetIds);
+   }
+
+   /**
+    * Gets a specific test instance's information from QC using its id.
+    *
+    * @param testInstanceId - test instance id
+    * @return future of the test instance. Completed exceptionally with TestInstanceNotFound
+    *         if the test instance does not exist.
+    */
+   public CompletableFuture<TestInstanceInfo> getTestInstance(final long testInstanceId)
+   {
+      return restClient.getAsync(QcConnector.newTestInstanceRequest(testInstanceId), QcXmlStreamParser.TEST_INSTANCE)
+               .handle((testInstance, error) -> {
+                  if (error != null) {
+                     if (unwrap(error) instanceof NotFound) {
+                        throw new CompletionException(new TestInstanceNotFound(
+                                 "No test instance is found for Id #" + testInstanceId));
+                     }
+                     throw wrap(error);
+                  }
+                  return testInstance;
+               });
+   }
+
+   /**
+    * Returns TestCases from QC TestPlan by their ids. All requests are sent at once and
+    * are limited only by the connection pool of the transport.
+    *
+    * @param testcaseIds test case ids.
+    * @return future of the list of test cases in the order of the ids, null if none is found.
+    */
+   public CompletableFuture<List<QcTestCase>> getTestCases(List<Long> testcaseIds)
+   {
+      final List<CompletableFuture<QcTestCase>> testCaseFutures = new ArrayList<CompletableFuture<QcTestCase>>();
+      for (Long testcaseId : testcaseIds) {
+         CompletableFuture<QcTestCase> testCase = restClient.getAsync(
+                  QcConnector.newTestCaseRequest(testcaseId), QcXmlStreamParser.TEST_CASE);
+         testCaseFutures.add(whenNotFound(testCase, null, "No testcase found for testCase id: "
+                  + testcaseId));
+      }
+      return CompletableFuture.allOf(testCaseFutures.toArray(new CompletableFuture<?>[0]))
+               .thenApply(done -> {
+                  List<QcTestCase> testCases = new ArrayList<QcTestCase>();
+                  for (CompletableFuture<QcTestCase> testCaseFuture : testCaseFutures) {
+                     QcTestCase testCase = testCaseFuture.join();
+                     if (testCase != null) {
+                        testCases.add(testCase);
+                     }
+                  }
+                  return (testCases.size() > 0 ? testCases : null);
+               });
+   }
+
+   /**
+    * Posts a test run result into QC using test instance id.
+    *
+    * @param testInstanceId - test instance id.
+    * @param status - test run status.
+    * @return future of the new testRun info object.
+    */
+   public CompletableFuture<TestRunInfo> postResult2Qc(long testInstanceId,
+                                                       QcTestStatus status)
+   {
+      TestRunInfo testRunInfo = new TestRunInfo();
+      testRunInfo.setTestInstanceId(testInstanceId);
+      testRunInfo.setStatus(status);
+      testRunInfo.setUserId(QcConstants.QC_USERID);
+      testRunInfo.setBuildNumbers(QcConstants.QC_BUILD_NUMBERS);
+      return postResult2Qc(testRunInfo);
+   }
+
+   /**
+    * Posts a test run result into QC.
+    *
+    * @param testRunInfo - test run result information.
+    * @return future of the new testRun info object.
+    */
+   public CompletableFuture<TestRunInfo> postResult2Qc(final TestRunInfo testRunInfo)
+   {
+      final QcRequest qcRequest = QcConnector.newTestRunRequest(testRunInfo);
+      return restClient.postAsync(qcRequest, QcXmlStreamParser.TEST_RUN)
+               .whenComplete((newTestRunInfo, error) -> testRunInfo.setRequestAttempts(
+                        TestRunInfo.RUN_POST_REQUEST, qcRequest.getAttempts()))
+               .thenApply(newTestRunInfo -> {
+                  if (newTestRunInfo != null) {
+                     log.info("Test result is posted into QC successfully :\n" + newTestRunInfo);
+                  } else {
+                     log.error("Post test result to QC failed");
+                  }
+                  return newTestRunInfo;
+               });
+   }
+
+   /**
+    * Uploads a log file associated to test run id to its assigned log directory in QC repository.
+    *
+    * @param testRunId - test run id.
+    * @param logFileName - log file name that is being uploaded.
+    * @return future of the log file object.
+    */
+   public CompletableFuture<LogFileInfo> uploadLogFile2Qc(long testRunId,
+                                                          String logFileName)
+   {
+      return uploadLogFile2Qc(testRunId, logFileName, null);
+   }
+
+   /**
+    * Uploads a log file associated to test run id and records the number of upload attempts
+    * on the given test run.
+    *
+    * @param testRunId - test run id.
+    * @param logFileName - log file name that is being uploaded.
+    * @param testRunInfo - test run on which upload attempts are recorded, can be null.
+    * @return future of the log file object.
+    */
+   public CompletableFuture<LogFileInfo> uploadLogFile2Qc(long testRunId,
+                                                          final String logFileName,
+                                                          final TestRunInfo testRunInfo)
+   {
+      final QcRequest qcRequest = QcConnector.newLogUploadRequest(testRunId);
+      return restClient.uploadAsync(qcRequest, logFileName, QcXmlStreamParser.LOG_FILE)
+               .whenComplete((logFileInfo, error) -> {
+                  if (testRunInfo != null) {
+                     testRunInfo.setRequestAttempts(TestRunInfo.LOG_UPLOAD_REQUEST_PREFIX + logFileName,
+                              qcRequest.getAttempts());
+                  }
+                  if (logFileInfo != null) {
+                     log.info("Log file result data =" + logFileInfo);
+                  }
+               });
+   }
+
+   /**
+    * Posts a test run result and then uploads all its client log files to the new run.
+    * The log files are uploaded concurrently.
+    *
+    * @param testRunInfo - test run result information including client log file paths.
+    * @return future of the new testRun info object, completed once all log files are uploaded.
+    *         It is completed exceptionally if the post or any upload fails.
+    */
+   public CompletableFuture<TestRunInfo> postResultWithLogs(final TestRunInfo testRunInfo)
+   {
+      return postResult2Qc(testRunInfo).thenCompose(newTestRun -> {
+         List<String> logFilePaths = testRunInfo.getClientLogFilePaths();
+         if (newTestRun == null || logFilePaths == null || logFilePaths.isEmpty()) {
+            return CompletableFuture.completedFuture(newTestRun);
+         }
+         List<CompletableFuture<LogFileInfo>> uploads = new ArrayList<CompletableFuture<LogFileInfo>>();
+         for (String logFilePath : logFilePaths) {
+            uploads.add(uploadLogFile2Qc(newTestRun.getId(), logFilePath, testRunInfo));
+         }
+         return CompletableFuture.allOf(uploads.toArray(new CompletableFuture<?>[0]))
+                  .thenApply(done -> newTestRun);
+      });
+   }
+
+   /**
+    * Completes the returned future with the given value when the source future fails with NotFound.
+    */
+   private static <T> CompletableFuture<T> whenNotFound(CompletableFuture<T> source,
+                                                        final T value,
+                                                        final String warnMsg)
+   {
+      return source.handle((result, error) -> {
+         if (error == null) {
+            return result;
+         }
+         if (unwrap(error) instanceof NotFound) {
+            log.warn(warnMsg);
+            return value;
+         }
+         throw wrap(error);
+      });
+   }
+
+   private static Throwable unwrap(Throwable error)
+   {
+      return (error instanceof CompletionException && error.getCause() != null ? error.getCause()
+               : error);
+   }
+
+   private static CompletionException wrap(Throwable error)
+   {
+      return (error instanceof CompletionException ? (CompletionException) error
+               : new CompletionException(error));
+   }
+}
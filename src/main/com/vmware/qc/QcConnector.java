@@ -5,14 +5,27 @@
  */
 package com.vmware.qc;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-import org.apache.commons.configuration.XMLConfiguration;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,6 +33,7 @@ import org.slf4j.LoggerFactory;
 import com.vmware.qc.exception.NotFound;
 import com.vmware.qc.exception.TestInstanceNotFound;
 import com.vmware.qc.exception.TestSetNotFound;
+import com.vmware.qc.exception.UncheckedQcException;
 
 /**
  * This class exposes a list of QC functionalities to read/create/update information related to the test into the QC.
@@ -33,7 +47,19 @@ import com.vmware.qc.exception.TestSetNotFound;
  */
 public class QcConnector
 {
+   /**
+    * Maximum number of test instances returned in a page by QC web service.
+    */
+   public static final int TEST_INSTANCES_PAGE_SIZE = 500;
+
    private QcRestClient restClient;
+   private int prefetchDepth = QcConstants.QC_TESTINSTANCES_PREFETCH;
+   private int parallelism = QcConstants.QC_TESTINSTANCES_PARALLEL;
+   //page size of the QC server, learned from the responses and shared by all connectors.
+   private static volatile int pageSize = TEST_INSTANCES_PAGE_SIZE;
+   //index of the test instances of the testsets last searched by findTestInstance.
+   private TestInstanceIndex testInstanceIndex;
+   private List<Long> indexedTestSetIds;
    private final static Logger log = LoggerFactory.getLogger(QcConnector.class);
 
    public QcConnector()
@@ -41,6 +67,78 @@ public class QcConnector
       restClient = new QcRestClient();
    }
 
+   /**
+    * Set time [in milliseconds since epoch] by which every QC request made by this connector
+    * must be completed. Requests that cannot complete before it fail with DeadlineExceeded
+    * instead of being sent.
+    *
+    * @param deadline deadline, 0 for none.
+    */
+   public void setDeadline(long deadline)
+   {
+      restClient.setDeadline(deadline);
+   }
+
+   /**
+    * Set number of test instance pages requested ahead of the page being read by
+    * {@link #iterateTestInstances(List)}. Default is qc.testinstances.prefetch.
+    *
+    * @param prefetchDepth number of pages, 0 to request the pages one after another.
+    */
+   public void setPrefetchDepth(int prefetchDepth)
+   {
+      this.prefetchDepth = Math.max(0, prefetchDepth);
+   }
+
+   /**
+    * Return number of test instance pages requested ahead of the page being read.
+    */
+   public int getPrefetchDepth()
+   {
+      return prefetchDepth;
+   }
+
+   /**
+    * Set maximum number of test instance pages requested at once by {@link #getTestInstances(List)}.
+    * Default is qc.testinstances.parallel.
+    *
+    * @param parallelism number of pages, at least 1.
+    */
+   public void setParallelism(int parallelism)
+   {
+      this.parallelism = Math.max(1, parallelism);
+   }
+
+   /**
+    * Return maximum number of test instance pages requested at once by {@link #getTestInstances(List)}.
+    */
+   public int getParallelism()
+   {
+      return parallelism;
+   }
+
+   /**
+    * Return number of test instances the QC server returns in a full page. It starts as
+    * {@link #TEST_INSTANCES_PAGE_SIZE} and is learned from the first page whose total shows that
+    * more pages follow.
+    */
+   public int getPageSize()
+   {
+      return pageSize;
+   }
+
+   /**
+    * Records the page size of the QC server, as seen in the first page of a paged response whose
+    * total shows that more pages follow.
+    */
+   static void learnPageSize(int size)
+   {
+      if (size > 0 && size != pageSize) {
+         log.info("Learned QC test instance page size :{}, expected :{}", size, pageSize);
+         pageSize = size;
+      }
+   }
+
    /**
     * Retrieves all test set under a specific testset folder in QC.
     *
@@ -52,25 +150,37 @@ public class QcConnector
    public Map<Long, String> getTestSets(String testSetFolderPath)
       throws Exception
    {
-      Map<Long, String> testSets = null;
+      TestSetRegistry testSetRegistry = getTestSetRegistry(testSetFolderPath);
+      return (testSetRegistry != null ? new HashMap<Long, String>(testSetRegistry.asMap()) : null);
+   }
+
+   /**
+    * Retrieves all test sets under a specific testset folder and its sub-folders in QC, indexed by
+    * id and by name. If qc.testset.ids is configured, only those test sets are registered, without
+    * names.
+    *
+    * @param testSetFolderPath - testset folder path [ Example : Root\\MN.Next\\Beta\\Cycle1\\CoreVC\\VC-ESX50i ].
+    * @return test set registry, null if no test set is found.
+    */
+   public TestSetRegistry getTestSetRegistry(String testSetFolderPath)
+      throws Exception
+   {
+      TestSetRegistry testSetRegistry = null;
       /*
        * FIXME: If testSetIds are provided then work with that
        */
-        if (QcConstants.QC_TESTSET_IDS != null && QcConstants.QC_TESTSET_IDS.length > 0) {
-            testSets = new HashMap<Long, String>();
-            for (String testSetId : QcConstants.QC_TESTSET_IDS) {
-                testSets.put(Long.valueOf(testSetId.trim()), "");
-            }
-        } else {
-           List<TestSetInfo> testSetInfos = getTestSets(testSetFolderPath, true);
-           if (testSetInfos != null) {
-              testSets = new HashMap<Long, String>();
-              for(TestSetInfo testSetInfo : testSetInfos) {
-                 testSets.put(testSetInfo.getId(), testSetInfo.getName());
-              }
-           }
-        }
-      return testSets;
+      if (QcConstants.QC_TESTSET_IDS != null && QcConstants.QC_TESTSET_IDS.length > 0) {
+         testSetRegistry = new TestSetRegistry();
+         for (String testSetId : QcConstants.QC_TESTSET_IDS) {
+            testSetRegistry.add(Long.valueOf(testSetId.trim()), "", null);
+         }
+      } else {
+         List<TestSetInfo> testSetInfos = getTestSets(testSetFolderPath, true);
+         if (testSetInfos != null) {
+            testSetRegistry = new TestSetRegistry(testSetInfos);
+         }
+      }
+      return testSetRegistry;
    }
 
    /**
@@ -86,11 +196,7 @@ public class QcConnector
    {
       List<TestSetInfo> testSetInfos = null;
       try {
-         QcRequest qcRequest = new QcRequest(QcConstants.QC_ENDPOINT_URL
-                  + "/test-sets");
-         qcRequest.addField("folderPath", testSetFolderPath + "\\");
-         XMLConfiguration testsetsData = restClient.get(qcRequest);
-         testSetInfos = QcXmlConfigUtil.getTestSets(testsetsData);
+         testSetInfos = restClient.get(newTestSetsRequest(testSetFolderPath), QcXmlStreamParser.TEST_SETS);
       } catch (NotFound nf) {
          log.warn("No test sets found in the folder :" + testSetFolderPath);
       }
@@ -101,38 +207,137 @@ public class QcConnector
        */
       if (testSetInfos != null && includeSubFolders) {
          long targetFolderId = testSetInfos.get(0).getParentFolderId();
-         XMLConfiguration testSetTree = getTestSetTree(targetFolderId, true);
-         testSetInfos = QcXmlConfigUtil.getTestSetsFromTestSetTree(testSetTree);
+         testSetInfos = getTestSetTree(targetFolderId, true);
       }
       return testSetInfos;
    }
 
    /**
-    * Returns a TestCases from QC TestPlan by its ids
+    * Returns a TestCases from QC TestPlan by its ids. Every distinct id is requested once
+    * [see {@link #loadTestCases(List)}], and the test case is returned for every occurrence of its id.
     *
     * @param testcaseIds
-    * @return List<QcTestCase>
+    * @return List<QcTestCase> in the order of the ids, null if none is found.
     * @throws Exception
     */
    public List<QcTestCase> getTestCases(List<Long> testcaseIds) throws Exception {
+       TestCaseBatch batch = loadTestCases(testcaseIds);
        List<QcTestCase> testCases = new ArrayList<QcTestCase>();
        for (Long testcaseId : testcaseIds) {
-           QcRequest qcRequest = new QcRequest(QcConstants.QC_ENDPOINT_URL + "/test-case/" + testcaseId);
-           try {
-               XMLConfiguration config = restClient.get(qcRequest);
-               testCases.add(QcXmlConfigUtil.getTestcase(config));
-           } catch (NotFound notFound) {
-               log.warn("No testcase found for testCase id: " + testcaseId);
+           QcTestCase testCase = batch.getTestCase(testcaseId);
+           if (testCase != null) {
+               testCases.add(testCase);
            }
        }
+       if (!batch.getNotFoundIds().isEmpty()) {
+           log.warn("No testcase found for testCase ids: " + batch.getNotFoundIds());
+       }
        return testCases.size() > 0 ? testCases : null;
    }
 
+   /**
+    * Loads test cases from QC TestPlan by their ids. Duplicate ids are requested once, and
+    * up to qc.testcases.parallel requests are in flight at a time. Test cases found in
+    * {@link QcTestCaseCache} are not requested, unless qc.testcase.cache.refresh is set.
+    *
+    * @param testcaseIds test case ids.
+    * @return test cases found in the order of the ids, and the ids no test case is found for.
+    * @throws Exception the first exception other than NotFound thrown by a request. No new
+    *         requests are sent after it.
+    */
+   public TestCaseBatch loadTestCases(List<Long> testcaseIds) throws Exception
+   {
+      return loadTestCases(testcaseIds, QcConstants.QC_TESTCASE_CACHE_REFRESH);
+   }
+
+   /**
+    * Loads test cases from QC TestPlan by their ids [see {@link #loadTestCases(List)}].
+    *
+    * @param testcaseIds test case ids.
+    * @param refresh if this flag is true, all test cases are requested from QC and the cached
+    *          ones are replaced.
+    * @return test cases found in the order of the ids, and the ids no test case is found for.
+    */
+   public TestCaseBatch loadTestCases(List<Long> testcaseIds,
+                                      boolean refresh)
+                                      throws Exception
+   {
+      Set<Long> distinctIds = new LinkedHashSet<Long>(testcaseIds);
+      QcTestCaseCache testCaseCache = (QcTestCaseCache.isEnabled() ? QcTestCaseCache.getInstance() : null);
+      Map<Long, QcTestCase> cachedTestCases = new HashMap<Long, QcTestCase>();
+      if (testCaseCache != null && !refresh) {
+         for (Long testcaseId : distinctIds) {
+            QcTestCase testCase = testCaseCache.get(testcaseId);
+            if (testCase != null) {
+               cachedTestCases.put(testcaseId, testCase);
+            }
+         }
+      }
+      Map<Long, CompletableFuture<QcTestCase>> requests = new LinkedHashMap<Long, CompletableFuture<QcTestCase>>();
+      final Semaphore inFlight = new Semaphore(QcConstants.QC_TESTCASES_PARALLEL);
+      final AtomicBoolean failed = new AtomicBoolean(false);
+      for (Long testcaseId : distinctIds) {
+         if (cachedTestCases.containsKey(testcaseId)) {
+            continue;
+         }
+         inFlight.acquire();
+         if (failed.get()) {
+            inFlight.release();
+            break;
+         }
+         CompletableFuture<QcTestCase> request = restClient.getAsync(newTestCaseRequest(testcaseId),
+                  QcXmlStreamParser.TEST_CASE);
+         request.whenComplete((testCase, error) -> {
+            if (error != null && !(unwrap(error) instanceof NotFound)) {
+               failed.set(true);
+            }
+            inFlight.release();
+         });
+         requests.put(testcaseId, request);
+      }
+      TestCaseBatch batch = new TestCaseBatch();
+      Exception firstError = null;
+      for (Long testcaseId : distinctIds) {
+         if (cachedTestCases.containsKey(testcaseId)) {
+            batch.addTestCase(testcaseId, cachedTestCases.get(testcaseId));
+            continue;
+         }
+         CompletableFuture<QcTestCase> request = requests.get(testcaseId);
+         if (request == null) {
+            continue;
+         }
+         try {
+            QcTestCase testCase = request.join();
+            batch.addTestCase(testcaseId, testCase);
+            if (testCaseCache != null && testCase != null) {
+               testCaseCache.put(testcaseId, testCase);
+            }
+         } catch (CompletionException ce) {
+            Throwable cause = unwrap(ce);
+            if (cause instanceof NotFound) {
+               batch.addNotFoundId(testcaseId);
+            } else if (firstError == null) {
+               firstError = (cause instanceof Exception ? (Exception) cause : ce);
+            }
+         }
+      }
+      if (testCaseCache != null) {
+         testCaseCache.save();
+      }
+      if (firstError != null) {
+         throw firstError;
+      }
+      log.info("Loaded " + distinctIds.size() + " distinct test cases for " + testcaseIds.size()
+               + " ids [" + cachedTestCases.size() + " from cache, " + requests.size()
+               + " requested] :" + batch);
+      return batch;
+   }
+
    /**
     * Gets testset id for a given testset name under a specific testset folder path in QC.
     *
     * @param testSetFolderPath - testset folder path.
-    * @param testsetName - testset name.
+    * @param testsetName - testset name, or folder name\testset name [see {@link TestSetRegistry}].
     * @return testset id.
     */
    public long getTestSetId(String testSetFolderPath,
@@ -140,10 +345,10 @@ public class QcConnector
                             throws Exception
    {
       long testSetId = 0;
-      Map<Long, String> testsets = getTestSets(testSetFolderPath);
+      TestSetRegistry testsets = getTestSetRegistry(testSetFolderPath);
       log.info("Retrieved TestSets :" + testsets);
       if (testsets != null) {
-         testSetId = QcUtil.getIdByName(testsets, testsetName);
+         testSetId = testsets.getId(testsetName);
       }
       if (testSetId == 0) {
          throw new TestSetNotFound("No test set is found for test set name :"
@@ -154,6 +359,8 @@ public class QcConnector
 
    /**
     * Gets a list of test instances from QC associated to specific test sets.
+    * Once the first page reports the total number of test instances, the remaining pages are
+    * requested {@link #getParallelism()} at a time and merged in page order.
     *
     * @param testSetId - list of testset ids.
     * @return list of test instances. If no test set or test instances are
@@ -162,40 +369,53 @@ public class QcConnector
    public List<TestInstanceInfo> getTestInstances(List<Long> testSetIds) throws Exception
    {
       List<TestInstanceInfo> allTestInstances = new ArrayList<TestInstanceInfo>();
-      List<TestInstanceInfo> testInstances = null;
-      int startIndex = 1;
-      do {
-         testInstances = getTestInstances(testSetIds, startIndex);
-         if (testInstances != null && !testInstances.isEmpty()) {
-            allTestInstances.addAll(testInstances);
-            startIndex = startIndex + testInstances.size();
+      try {
+         Iterator<TestInstanceInfo> testInstances = new TestInstanceIterator(testSetIds,
+                  Math.max(prefetchDepth, parallelism - 1));
+         while (testInstances.hasNext()) {
+            allTestInstances.add(testInstances.next());
          }
-      } while(testInstances != null && testInstances.size() >= 500);
+      } catch (UncheckedQcException uqe) {
+         throw (Exception) uqe.getCause();
+      }
       return (allTestInstances != null && !allTestInstances.isEmpty() ? allTestInstances
                : null);
    }
 
    /**
-    * Gets a list of test instances from QC associated to specific test sets using start index.
+    * Returns an iterator over the test instances associated to specific test sets.
+    * Test instances are requested from QC a page at a time, so the caller can start processing
+    * test instances as soon as the first page arrives.
     *
-    * @param testSetId - list of testset ids.
-    * @param startIndex - Index of starting test instance.
-    * @return list of test instances that contain only max of 500(limitation by HPQC Webservice API).
-    *            If no test set or test instances are found, return NULL.
+    * The first page is requested alone. While a page is read, the next {@link #getPrefetchDepth()}
+    * pages are already requested, so their round trips overlap the processing of the current page.
+    * At most prefetch depth + 1 pages are held in memory. When QC reports the total number of test
+    * instances, no page is requested beyond it; otherwise paging stops at the first page that is not
+    * full, and the requests of pages prefetched beyond it are cancelled.
+    *
+    * A QC request failing inside hasNext() is thrown as UncheckedQcException whose cause is
+    * the exception thrown by the request.
+    *
+    * @param testSetIds - list of testset ids.
+    * @return iterator of test instances, empty if no test set or test instances are found.
     */
-   private List<TestInstanceInfo> getTestInstances(List<Long> testSetIds, int startIndex) throws Exception
+   public Iterator<TestInstanceInfo> iterateTestInstances(List<Long> testSetIds)
    {
-      List<TestInstanceInfo> testInstances = null;
-      QcRequest qcRequest = new QcRequest(QcConstants.QC_ENDPOINT_URL + "/test-instances");
-      qcRequest.addField("testSetIDs", testSetIds);
-      qcRequest.addField("startIndex", startIndex);
-      try {
-         XMLConfiguration config = restClient.get(qcRequest);
-         testInstances = QcXmlConfigUtil.getTestInstances(config);
-      } catch(NotFound notFound) {
-         log.warn("No test instances found for testsets :" + testSetIds);
-      }
-      return testInstances;
+      return new TestInstanceIterator(testSetIds, prefetchDepth);
+   }
+
+   /**
+    * Returns a sequential stream of the test instances associated to specific test sets.
+    * Pages are requested from QC lazily as the stream is consumed [see {@link #iterateTestInstances(List)}],
+    * so short-circuiting operations [Ex : filter(..).findFirst()] stop requesting pages early.
+    *
+    * @param testSetIds - list of testset ids.
+    * @return stream of test instances.
+    */
+   public Stream<TestInstanceInfo> streamTestInstances(List<Long> testSetIds)
+   {
+      return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+               iterateTestInstances(testSetIds), Spliterator.ORDERED | Spliterator.NONNULL), false);
    }
 
    /**
@@ -208,11 +428,8 @@ public class QcConnector
       throws Exception
    {
       TestInstanceInfo testInstance = null;
-      QcRequest qcRequest = new QcRequest(QcConstants.QC_ENDPOINT_URL
-               + "/test-instance/" + testInstanceId);
       try {
-         XMLConfiguration testInstanceData = restClient.get(qcRequest);
-         testInstance = QcXmlConfigUtil.getTestInstanceInfo(testInstanceData);
+         testInstance = restClient.get(newTestInstanceRequest(testInstanceId), QcXmlStreamParser.TEST_INSTANCE);
       } catch (NotFound notFound) {
          throw new TestInstanceNotFound("No test instance is found for Id #"
                   + testInstanceId);
@@ -230,6 +447,9 @@ public class QcConnector
     * @param testInstanceName - test instance name that is mapped to instance name in QC.
     *        If it is not specified, testInstanceName and testName are same.
     * @return test instance object. If the object is not found, then it returns NULL.
+    *
+    * The test instances of the testsets are indexed on the first call, and following calls for the same
+    * testsets are answered from the index without reading test instances again.
     */
    public TestInstanceInfo findTestInstance(String testSetFolderPath,
                                             String testsetName,
@@ -252,28 +472,22 @@ public class QcConnector
                testsetIds = Arrays.asList(testsetId);
             }
          } else {
-            Map<Long, String> testSets = getTestSets(testSetFolderPath);
+            TestSetRegistry testSets = getTestSetRegistry(testSetFolderPath);
             if (testSets != null) {
-               testsetIds = new ArrayList<Long>(testSets.keySet());
+               testsetIds = testSets.getIds();
             }
          }
          if (testsetIds != null) {
-            List<TestInstanceInfo> testInstances = getTestInstances(testsetIds);
-            if (testInstances != null) {
-               for(TestInstanceInfo testInstance : testInstances) {
-                  if (testName.equals(testInstance.getTestName())
-                           && testInstanceName1.equals(testInstance.getName())
-                           && (testsetName == null || testsetIds.get(0) == testInstance.getTestSetId())) {
-                     testInstanceInfo = testInstance;
-                     break;
-                  }
-               }
-            }
+            testInstanceInfo = getTestInstanceIndex(testsetIds).find(testName, testInstanceName1,
+                     (testsetName == null ? 0 : testsetIds.get(0)));
          } else {
             log.error("Couldn't find test set id for testset :"
                      + testsetName);
          }
       } catch (NotFound notFound) {
+      } catch (UncheckedQcException uqe) {
+         log.warn("Got an exception while getting test instances :"
+                  + uqe.getMessage());
       } catch (Exception ex) {
          log.warn("Got an exception while getting test instances :"
                   + ex.getMessage());
@@ -281,6 +495,25 @@ public class QcConnector
       return testInstanceInfo;
    }
 
+   /**
+    * Returns the index of the test instances of testsets. The index of the last testsets is kept.
+    */
+   private TestInstanceIndex getTestInstanceIndex(List<Long> testsetIds)
+   {
+      synchronized (this) {
+         if (testInstanceIndex != null && testsetIds.equals(indexedTestSetIds)) {
+            return testInstanceIndex;
+         }
+      }
+      TestInstanceIndex index = new TestInstanceIndex();
+      index.addAll(iterateTestInstances(testsetIds));
+      synchronized (this) {
+         testInstanceIndex = index;
+         indexedTestSetIds = new ArrayList<Long>(testsetIds);
+      }
+      return index;
+   }
+
    /**
     * Posts a test run result into QC using test instance id.
     *
@@ -309,6 +542,27 @@ public class QcConnector
     */
    public TestRunInfo postResult2Qc(TestRunInfo testRunInfo) throws Exception {
        TestRunInfo newTestRunInfo = null;
+       QcRequest qcRequest = newTestRunRequest(testRunInfo);
+       try {
+           newTestRunInfo = restClient.post(qcRequest, QcXmlStreamParser.TEST_RUN);
+       } finally {
+           testRunInfo.setRequestAttempts(TestRunInfo.RUN_POST_REQUEST, qcRequest.getAttempts());
+       }
+       if (newTestRunInfo != null) {
+           log.info("Test result is posted into QC successfully :\n" + newTestRunInfo);
+       } else {
+           log.error("Post test result to QC failed");
+       }
+       return newTestRunInfo;
+   }
+
+   /**
+    * Creates the request that posts a test run result into QC.
+    *
+    * @param testRunInfo - test run result information.
+    * @return request object.
+    */
+   static QcRequest newTestRunRequest(TestRunInfo testRunInfo) {
        QcRequest qcRequest = new QcRequest(QcConstants.QC_ENDPOINT_URL + "/run");
        StringBuffer body = new StringBuffer();
        body.append("tester=").append(testRunInfo.getUserId());
@@ -333,14 +587,7 @@ public class QcConnector
        qcRequest.setRequestBody(body.toString());
        qcRequest.addHeaderProperty("Accept", "application/xml");
        qcRequest.addHeaderProperty("Content-Type", "application/x-www-form-urlencoded");
-       XMLConfiguration testRunData = restClient.post(qcRequest);
-       newTestRunInfo = QcXmlConfigUtil.getTestRunInfo(testRunData);
-       if (newTestRunInfo != null) {
-           log.info("Test result is posted into QC successfully :\n" + newTestRunInfo);
-       } else {
-           log.error("Post test result to QC failed");
-       }
-       return newTestRunInfo;
+       return qcRequest;
    }
 
 
@@ -355,14 +602,35 @@ public class QcConnector
                                        String logFileName)
                                        throws Exception
    {
-      QcRequest qcRequest = new QcRequest(QcConstants.QC_ENDPOINT_URL + "/run/"
-               + testRunId + "/log-attachment");
-      qcRequest.addField("overwrite", true);
-      qcRequest.addHeaderProperty("Accept", "application/xml");
-      qcRequest.addHeaderProperty("Content-Type", "multipart/form-data;boundary="
-               + QcRequest.BOUNDARY);
-      XMLConfiguration uploadResultData = restClient.upload(qcRequest, logFileName);
-      return QcXmlConfigUtil.getLogFileInfo(uploadResultData);
+      return uploadLogFile2Qc(testRunId, logFileName, null);
+   }
+
+   /**
+    * Uploads a log file associated to test run id to its assigned log directory in QC repository
+    * and records the number of upload attempts on the given test run.
+    *
+    * @param testRunId - test run id.
+    * @param logFileName - log file name that is being uploaded.
+    * @param testRunInfo - test run on which upload attempts are recorded, can be null.
+    * @return log file object.
+    */
+   public LogFileInfo uploadLogFile2Qc(long testRunId,
+                                       String logFileName,
+                                       TestRunInfo testRunInfo)
+                                       throws Exception
+   {
+      QcRequest qcRequest = newLogUploadRequest(testRunId);
+      LogFileInfo logFileInfo = null;
+      try {
+         logFileInfo = restClient.upload(qcRequest, logFileName, QcXmlStreamParser.LOG_FILE);
+      } finally {
+         if (testRunInfo != null) {
+            testRunInfo.setRequestAttempts(TestRunInfo.LOG_UPLOAD_REQUEST_PREFIX + logFileName,
+                     qcRequest.getAttempts());
+         }
+      }
+      log.info("Log file result data =" + logFileInfo);
+      return logFileInfo;
    }
 
    /**
@@ -372,18 +640,245 @@ public class QcConnector
     * @param testSetFolderId - testset folder id.
     * @param viewOneLevelOnly - If this flag is set to true, only immediate sub-folders & testsets
     *          will be returned from the specified folder.
-    * @return XML object containing the sub-folder and testsets information.
+    * @return list of testsets in the folder and its sub-folders.
+    */
+   private List<TestSetInfo> getTestSetTree(Long testSetFolderId,
+                                            boolean viewOneLevelOnly)
+                                            throws Exception
+   {
+      return restClient.get(newTestSetTreeRequest(testSetFolderId, viewOneLevelOnly),
+               QcXmlStreamParser.TEST_SET_TREE);
+   }
+
+   /**
+    * Creates the request that reads test sets in a testset folder.
+    */
+   static QcRequest newTestSetsRequest(String testSetFolderPath)
+   {
+      QcRequest qcRequest = new QcRequest(QcConstants.QC_ENDPOINT_URL
+               + "/test-sets");
+      qcRequest.addField("folderPath", testSetFolderPath + "\\");
+      qcRequest.setCacheable(true);
+      return qcRequest;
+   }
+
+   /**
+    * Creates the request that reads sub-folders and testsets of a testset folder.
     */
-   private XMLConfiguration getTestSetTree(Long testSetFolderId,
-                                           boolean viewOneLevelOnly)
-                                           throws Exception
+   static QcRequest newTestSetTreeRequest(Long testSetFolderId,
+                                          boolean viewOneLevelOnly)
    {
       QcRequest qcRequest = new QcRequest(QcConstants.QC_ENDPOINT_URL + "/test-lab-tree");
       qcRequest.addField("folderID", testSetFolderId);
       qcRequest.addField("viewTestInstances", false);
       qcRequest.addField("viewOneLevelOnly", viewOneLevelOnly);
-      XMLConfiguration testsetXmlData = restClient.get(qcRequest);
-      return testsetXmlData;
+      qcRequest.setCacheable(true);
+      return qcRequest;
    }
 
+   /**
+    * Creates the request that reads a page of test instances of the given test sets.
+    */
+   static QcRequest newTestInstancesRequest(List<Long> testSetIds,
+                                            int startIndex)
+   {
+      QcRequest qcRequest = new QcRequest(QcConstants.QC_ENDPOINT_URL + "/test-instances");
+      qcRequest.addField("testSetIDs", testSetIds);
+      qcRequest.addField("startIndex", startIndex);
+      qcRequest.setCacheable(true);
+      return qcRequest;
+   }
+
+   /**
+    * Creates the request that reads a test instance by its id.
+    */
+   static QcRequest newTestInstanceRequest(long testInstanceId)
+   {
+      return new QcRequest(QcConstants.QC_ENDPOINT_URL
+               + "/test-instance/" + testInstanceId);
+   }
+
+   /**
+    * Creates the request that reads a test case by its id.
+    */
+   static QcRequest newTestCaseRequest(Long testcaseId)
+   {
+      return new QcRequest(QcConstants.QC_ENDPOINT_URL + "/test-case/" + testcaseId);
+   }
+
+   /**
+    * Creates the request that uploads a log file to a test run.
+    */
+   static QcRequest newLogUploadRequest(long testRunId)
+   {
+      QcRequest qcRequest = new QcRequest(QcConstants.QC_ENDPOINT_URL + "/run/"
+               + testRunId + "/log-attachment");
+      qcRequest.addField("overwrite", true);
+      qcRequest.addHeaderProperty("Accept", "application/xml");
+      qcRequest.addHeaderProperty("Content-Type", "multipart/form-data;boundary="
+               + QcRequest.BOUNDARY);
+      return qcRequest;
+   }
+
+   private static Throwable unwrap(Throwable error)
+   {
+      return (error instanceof CompletionException && error.getCause() != null ? error.getCause()
+               : error);
+   }
+
+   /**
+    * Iterator that reads test instances page by page. The first page is requested alone, as it tells
+    * the total number of test instances and the page size QC uses; then up to prefetchDepth page
+    * requests are kept in flight ahead of the page being read, at start indexes one page size apart,
+    * and they stop at the total. If a page comes back with another size than the one the requests in
+    * flight were sent with, they are discarded and re-sent from the next start index. Discarded page
+    * requests are cancelled, so they do not keep holding a connection.
+    */
+   private class TestInstanceIterator implements Iterator<TestInstanceInfo>
+   {
+      private final List<Long> testSetIds;
+      private final int prefetchDepth;
+      private final Deque<PageRequest> pageRequests = new ArrayDeque<PageRequest>();
+      private List<TestInstanceInfo> page = null;
+      private int pageIndex = 0;
+      private int nextStartIndex = 1;
+      private int total = -1;
+      private boolean firstPageRead = false;
+      private boolean lastPage = false;
+
+      TestInstanceIterator(List<Long> testSetIds,
+                           int prefetchDepth)
+      {
+         this.testSetIds = testSetIds;
+         this.prefetchDepth = Math.max(0, prefetchDepth);
+      }
+
+      public boolean hasNext()
+      {
+         while (page == null || pageIndex >= page.size()) {
+            if (lastPage) {
+               return false;
+            }
+            try {
+               page = nextPage();
+            } catch (Exception ex) {
+               page = null;
+               endPaging();
+               throw new UncheckedQcException(ex);
+            }
+            pageIndex = 0;
+         }
+         return true;
+      }
+
+      public TestInstanceInfo next()
+      {
+         if (!hasNext()) {
+            throw new NoSuchElementException();
+         }
+         TestInstanceInfo testInstance = page.get(pageIndex);
+         //release the reference so consumed test instances can be collected.
+         page.set(pageIndex++, null);
+         return testInstance;
+      }
+
+      /**
+       * Returns the test instances of the next page, after topping up the page requests in flight.
+       * Marks the last page.
+       */
+      private List<TestInstanceInfo> nextPage() throws Exception
+      {
+         int depth = (firstPageRead ? prefetchDepth : 0);
+         while (pageRequests.size() <= depth && (total < 0 || nextStartIndex <= total)) {
+            pageRequests.add(new PageRequest(nextStartIndex, pageSize));
+            nextStartIndex += pageSize;
+         }
+         PageRequest pageRequest = pageRequests.poll();
+         if (pageRequest == null) {
+            endPaging();
+            return null;
+         }
+         TestInstancePage testInstancePage;
+         try {
+            testInstancePage = pageRequest.page.join();
+         } catch (CompletionException ce) {
+            if (ce.getCause() instanceof Exception) {
+               throw (Exception) ce.getCause();
+            }
+            throw ce;
+         }
+         firstPageRead = true;
+         int size = (testInstancePage != null ? testInstancePage.size() : 0);
+         if (testInstancePage != null && testInstancePage.getTotal() >= 0) {
+            total = testInstancePage.getTotal();
+         }
+         int endIndex = pageRequest.startIndex + size - 1;
+         if (size == 0 || (total >= 0 ? endIndex >= total : size < pageRequest.pageSize)) {
+            endPaging();
+         } else if (total >= 0 && size != pageRequest.pageSize) {
+            //QC returned a different page size than expected, requests in flight have wrong start indexes.
+            if (pageRequest.startIndex == 1) {
+               learnPageSize(size);
+            }
+            discardPageRequests();
+            nextStartIndex = endIndex + 1;
+         }
+         return (size > 0 ? testInstancePage.getTestInstances() : null);
+      }
+
+      /**
+       * Stops paging and discards the pages requested beyond the last page.
+       */
+      private void endPaging()
+      {
+         lastPage = true;
+         discardPageRequests();
+      }
+
+      private void discardPageRequests()
+      {
+         for (PageRequest pageRequest : pageRequests) {
+            pageRequest.request.cancel();
+            pageRequest.page.cancel(false);
+         }
+         pageRequests.clear();
+      }
+
+      /**
+       * Request of the page at startIndex. A missing page completes the future with null.
+       */
+      private class PageRequest
+      {
+         private final int startIndex;
+         private final int pageSize;
+         private final QcRequest request;
+         private final CompletableFuture<TestInstancePage> page;
+
+         PageRequest(final int startIndex,
+                     int pageSize)
+         {
+            this.startIndex = startIndex;
+            this.pageSize = pageSize;
+            this.request = newTestInstancesRequest(testSetIds, startIndex);
+            this.page = restClient.getAsync(request,
+                     QcXmlStreamParser.TEST_INSTANCE_PAGE).handle((testInstancePage, error) -> {
+               if (error == null) {
+                  return testInstancePage;
+               }
+               Throwable cause = unwrap(error);
+               if (cause instanceof NotFound) {
+                  if (startIndex == 1) {
+                     log.warn("No test instances found for testsets :" + testSetIds);
+                  } else {
+                     log.debug("No test instances found from index {} for testsets :{}", startIndex,
+                              testSetIds);
+                  }
+                  return null;
+               }
+               throw (error instanceof CompletionException ? (CompletionException) error
+                        : new CompletionException(cause));
+            });
+         }
+      }
+   }
 }
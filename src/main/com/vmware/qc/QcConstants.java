@@ -26,6 +26,57 @@ public final class QcConstants
    public static List<Integer> QC_BUILD_NUMBERS;
    public static final String QC_TESTSET_NAME;
    public static final String[] QC_TESTSET_IDS;
+   public static final int QC_HTTP_POOL_SIZE;
+   public static final int QC_HTTP_IDLE_TIMEOUT;
+   public static final int QC_RETRY_MAX_ATTEMPTS;
+   public static final long QC_RETRY_INITIAL_BACKOFF;
+   public static final long QC_RETRY_MAX_BACKOFF;
+   public static final double QC_RETRY_BUDGET_RATIO;
+   public static final int QC_RETRY_BUDGET_MAX;
+   public static final double QC_BREAKER_FAILURE_RATE;
+   public static final int QC_BREAKER_WINDOW_SIZE;
+   public static final int QC_BREAKER_MIN_CALLS;
+   public static final long QC_BREAKER_OPEN_DURATION;
+   public static final String QC_SPOOL_DIR;
+   public static final long QC_SPOOL_DRAIN_INTERVAL;
+   public static final double QC_RATELIMIT_GET_RATE;
+   public static final int QC_RATELIMIT_GET_BURST;
+   public static final double QC_RATELIMIT_RUN_POST_RATE;
+   public static final int QC_RATELIMIT_RUN_POST_BURST;
+   public static final double QC_RATELIMIT_LOG_UPLOAD_RATE;
+   public static final int QC_RATELIMIT_LOG_UPLOAD_BURST;
+   public static final int QC_CONCURRENCY_INITIAL;
+   public static final int QC_CONCURRENCY_MIN;
+   public static final int QC_CONCURRENCY_MAX;
+   public static final long QC_CONCURRENCY_LATENCY_THRESHOLD;
+   public static final double QC_CONCURRENCY_BACKOFF_RATIO;
+   public static final long QC_HTTP_CONNECT_TIMEOUT;
+   public static final long QC_HTTP_READ_TIMEOUT_GET;
+   public static final long QC_HTTP_READ_TIMEOUT_RUN_POST;
+   public static final long QC_HTTP_READ_TIMEOUT_LOG_UPLOAD;
+   public static final long QC_JOB_TIMEOUT;
+   public static final int QC_POST_WORKERS;
+   public static final int QC_POST_QUEUE_CAPACITY;
+   public static final String QC_POST_QUEUE_POLICY;
+   public static final long QC_POST_QUEUE_TIMEOUT;
+   public static final String QC_POST_THREADS;
+   public static final String QC_POST_COALESCE;
+   public static final long QC_POST_COALESCE_WINDOW;
+   public static final int QC_POST_OUTCOMES_RETAINED;
+   public static final boolean QC_CACHE_ENABLE;
+   public static final String QC_CACHE_DIR;
+   public static final int QC_CACHE_MEMORY_ENTRIES;
+   public static final int QC_TESTINSTANCES_PREFETCH;
+   public static final int QC_TESTINSTANCES_PARALLEL;
+   public static final int QC_TESTCASES_PARALLEL;
+   public static final boolean QC_TESTCASE_CACHE_ENABLE;
+   public static final String QC_TESTCASE_CACHE_FILE;
+   public static final long QC_TESTCASE_CACHE_TTL;
+   public static final int QC_TESTCASE_CACHE_MAX_ENTRIES;
+   public static final boolean QC_TESTCASE_CACHE_REFRESH;
+   public static final boolean QC_SNAPSHOT_ENABLE;
+   public static final String QC_SNAPSHOT_DIR;
+   public static final long QC_SNAPSHOT_REFRESH_AGE;
 
    public QcConstants()
    {
@@ -53,6 +104,57 @@ public final class QcConstants
                 (!QcUtil.isEmpty(configData.getString("qc.testset.ids")) ? configData.getString("qc.testset.ids")
                         : null);
         QC_TESTSET_IDS = testidsString != null ? testidsString.split(",") : null;
+      QC_HTTP_POOL_SIZE = configData.getInt("qc.http.pool.size", 20);
+      QC_HTTP_IDLE_TIMEOUT = configData.getInt("qc.http.idle.timeout", 60);
+      QC_RETRY_MAX_ATTEMPTS = configData.getInt("qc.retry.max.attempts", 5);
+      QC_RETRY_INITIAL_BACKOFF = configData.getLong("qc.retry.initial.backoff", 2000);
+      QC_RETRY_MAX_BACKOFF = configData.getLong("qc.retry.max.backoff", 30000);
+      QC_RETRY_BUDGET_RATIO = configData.getDouble("qc.retry.budget.ratio", 0.2);
+      QC_RETRY_BUDGET_MAX = configData.getInt("qc.retry.budget.max", 100);
+      QC_BREAKER_FAILURE_RATE = configData.getDouble("qc.breaker.failure.rate", 0.5);
+      QC_BREAKER_WINDOW_SIZE = configData.getInt("qc.breaker.window.size", 20);
+      QC_BREAKER_MIN_CALLS = configData.getInt("qc.breaker.min.calls", 10);
+      QC_BREAKER_OPEN_DURATION = configData.getLong("qc.breaker.open.duration", 30000);
+      QC_SPOOL_DIR = configData.getString("qc.spool.dir", "qc-spool");
+      QC_SPOOL_DRAIN_INTERVAL = configData.getLong("qc.spool.drain.interval", 5000);
+      QC_RATELIMIT_GET_RATE = configData.getDouble("qc.ratelimit.get.rate", 20);
+      QC_RATELIMIT_GET_BURST = configData.getInt("qc.ratelimit.get.burst", 20);
+      QC_RATELIMIT_RUN_POST_RATE = configData.getDouble("qc.ratelimit.run.post.rate", 10);
+      QC_RATELIMIT_RUN_POST_BURST = configData.getInt("qc.ratelimit.run.post.burst", 10);
+      QC_RATELIMIT_LOG_UPLOAD_RATE = configData.getDouble("qc.ratelimit.log.upload.rate", 2);
+      QC_RATELIMIT_LOG_UPLOAD_BURST = configData.getInt("qc.ratelimit.log.upload.burst", 5);
+      QC_CONCURRENCY_INITIAL = configData.getInt("qc.concurrency.initial", 8);
+      QC_CONCURRENCY_MIN = configData.getInt("qc.concurrency.min", 1);
+      QC_CONCURRENCY_MAX = configData.getInt("qc.concurrency.max", 64);
+      QC_CONCURRENCY_LATENCY_THRESHOLD = configData.getLong("qc.concurrency.latency.threshold", 10000);
+      QC_CONCURRENCY_BACKOFF_RATIO = configData.getDouble("qc.concurrency.backoff.ratio", 0.5);
+      QC_HTTP_CONNECT_TIMEOUT = configData.getLong("qc.http.connect.timeout", 10000);
+      QC_HTTP_READ_TIMEOUT_GET = configData.getLong("qc.http.read.timeout.get", 60000);
+      QC_HTTP_READ_TIMEOUT_RUN_POST = configData.getLong("qc.http.read.timeout.run.post", 60000);
+      QC_HTTP_READ_TIMEOUT_LOG_UPLOAD = configData.getLong("qc.http.read.timeout.log.upload", 300000);
+      QC_JOB_TIMEOUT = configData.getLong("qc.job.timeout", 1800000);
+      QC_POST_WORKERS = Math.max(1, configData.getInt("qc.post.workers", 16));
+      QC_POST_QUEUE_CAPACITY = Math.max(1, configData.getInt("qc.post.queue.capacity", 1000));
+      QC_POST_QUEUE_POLICY = configData.getString("qc.post.queue.policy", "block");
+      QC_POST_QUEUE_TIMEOUT = configData.getLong("qc.post.queue.timeout", 30000);
+      QC_POST_THREADS = configData.getString("qc.post.threads", "platform");
+      QC_POST_COALESCE = configData.getString("qc.post.coalesce", "off");
+      QC_POST_COALESCE_WINDOW = Math.max(0, configData.getLong("qc.post.coalesce.window", 0));
+      QC_POST_OUTCOMES_RETAINED = Math.max(0, configData.getInt("qc.post.outcomes.retained", 10000));
+      QC_CACHE_ENABLE = configData.getBoolean("qc.cache.enable", true);
+      QC_CACHE_DIR = configData.getString("qc.cache.dir", "qc-cache");
+      QC_CACHE_MEMORY_ENTRIES = configData.getInt("qc.cache.memory.entries", 32);
+      QC_TESTINSTANCES_PREFETCH = configData.getInt("qc.testinstances.prefetch", 2);
+      QC_TESTINSTANCES_PARALLEL = configData.getInt("qc.testinstances.parallel", 8);
+      QC_TESTCASES_PARALLEL = Math.max(1, configData.getInt("qc.testcases.parallel", 8));
+      QC_TESTCASE_CACHE_ENABLE = configData.getBoolean("qc.testcase.cache.enable", true);
+      QC_TESTCASE_CACHE_FILE = configData.getString("qc.testcase.cache.file", "qc-cache/testcases.bin");
+      QC_TESTCASE_CACHE_TTL = configData.getLong("qc.testcase.cache.ttl", 604800000L);
+      QC_TESTCASE_CACHE_MAX_ENTRIES = configData.getInt("qc.testcase.cache.max.entries", 100000);
+      QC_TESTCASE_CACHE_REFRESH = configData.getBoolean("qc.testcase.cache.refresh", false);
+      QC_SNAPSHOT_ENABLE = configData.getBoolean("qc.snapshot.enable", false);
+      QC_SNAPSHOT_DIR = configData.getString("qc.snapshot.dir", "qc-snapshot");
+      QC_SNAPSHOT_REFRESH_AGE = configData.getLong("qc.snapshot.refresh.age", 600000);
    }
 
 }
@@ -13,6 +13,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Future;
 
 /**
  * The object of this class encapsulates HTTP request information like
@@ -30,6 +31,12 @@ public class QcRequest
    private Map<String, List<Object>> customFields = Collections.synchronizedMap(new LinkedHashMap<String, List<Object>>());
    private Properties headerProps = new Properties();
    private String requestBody = null;
+   private volatile int attempts = 0;
+   private volatile long permitWaitTime = 0;
+   private volatile long deadline = 0;
+   private volatile boolean cancelled = false;
+   private volatile Future<?> exchange = null;
+   private boolean cacheable = false;
    public static final String BOUNDARY = "*****";
 
    /**
@@ -188,4 +195,105 @@ public class QcRequest
         this.requestBody = requestBody;
     }
 
+    /**
+     * Return number of attempts made to send this request, retries included.
+     *
+     * @return attempts.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Set number of attempts made to send this request.
+     *
+     * @param attempts attempts.
+     */
+    void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    /**
+     * Return true if the response of this request can be kept in the response cache.
+     *
+     * @return cacheable flag.
+     */
+    public boolean isCacheable() {
+        return cacheable;
+    }
+
+    /**
+     * @param cacheable true if the response of this request can be kept in the response cache
+     *            and revalidated with conditional requests.
+     */
+    public void setCacheable(boolean cacheable) {
+        this.cacheable = cacheable;
+    }
+
+    /**
+     * Return time [in milliseconds since epoch] by which this request must be completed, 0 if none.
+     *
+     * @return deadline.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Set time [in milliseconds since epoch] by which this request must be completed.
+     * An attempt is not started, and a retry not scheduled, once it cannot complete before the deadline;
+     * the timeout of an attempt is cut to the time left.
+     *
+     * @param deadline deadline, 0 for none.
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Return total milliseconds this request waited for rate limiter permits, retries included.
+     *
+     * @return permit wait time.
+     */
+    public long getPermitWaitTime() {
+        return permitWaitTime;
+    }
+
+    /**
+     * @param waitTime milliseconds waited for a rate limiter permit by one attempt.
+     */
+    void addPermitWaitTime(long waitTime) {
+        this.permitWaitTime += waitTime;
+    }
+
+    /**
+     * Cancels an asynchronous request whose response is no longer needed. An attempt not sent yet
+     * is not sent, and the attempt in flight is aborted, so its connection is given back at once.
+     */
+    public void cancel() {
+        cancelled = true;
+        Future<?> current = exchange;
+        if (current != null) {
+            current.cancel(true);
+        }
+    }
+
+    /**
+     * Return true if this request is cancelled.
+     *
+     * @return cancelled flag.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @param exchange attempt in flight, aborted if this request is cancelled.
+     */
+    void setExchange(Future<?> exchange) {
+        this.exchange = exchange;
+        if (cancelled) {
+            exchange.cancel(true);
+        }
+    }
 }
@@ -0,0 +1,285 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk cache of QC responses that carry a validator [ETag / Last-Modified header].
+ * Responses are keyed by the full request url. Every entry is kept in two files named after
+ * the SHA-256 of the url: the response body, and a properties file holding the url and validators.
+ * Files are written to a temporary name and renamed, so readers never see a partial entry.
+ * The most recently used responses are also kept parsed in memory, so that a response
+ * revalidated with 304 is returned as a copy instead of being parsed again.
+ * It is a singleton class.
+ *
+ * Configuration properties:
+ *  qc.cache.enable - enables the cache.
+ *  qc.cache.dir - directory holding the cached responses.
+ *  qc.cache.memory.entries - number of parsed responses kept in memory.
+ */
+public class QcResponseCache
+{
+   private static QcResponseCache responseCache = new QcResponseCache(new File(QcConstants.QC_CACHE_DIR),
+            QcConstants.QC_CACHE_MEMORY_ENTRIES);
+   private static final String BODY_SUFFIX = ".body";
+   private static final String META_SUFFIX = ".meta";
+   private final static Logger log = LoggerFactory.getLogger(QcResponseCache.class);
+
+   private final File cacheDir;
+   private final Map<String, ParsedEntry> parsedEntries;
+
+   /**
+    * Cached response of a url.
+    */
+   public static class Entry
+   {
+      private final String url;
+      private final String etag;
+      private final String lastModified;
+      private final File bodyFile;
+
+      Entry(String url, String etag, String lastModified, File bodyFile)
+      {
+         this.url = url;
+         this.etag = etag;
+         this.lastModified = lastModified;
+         this.bodyFile = bodyFile;
+      }
+
+      public String getUrl()
+      {
+         return url;
+      }
+
+      /**
+       * Return ETag of the cached response, or null.
+       */
+      public String getEtag()
+      {
+         return etag;
+      }
+
+      /**
+       * Return Last-Modified of the cached response, or null.
+       */
+      public String getLastModified()
+      {
+         return lastModified;
+      }
+
+      private String getValidator()
+      {
+         return etag + "|" + lastModified;
+      }
+   }
+
+   private static class ParsedEntry
+   {
+      private final String validator;
+      private final XMLConfiguration xmlData;
+
+      ParsedEntry(String validator, XMLConfiguration xmlData)
+      {
+         this.validator = validator;
+         this.xmlData = xmlData;
+      }
+   }
+
+   /**
+    * Constructor.
+    *
+    * @param cacheDir directory holding the cached responses. It is created if it does not exist.
+    * @param memoryEntries number of parsed responses kept in memory.
+    */
+   public QcResponseCache(File cacheDir, final int memoryEntries)
+   {
+      this.cacheDir = cacheDir;
+      this.parsedEntries = new LinkedHashMap<String, ParsedEntry>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<String, ParsedEntry> eldest)
+         {
+            return size() > memoryEntries;
+         }
+      };
+   }
+
+   /**
+    * Returns a singleton instance of this class.
+    */
+   public static QcResponseCache getInstance()
+   {
+      return responseCache;
+   }
+
+   /**
+    * Returns the cached response of the url.
+    *
+    * @param url request url.
+    * @return cache entry, or null if the url is not cached.
+    */
+   public Entry lookup(String url)
+   {
+      String key = getKey(url);
+      File metaFile = new File(cacheDir, key + META_SUFFIX);
+      File bodyFile = new File(cacheDir, key + BODY_SUFFIX);
+      if (!metaFile.isFile() || !bodyFile.isFile()) {
+         return null;
+      }
+      Properties meta = new Properties();
+      InputStream in = null;
+      try {
+         in = new FileInputStream(metaFile);
+         meta.load(in);
+      } catch (IOException ioe) {
+         log.warn("Unable to read cache entry " + metaFile + " :" + ioe);
+         return null;
+      } finally {
+         closeQuietly(in);
+      }
+      if (!url.equals(meta.getProperty("url"))) {
+         return null;
+      }
+      return new Entry(url, meta.getProperty("etag"), meta.getProperty("lastModified"), bodyFile);
+   }
+
+   /**
+    * Stores a response body in the cache. The body stream is read to the end.
+    *
+    * @param url request url.
+    * @param etag ETag response header, or null.
+    * @param lastModified Last-Modified response header, or null.
+    * @param body response body.
+    * @return the new cache entry.
+    */
+   public Entry store(String url,
+                      String etag,
+                      String lastModified,
+                      InputStream body)
+                      throws IOException
+   {
+      String key = getKey(url);
+      if (!cacheDir.isDirectory() && !cacheDir.mkdirs() && !cacheDir.isDirectory()) {
+         throw new IOException("Unable to create cache directory :" + cacheDir);
+      }
+      File bodyFile = new File(cacheDir, key + BODY_SUFFIX);
+      File metaFile = new File(cacheDir, key + META_SUFFIX);
+      Properties meta = new Properties();
+      meta.setProperty("url", url);
+      if (etag != null) {
+         meta.setProperty("etag", etag);
+      }
+      if (lastModified != null) {
+         meta.setProperty("lastModified", lastModified);
+      }
+      //body first: a meta file always describes the body next to it or an older one being replaced.
+      File tmpBody = File.createTempFile(key, BODY_SUFFIX, cacheDir);
+      File tmpMeta = File.createTempFile(key, META_SUFFIX, cacheDir);
+      try {
+         Files.copy(body, tmpBody.toPath(), StandardCopyOption.REPLACE_EXISTING);
+         OutputStream out = new FileOutputStream(tmpMeta);
+         try {
+            meta.store(out, null);
+         } finally {
+            out.close();
+         }
+         metaFile.delete();
+         Files.move(tmpBody.toPath(), bodyFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                  StandardCopyOption.ATOMIC_MOVE);
+         Files.move(tmpMeta.toPath(), metaFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                  StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+         tmpBody.delete();
+         tmpMeta.delete();
+      }
+      synchronized (parsedEntries) {
+         parsedEntries.remove(url);
+      }
+      log.debug("Cached response of {} [{}]", url, etag != null ? etag : lastModified);
+      return new Entry(url, etag, lastModified, bodyFile);
+   }
+
+   /**
+    * Opens the body of a cached response. The caller must close the stream.
+    *
+    * @param entry cache entry.
+    * @return body stream.
+    */
+   public InputStream openBody(Entry entry) throws IOException
+   {
+      return new FileInputStream(entry.bodyFile);
+   }
+
+   /**
+    * Returns the cached response as XML object. Every caller gets its own copy.
+    *
+    * @param entry cache entry.
+    * @return XML object.
+    */
+   public XMLConfiguration load(Entry entry) throws Exception
+   {
+      ParsedEntry parsed;
+      synchronized (parsedEntries) {
+         parsed = parsedEntries.get(entry.getUrl());
+      }
+      if (parsed == null || !parsed.validator.equals(entry.getValidator())) {
+         XMLConfiguration xmlData = new XMLConfiguration();
+         InputStream in = new FileInputStream(entry.bodyFile);
+         try {
+            xmlData.load(in);
+         } finally {
+            closeQuietly(in);
+         }
+         parsed = new ParsedEntry(entry.getValidator(), xmlData);
+         synchronized (parsedEntries) {
+            parsedEntries.put(entry.getUrl(), parsed);
+         }
+      }
+      return (XMLConfiguration) parsed.xmlData.clone();
+   }
+
+   /**
+    * Return file name of the cache entry of the url.
+    */
+   private static String getKey(String url)
+   {
+      try {
+         byte[] digest = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+         StringBuilder key = new StringBuilder();
+         for (byte b : digest) {
+            key.append(String.format("%02x", b));
+         }
+         return key.toString();
+      } catch (Exception ex) {
+         throw new IllegalStateException("SHA-256 is not available", ex);
+      }
+   }
+
+   private static void closeQuietly(InputStream in)
+   {
+      if (in != null) {
+         try {
+            in.close();
+         } catch (IOException ioe) {
+            log.error("Got exception while closing cache file :" + ioe);
+         }
+      }
+   }
+}
@@ -0,0 +1,25 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc;
+
+import java.io.InputStream;
+
+/**
+ * Decodes the body of a successful QC response into its object form.
+ * The handler reads the body stream while it is received from QC [or from the response cache];
+ * it must not close the stream.
+ *
+ * @param <T> type of the decoded response.
+ */
+public interface QcResponseHandler<T>
+{
+   /**
+    * Decodes the response body.
+    *
+    * @param body response body stream.
+    * @return decoded response.
+    */
+   T handle(InputStream body) throws Exception;
+}
@@ -4,32 +4,89 @@
  */
 package com.vmware.qc;
 
-import java.io.BufferedOutputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.configuration.ConfigurationUtils;
 import org.apache.commons.configuration.XMLConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.vmware.qc.exception.DeadlineExceeded;
 import com.vmware.qc.exception.NotFound;
 import com.vmware.qc.exception.QcException;
+import com.vmware.qc.exception.QcUnavailable;
+import com.vmware.qc.http.CircuitBreaker;
+import com.vmware.qc.http.QcHttpResponse;
+import com.vmware.qc.http.QcHttpTransport;
+import com.vmware.qc.http.RequestType;
+import com.vmware.qc.http.RetryPolicy;
 
 /**
  * This is a low level class and it makes call directly to QC REST web services API
  * to access/store information related to test into QC. Every request sent to web service
  * is authenticated with API key.
+ * Requests are sent through the shared {@link QcHttpTransport}, so connections to QC are
+ * pooled and kept alive across all instances of this class.
+ * Every operation is also available in a non-blocking form that returns a CompletableFuture.
+ * Responses are returned as XML objects, or decoded straight from the response stream by a
+ * {@link QcResponseHandler} [Ex : the StAX based handlers of {@link QcXmlStreamParser}].
+ * Requests failing with a transient error are retried according to {@link RetryPolicy}.
+ * While {@link CircuitBreaker} considers QC down, requests fail fast with QcUnavailable.
+ * Every attempt first waits for a permit of the rate limit of its {@link RequestType}; the time
+ * waited is recorded on the QC request.
+ * Each attempt times out after the read timeout of its request type, and no attempt is started
+ * or retried once the deadline of the request [or of this client] has passed.
+ * Responses of cacheable GET requests are kept in the {@link QcResponseCache} and revalidated
+ * with If-None-Match / If-Modified-Since, so unchanged data is answered with 304 by QC.
  */
 public class QcRestClient
 {
    private final static Logger log = LoggerFactory.getLogger(QcRestClient.class);
+   private static final QcResponseHandler<XMLConfiguration> XML_HANDLER = new QcResponseHandler<XMLConfiguration>() {
+      public XMLConfiguration handle(InputStream body) throws Exception
+      {
+         XMLConfiguration xmlData = new XMLConfiguration();
+         xmlData.load(body);
+         return xmlData;
+      }
+   };
+   private final QcHttpTransport transport = QcHttpTransport.getInstance();
+   private final RetryPolicy retryPolicy = RetryPolicy.getDefault();
+   private final CircuitBreaker circuitBreaker = CircuitBreaker.getDefault();
+   private final QcResponseCache responseCache = QcResponseCache.getInstance();
+   private volatile long deadline = 0;
+
+   /**
+    * Set time [in milliseconds since epoch] by which every request sent by this client must be completed.
+    * A request with its own earlier deadline keeps it.
+    *
+    * @param deadline deadline, 0 for none.
+    */
+   public void setDeadline(long deadline)
+   {
+      this.deadline = deadline;
+   }
+
+   /**
+    * Return deadline of the requests sent by this client, 0 if none.
+    */
+   public long getDeadline()
+   {
+      return deadline;
+   }
 
    /**
     * Gets the information related to the test [ Ex : Test Instance / Test Set / Test Run ] from the QC
@@ -42,43 +99,56 @@ public class QcRestClient
    public XMLConfiguration get(QcRequest request)
                                throws QcException, Exception
    {
-      XMLConfiguration xmlData = null;
-      log.debug("Requested Url :" + request.getURL());
-
-      //Open HTTP connection to the url
-      HttpURLConnection conn = (HttpURLConnection) new URL(request.getURL()).openConnection();
-      conn.setRequestMethod("GET");
+      return get(request, XML_HANDLER);
+   }
 
-      long opStartTime = System.currentTimeMillis();
+   /**
+    * Gets the information related to the test from the QC and decodes the response with the given handler.
+    *
+    * @param request - a specific QC functionality is requested through the request object, that encapsulates http request details.
+    * @param handler decodes the response body [Ex : {@link QcXmlStreamParser#TEST_INSTANCES}].
+    * @return decoded response.
+    * @throws NotFound exception is thrown if requested test information is not found in QC.
+    *         QcException is thrown if any other web sevice related exception is received.
+    */
+   public <T> T get(QcRequest request,
+                    QcResponseHandler<T> handler)
+                    throws QcException, Exception
+   {
+      log.debug("Requested Url :" + request.getURL());
+      QcResponseCache.Entry cached = lookupCache(request);
+      return send(RequestType.GET, request, newGetRequest(request, cached), true, cached, handler,
+               HttpURLConnection.HTTP_OK);
+   }
 
-      //Add header properties.
-      Properties headerProps = request.getDefaultHeaderProperties();
-      for(String propName : headerProps.stringPropertyNames()) {
-         conn.setRequestProperty(propName, headerProps.getProperty(propName));
-      }
+   /**
+    * Gets the information related to the test from the QC without blocking the caller.
+    *
+    * @param request - a specific QC functionality is requested through the request object, that encapsulates http request details.
+    * @return future of the XML object containing the test related information requested.
+    *         The future is completed exceptionally with NotFound/QcException as {@link #get(QcRequest)} throws them.
+    */
+   public CompletableFuture<XMLConfiguration> getAsync(QcRequest request)
+   {
+      return getAsync(request, XML_HANDLER);
+   }
 
-      if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
-         xmlData = new XMLConfiguration();
-         xmlData.load(conn.getInputStream());
-      } else {
-         QcException qcException = new QcException("Response code :"
-                  + conn.getResponseCode() + ", Error message :"
-                  + QcUtil.readData(conn.getErrorStream()));
-         if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
-            log.warn(qcException.getMessage());
-            throw new NotFound();
-         } else {
-            throw qcException;
-         }
-      }
-      long opEndTime = System.currentTimeMillis();
-      log.debug("Time taken to process QC request: {} secs",
-               (opEndTime - opStartTime) / 1000);
-      if (log.isTraceEnabled()) {
-         log.trace("GET Response XML data :\n"
-                  + ConfigurationUtils.toString(xmlData));
-      }
-      return xmlData;
+   /**
+    * Gets the information related to the test from the QC without blocking the caller and decodes
+    * the response with the given handler. A response no longer needed is abandoned with
+    * {@link QcRequest#cancel()}, which also aborts the request in flight.
+    *
+    * @param request - a specific QC functionality is requested through the request object, that encapsulates http request details.
+    * @param handler decodes the response body.
+    * @return future of the decoded response.
+    */
+   public <T> CompletableFuture<T> getAsync(QcRequest request,
+                                            QcResponseHandler<T> handler)
+   {
+      log.debug("Requested Url :" + request.getURL());
+      QcResponseCache.Entry cached = lookupCache(request);
+      return sendAsync(RequestType.GET, request, newGetRequest(request, cached), true, cached, handler,
+               HttpURLConnection.HTTP_OK);
    }
 
    /**
@@ -91,46 +161,51 @@ public class QcRestClient
    public XMLConfiguration post(QcRequest request)
                                throws QcException, Exception
    {
-      log.debug("Requested Url :" + request.getURL());
-
-      XMLConfiguration xmlResponse = null;
+      return post(request, XML_HANDLER);
+   }
 
-      //Open HTTP connection to the url
-      HttpURLConnection conn = (HttpURLConnection) new URL(request.getURL()).openConnection();
-      conn.setRequestMethod("POST");
+   /**
+    * Posts the information related to the test to the QC and decodes the response with the given handler.
+    *
+    * @param request - a specific QC functionality is requested through the request object, that encapsulates http request details.
+    * @param handler decodes the response body [Ex : {@link QcXmlStreamParser#TEST_RUN}].
+    * @return decoded response.
+    * @throws QcException is thrown if any web service related exception is received.
+    */
+   public <T> T post(QcRequest request,
+                     QcResponseHandler<T> handler)
+                     throws QcException, Exception
+   {
+      log.debug("Requested Url :" + request.getURL());
+      return send(RequestType.RUN_POST, request, newPostRequest(request), false, null, handler,
+               HttpURLConnection.HTTP_CREATED, HttpURLConnection.HTTP_OK);
+   }
 
-      long opStartTime = System.currentTimeMillis();
+   /**
+    * Posts the information related to the test to the QC without blocking the caller.
+    *
+    * @param request - a specific QC functionality is requested through the request object, that encapsulates http request details.
+    * @return future of the XML object containing the test related information posted.
+    */
+   public CompletableFuture<XMLConfiguration> postAsync(QcRequest request)
+   {
+      return postAsync(request, XML_HANDLER);
+   }
 
-      //Add header properties.
-      Properties headerProps = request.getHeaderProperties();
-      for(String propName : headerProps.stringPropertyNames()) {
-         conn.setRequestProperty(propName, headerProps.getProperty(propName));
-      }
-
-        conn.setDoOutput(true);
-        BufferedOutputStream bos = new BufferedOutputStream(conn.getOutputStream());
-        String bodyStr = request.getRequestBody() != null ? request.getRequestBody() : "Sending output";
-        log.debug("Request body:" + bodyStr);
-        bos.write(bodyStr.getBytes());
-        bos.flush();
-      if (conn.getResponseCode() == HttpURLConnection.HTTP_CREATED ||
-               conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
-         xmlResponse = new XMLConfiguration();
-         xmlResponse.load(conn.getInputStream());
-      } else {
-         QcException qcException = new QcException("Response code :"
-                  + conn.getResponseCode() + ", Error message :"
-                  + QcUtil.readData(conn.getErrorStream()));
-         throw qcException;
-      }
-      long opEndTime = System.currentTimeMillis();
-      log.debug("Time taken to process QC request: {} secs",
-               (opEndTime - opStartTime) / 1000);
-      if (log.isTraceEnabled()) {
-         log.trace("POST Response XML data :\n"
-                  + ConfigurationUtils.toString(xmlResponse));
-      }
-      return xmlResponse;
+   /**
+    * Posts the information related to the test to the QC without blocking the caller and decodes
+    * the response with the given handler.
+    *
+    * @param request - a specific QC functionality is requested through the request object, that encapsulates http request details.
+    * @param handler decodes the response body.
+    * @return future of the decoded response.
+    */
+   public <T> CompletableFuture<T> postAsync(QcRequest request,
+                                             QcResponseHandler<T> handler)
+   {
+      log.debug("Requested Url :" + request.getURL());
+      return sendAsync(RequestType.RUN_POST, request, newPostRequest(request), false, null, handler,
+               HttpURLConnection.HTTP_CREATED, HttpURLConnection.HTTP_OK);
    }
 
    /**
@@ -143,95 +218,542 @@ public class QcRestClient
    public XMLConfiguration upload(QcRequest request,
                                   String fileName)
                                   throws QcException, Exception
+   {
+      XMLConfiguration xmlResponse = upload(request, fileName, XML_HANDLER);
+      log.info("Log file result data =" + QcXmlConfigUtil.getLogFileInfo(xmlResponse));
+      return xmlResponse;
+   }
+
+   /**
+    * Uploads a file into the QC repository and decodes the response with the given handler.
+    *
+    * @param request - QC file upload functionality is requested through the request object, that encapsulates http request details.
+    * @param fileName Name of the file that is being uploaded.
+    * @param handler decodes the response body [Ex : {@link QcXmlStreamParser#LOG_FILE}].
+    * @return decoded response.
+    */
+   public <T> T upload(QcRequest request,
+                       String fileName,
+                       QcResponseHandler<T> handler)
+                       throws QcException, Exception
    {
       log.debug("Requested Url :" + request.getURL());
-      XMLConfiguration xmlResponse = null;
+      //not idempotent : a repeated upload QC already stored adds a duplicate attachment to the run.
+      return send(RequestType.LOG_UPLOAD, request, newUploadRequest(request, fileName),
+               false, null, handler, HttpURLConnection.HTTP_CREATED);
+   }
 
-     //Open HTTP connection to the url
-      HttpURLConnection conn = (HttpURLConnection) new URL(request.getURL()).openConnection();
-      conn.setRequestMethod("POST");
+   /**
+    * Uploads a file into the QC repository without blocking the caller.
+    *
+    * @param request - QC file upload functionality is requested through the request object, that encapsulates http request details.
+    * @param fileName Name of the file that is being uploaded.
+    * @return future of the XML object containing the log file information.
+    */
+   public CompletableFuture<XMLConfiguration> uploadAsync(QcRequest request,
+                                                          String fileName)
+   {
+      return uploadAsync(request, fileName, XML_HANDLER).thenApply(xmlResponse -> {
+         log.info("Log file result data =" + QcXmlConfigUtil.getLogFileInfo(xmlResponse));
+         return xmlResponse;
+      });
+   }
 
-      long opStartTime = System.currentTimeMillis();
+   /**
+    * Uploads a file into the QC repository without blocking the caller and decodes the response
+    * with the given handler.
+    *
+    * @param request - QC file upload functionality is requested through the request object, that encapsulates http request details.
+    * @param fileName Name of the file that is being uploaded.
+    * @param handler decodes the response body.
+    * @return future of the decoded response.
+    */
+   public <T> CompletableFuture<T> uploadAsync(QcRequest request,
+                                               String fileName,
+                                               QcResponseHandler<T> handler)
+   {
+      log.debug("Requested Url :" + request.getURL());
+      HttpRequest httpRequest;
+      try {
+         httpRequest = newUploadRequest(request, fileName);
+      } catch (FileNotFoundException fnfe) {
+         return failedFuture(fnfe);
+      }
+      //not idempotent, see upload.
+      return sendAsync(RequestType.LOG_UPLOAD, request, httpRequest, false, null, handler,
+               HttpURLConnection.HTTP_CREATED);
+   }
 
-      //Add header properties.
-      Properties headerProps = request.getHeaderProperties();
-      for(String propName : headerProps.stringPropertyNames()) {
-         conn.setRequestProperty(propName, headerProps.getProperty(propName));
+   /**
+    * Sends the request and decodes the response with the handler.
+    * Transient failures are retried as decided by the retry policy; the number of attempts
+    * made is recorded on the QC request.
+    *
+    * @param requestType type of the request.
+    * @param request QC request.
+    * @param httpRequest http request.
+    * @param idempotent true if the request can be repeated safely.
+    * @param cached cached response the request is conditional on, or null.
+    * @param handler decodes the response body.
+    * @param expectedCodes response codes that are treated as success.
+    * @return decoded response.
+    */
+   private <T> T send(RequestType requestType,
+                      QcRequest request,
+                      HttpRequest httpRequest,
+                      boolean idempotent,
+                      QcResponseCache.Entry cached,
+                      QcResponseHandler<T> handler,
+                      int... expectedCodes)
+                      throws QcException, Exception
+   {
+      long opStartTime = System.currentTimeMillis();
+      retryPolicy.onRequest();
+      int attempt = 0;
+      while (true) {
+         attempt++;
+         request.setAttempts(attempt);
+         getTimeLeft(requestType, request);
+         checkAvailable(requestType, request);
+         HttpRequest attemptRequest;
+         try {
+            recordPermitWait(requestType, request, transport.acquirePermit(requestType));
+            attemptRequest = withTimeout(requestType, request, httpRequest);
+         } catch (Exception ex) {
+            circuitBreaker.onIgnored();
+            throw ex;
+         }
+         QcHttpResponse response = null;
+         try {
+            response = transport.execute(attemptRequest);
+         } catch (IOException ioe) {
+            circuitBreaker.onFailure();
+            if (!retryPolicy.shouldRetry(ioe, attempt, idempotent)) {
+               throw ioe;
+            }
+            waitBeforeRetry(requestType, request, attempt, ioe.toString());
+            continue;
+         } catch (InterruptedException ie) {
+            circuitBreaker.onIgnored();
+            throw ie;
+         }
+         recordOutcome(response.getStatusCode());
+         try {
+            if (retryPolicy.shouldRetry(response.getStatusCode(), attempt, idempotent)) {
+               waitBeforeRetry(requestType, request, attempt, "Response code :" + response.getStatusCode());
+               continue;
+            }
+            return readResponse(requestType, request, cached, response, opStartTime, handler, expectedCodes);
+         } finally {
+            response.close();
+         }
       }
+   }
 
-      conn.setDoInput(true);
-      conn.setDoOutput(true);
-      DataOutputStream dos = null;
-      FileInputStream fis = null;
-      File file = new File(fileName);
+   /**
+    * Sends the request asynchronously and decodes the response with the handler.
+    * Retries are scheduled after the backoff delay without holding a thread.
+    */
+   private <T> CompletableFuture<T> sendAsync(RequestType requestType,
+                                              QcRequest request,
+                                              HttpRequest httpRequest,
+                                              boolean idempotent,
+                                              QcResponseCache.Entry cached,
+                                              QcResponseHandler<T> handler,
+                                              int... expectedCodes)
+   {
+      retryPolicy.onRequest();
+      return sendAsync(requestType, request, httpRequest, idempotent, cached, handler, 1,
+               System.currentTimeMillis(), expectedCodes);
+   }
+
+   /**
+    * Makes an attempt of the request and chains the next attempt if it is to be retried.
+    */
+   private <T> CompletableFuture<T> sendAsync(final RequestType requestType,
+                                              final QcRequest request,
+                                              final HttpRequest httpRequest,
+                                              final boolean idempotent,
+                                              final QcResponseCache.Entry cached,
+                                              final QcResponseHandler<T> handler,
+                                              final int attempt,
+                                              final long opStartTime,
+                                              final int... expectedCodes)
+   {
+      request.setAttempts(attempt);
+      if (request.isCancelled()) {
+         return failedFuture(new CancellationException(requestType + " " + request.getURL() + " is cancelled"));
+      }
       try {
-         dos = new DataOutputStream(conn.getOutputStream());
-
-         // Send a file
-         String lineEnd = "\r\n";
-         String twoHyphens = "--";
-         dos.writeBytes(twoHyphens + QcRequest.BOUNDARY + lineEnd);
-         dos.writeBytes("Content-Disposition: form-data; name=\"file\";filename=\""
-                  + file.getName() + "\"" + lineEnd);
-         dos.writeBytes(lineEnd);
-
-         // create a buffer of maximum size
-         int maxBufferSize = 1*1024*1024;
-         fis = new FileInputStream(new File(fileName));
-         int bytesAvailable = fis.available();
-         int bufferSize = Math.min(bytesAvailable, maxBufferSize);
-         byte[] buffer = new byte[bufferSize];
-
-         // read file and write it into form.
-         while (fis.read(buffer, 0, bufferSize)> 0)
-         {
-          dos.write(buffer, 0, bufferSize);
-          bytesAvailable = fis.available();
-          bufferSize = Math.min(bytesAvailable, maxBufferSize);
+         getTimeLeft(requestType, request);
+         checkAvailable(requestType, request);
+      } catch (QcException qe) {
+         return failedFuture(qe);
+      }
+      return transport.acquirePermitAsync(requestType).thenCompose(waitTime -> {
+         recordPermitWait(requestType, request, waitTime);
+         HttpRequest attemptRequest;
+         try {
+            attemptRequest = withTimeout(requestType, request, httpRequest);
+         } catch (DeadlineExceeded de) {
+            return QcRestClient.<QcHttpResponse>failedFuture(de);
+         }
+         CompletableFuture<QcHttpResponse> exchange = transport.executeAsync(attemptRequest);
+         request.setExchange(exchange);
+         return exchange;
+      }).handle((response, error) -> {
+         String retryReason = null;
+         if (error != null) {
+            Throwable cause = (error instanceof CompletionException && error.getCause() != null ? error.getCause()
+                     : error);
+            if (cause instanceof IOException) {
+               circuitBreaker.onFailure();
+            } else {
+               circuitBreaker.onIgnored();
+            }
+            if (!retryPolicy.shouldRetry(cause, attempt, idempotent)) {
+               return QcRestClient.<T>failedFuture(cause);
+            }
+            retryReason = cause.toString();
+         } else if (recordOutcome(response.getStatusCode()) && retryPolicy.shouldRetry(response.getStatusCode(), attempt, idempotent)) {
+            retryReason = "Response code :" + response.getStatusCode();
          }
+         if (retryReason != null) {
+            closeQuietly(response);
+            long backoff = retryPolicy.getBackoff(attempt);
+            try {
+               checkRetryDeadline(requestType, request, backoff, retryReason);
+            } catch (DeadlineExceeded de) {
+               return QcRestClient.<T>failedFuture(de);
+            }
+            logRetry(requestType, request, attempt, retryReason, backoff);
+            Executor delayed = CompletableFuture.delayedExecutor(backoff, TimeUnit.MILLISECONDS);
+            return CompletableFuture.runAsync(() -> { }, delayed).thenCompose(
+                     ignore -> sendAsync(requestType, request, httpRequest, idempotent, cached, handler,
+                              attempt + 1, opStartTime, expectedCodes));
+         }
+         try {
+            return CompletableFuture.completedFuture(readResponse(requestType, request, cached, response,
+                     opStartTime, handler, expectedCodes));
+         } catch (Exception ex) {
+            return QcRestClient.<T>failedFuture(ex);
+         } finally {
+            closeQuietly(response);
+         }
+      }).thenCompose(result -> result);
+   }
+
+   /**
+    * Throws QcUnavailable if the circuit breaker does not let the request through.
+    */
+   private void checkAvailable(RequestType requestType,
+                               QcRequest request)
+                               throws QcUnavailable
+   {
+      if (!circuitBreaker.allowRequest()) {
+         throw new QcUnavailable("QC is unavailable [circuit breaker is " + circuitBreaker.getState()
+                  + "], " + requestType + " " + request.getURL() + " is not sent");
+      }
+   }
+
+   /**
+    * Records the time an attempt waited for its rate limiter permit.
+    */
+   private void recordPermitWait(RequestType requestType,
+                                 QcRequest request,
+                                 long waitTime)
+   {
+      request.addPermitWaitTime(waitTime);
+      if (log.isDebugEnabled()) {
+         log.debug(requestType + " " + request.getURL() + " waited " + waitTime
+                  + " ms for rate limiter permit [total :" + request.getPermitWaitTime() + " ms]");
+      }
+   }
+
+   /**
+    * Reports the response code to the circuit breaker. 5xx and 429 responses are counted
+    * as QC being unavailable, any other response as QC being available.
+    *
+    * @return true, so that it can be chained in conditions.
+    */
+   private boolean recordOutcome(int statusCode)
+   {
+      if (statusCode >= 500 || statusCode == 429) {
+         circuitBreaker.onFailure();
+      } else {
+         circuitBreaker.onSuccess();
+      }
+      return true;
+   }
+
+   /**
+    * Sleeps for the backoff delay of the given attempt.
+    */
+   private void waitBeforeRetry(RequestType requestType,
+                                QcRequest request,
+                                int attempt,
+                                String reason)
+                                throws DeadlineExceeded, InterruptedException
+   {
+      long backoff = retryPolicy.getBackoff(attempt);
+      checkRetryDeadline(requestType, request, backoff, reason);
+      logRetry(requestType, request, attempt, reason, backoff);
+      Thread.sleep(backoff);
+   }
+
+   /**
+    * Returns milliseconds left before the deadline of the request, or Long.MAX_VALUE if it has none.
+    *
+    * @throws DeadlineExceeded if the deadline has passed.
+    */
+   private long getTimeLeft(RequestType requestType,
+                            QcRequest request)
+                            throws DeadlineExceeded
+   {
+      long requestDeadline = request.getDeadline();
+      if (deadline > 0 && (requestDeadline <= 0 || deadline < requestDeadline)) {
+         requestDeadline = deadline;
+      }
+      if (requestDeadline <= 0) {
+         return Long.MAX_VALUE;
+      }
+      long timeLeft = requestDeadline - System.currentTimeMillis();
+      if (timeLeft <= 0) {
+         throw new DeadlineExceeded("Deadline exceeded, " + requestType + " " + request.getURL()
+                  + " is not sent");
+      }
+      return timeLeft;
+   }
+
+   /**
+    * Returns the http request of an attempt with its timeout set to the read timeout of the
+    * request type, cut to the time left before the deadline.
+    */
+   private HttpRequest withTimeout(RequestType requestType,
+                                   QcRequest request,
+                                   HttpRequest httpRequest)
+                                   throws DeadlineExceeded
+   {
+      long timeout = Math.min(transport.getReadTimeout(requestType), getTimeLeft(requestType, request));
+      return HttpRequest.newBuilder(httpRequest, (name, value) -> true)
+               .timeout(Duration.ofMillis(timeout)).build();
+   }
+
+   /**
+    * Throws DeadlineExceeded if the next attempt would start after the deadline of the request.
+    */
+   private void checkRetryDeadline(RequestType requestType,
+                                   QcRequest request,
+                                   long backoff,
+                                   String reason)
+                                   throws DeadlineExceeded
+   {
+      if (getTimeLeft(requestType, request) <= backoff) {
+         throw new DeadlineExceeded("Deadline exceeded, " + requestType + " " + request.getURL()
+                  + " is not retried [" + reason + "]");
+      }
+   }
 
-         // send multipart form data necesssary after file data.
-         dos.writeBytes(lineEnd);
-         dos.writeBytes(twoHyphens + QcRequest.BOUNDARY + twoHyphens + lineEnd);
-      } catch (Exception ex) {
-         log.error("Got exception while uploading file", ex);
-       } finally {
-          // close streams
-          try {
-             if (fis != null) {
-                fis.close();
-             }
-          } catch(IOException ioe) {
-             log.error("Got exception while closing file input stream :" + ioe);
-          }
-          try {
-             if (dos != null) {
-                dos.flush();
-                dos.close();
-             }
-          } catch(IOException ioe) {
-             log.error("Got exception while closing output stream :" + ioe);
-          }
-       }
-
-       if (conn.getResponseCode() == HttpURLConnection.HTTP_CREATED) {
-          xmlResponse = new XMLConfiguration();
-          xmlResponse.load(conn.getInputStream());
-       } else {
+   private void logRetry(RequestType requestType,
+                         QcRequest request,
+                         int attempt,
+                         String reason,
+                         long backoff)
+   {
+      log.warn(requestType + " " + request.getURL() + " failed in attempt " + attempt
+               + " [" + reason + "], retrying in " + backoff + " ms");
+   }
+
+   private static <T> CompletableFuture<T> failedFuture(Throwable error)
+   {
+      CompletableFuture<T> failed = new CompletableFuture<T>();
+      failed.completeExceptionally(error);
+      return failed;
+   }
+
+   private static void closeQuietly(QcHttpResponse response)
+   {
+      if (response != null) {
+         try {
+            response.close();
+         } catch (IOException ioe) {
+            log.error("Got exception while closing response :" + ioe);
+         }
+      }
+   }
+
+   /**
+    * Returns the cached response the request can be made conditional on, or null.
+    */
+   private QcResponseCache.Entry lookupCache(QcRequest request)
+   {
+      if (!QcConstants.QC_CACHE_ENABLE || !request.isCacheable()) {
+         return null;
+      }
+      return responseCache.lookup(request.getURL());
+   }
+
+   /**
+    * Decodes the response with the handler if the response code is one of the expected codes,
+    * else throws QcException [NotFound for GET of missing entity].
+    * A 304 response is answered from the cache; a response of a cacheable request that carries
+    * a validator is stored into the cache.
+    */
+   private <T> T readResponse(RequestType requestType,
+                              QcRequest request,
+                              QcResponseCache.Entry cached,
+                              QcHttpResponse response,
+                              long opStartTime,
+                              QcResponseHandler<T> handler,
+                              int... expectedCodes)
+                              throws QcException, Exception
+   {
+      T result = null;
+      boolean handled = false;
+      int responseCode = response.getStatusCode();
+      if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+         log.debug("Response of {} is not modified, using cached response", request.getURL());
+         result = readCached(cached, handler);
+         handled = true;
+      }
+      for (int expectedCode : expectedCodes) {
+         if (!handled && responseCode == expectedCode) {
+            String etag = response.getHeader("ETag");
+            String lastModified = response.getHeader("Last-Modified");
+            if (QcConstants.QC_CACHE_ENABLE && request.isCacheable()
+                     && (etag != null || lastModified != null)) {
+               result = readCached(responseCache.store(request.getURL(), etag,
+                        lastModified, response.getBody()), handler);
+            } else {
+               result = handler.handle(response.getBody());
+            }
+            handled = true;
+            break;
+         }
+      }
+      if (!handled) {
          QcException qcException = new QcException("Response code :"
-                  + conn.getResponseCode() + ", Error message :"
-                  + QcUtil.readData(conn.getErrorStream()));
-          throw qcException;
-       }
-       long opEndTime = System.currentTimeMillis();
-       log.debug("Time taken to process QC request: {} secs",
+                  + responseCode + ", Error message :"
+                  + QcUtil.readData(response.getBody()));
+         if (requestType == RequestType.GET && responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+            log.warn(qcException.getMessage());
+            throw new NotFound();
+         }
+         throw qcException;
+      }
+      long opEndTime = System.currentTimeMillis();
+      log.debug("Time taken to process QC request: {} secs",
                (opEndTime - opStartTime) / 1000);
-       if (log.isTraceEnabled()) {
-          log.trace("UPLOAD Response XML data :\n"
-                   + ConfigurationUtils.toString(xmlResponse));
-       }
-       log.info("Log file result data =" + QcXmlConfigUtil.getLogFileInfo(xmlResponse));
-       return xmlResponse;
+      if (log.isTraceEnabled()) {
+         log.trace(requestType + " Response data :\n"
+                  + (result instanceof XMLConfiguration ? ConfigurationUtils.toString((XMLConfiguration) result)
+                           : result));
+      }
+      return result;
+   }
+
+   /**
+    * Decodes a cached response with the handler. XML objects are served from the parsed
+    * responses the cache keeps in memory.
+    */
+   @SuppressWarnings("unchecked")
+   private <T> T readCached(QcResponseCache.Entry entry,
+                            QcResponseHandler<T> handler)
+                            throws Exception
+   {
+      if (handler == XML_HANDLER) {
+         return (T) responseCache.load(entry);
+      }
+      InputStream body = responseCache.openBody(entry);
+      try {
+         return handler.handle(body);
+      } finally {
+         body.close();
+      }
+   }
+
+   /**
+    * Creates GET request with default header properties. If a cached response is given,
+    * the request is made conditional on its validators.
+    */
+   private HttpRequest newGetRequest(QcRequest request,
+                                     QcResponseCache.Entry cached)
+   {
+      HttpRequest.Builder builder = newRequestBuilder(request,
+               request.getDefaultHeaderProperties());
+      if (cached != null) {
+         if (cached.getEtag() != null) {
+            builder.header("If-None-Match", cached.getEtag());
+         }
+         if (cached.getLastModified() != null) {
+            builder.header("If-Modified-Since", cached.getLastModified());
+         }
+      }
+      return builder.GET().build();
+   }
+
+   /**
+    * Creates POST request carrying the request body.
+    */
+   private HttpRequest newPostRequest(QcRequest request)
+   {
+      HttpRequest.Builder builder = newRequestBuilder(request,
+               request.getHeaderProperties());
+      String bodyStr = request.getRequestBody() != null ? request.getRequestBody() : "Sending output";
+      log.debug("Request body:" + bodyStr);
+      return builder.POST(HttpRequest.BodyPublishers.ofByteArray(bodyStr.getBytes())).build();
+   }
+
+   /**
+    * Creates multipart POST request carrying the file.
+    * The file is not loaded into memory; the multipart body is streamed from disk in fixed-size
+    * chunks with a precomputed content length, so heap usage does not depend on the file size.
+    *
+    * @param request QC request.
+    * @param fileName Name of the file that is being uploaded.
+    * @return http request.
+    * @throws FileNotFoundException if the file does not exist.
+    */
+   private HttpRequest newUploadRequest(QcRequest request,
+                                        String fileName)
+                                        throws FileNotFoundException
+   {
+      HttpRequest.Builder builder = newRequestBuilder(request,
+               request.getHeaderProperties());
+      File file = new File(fileName);
+
+      String lineEnd = "\r\n";
+      String twoHyphens = "--";
+      String preamble = twoHyphens + QcRequest.BOUNDARY + lineEnd
+               + "Content-Disposition: form-data; name=\"file\";filename=\""
+               + file.getName() + "\"" + lineEnd
+               + lineEnd;
+      // multipart form data necesssary after file data.
+      String epilogue = lineEnd + twoHyphens + QcRequest.BOUNDARY + twoHyphens + lineEnd;
+
+      HttpRequest.BodyPublisher multipartBody = HttpRequest.BodyPublishers.concat(
+               HttpRequest.BodyPublishers.ofByteArray(preamble.getBytes(StandardCharsets.UTF_8)),
+               HttpRequest.BodyPublishers.ofFile(file.toPath()),
+               HttpRequest.BodyPublishers.ofByteArray(epilogue.getBytes(StandardCharsets.UTF_8)));
+      log.debug("Uploading file {} with content length {}", fileName, multipartBody.contentLength());
+      return builder.POST(multipartBody).build();
+   }
+
+   /**
+    * Creates http request builder for the request url and adds header properties.
+    *
+    * @param request QC request.
+    * @param headerProps header properties to be added.
+    * @return request builder.
+    */
+   private HttpRequest.Builder newRequestBuilder(QcRequest request,
+                                                 Properties headerProps)
+   {
+      HttpRequest.Builder builder = transport.newRequestBuilder(request.getURL());
+      for(String propName : headerProps.stringPropertyNames()) {
+         builder.header(propName, headerProps.getProperty(propName));
+      }
+      return builder;
    }
 
 }
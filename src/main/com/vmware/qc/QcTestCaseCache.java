@@ -0,0 +1,275 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent cache of QcTestCase records keyed by test id. Test case attributes almost never
+ * change, so a test case loaded within the time to live is used instead of being requested again.
+ *
+ * The cache is kept in memory and saved in a single binary file :
+ *  magic, version, entry count, then per entry : test id, load time and the test case fields.
+ * The file is read once, on the first use of the cache, and written to a temporary name and renamed
+ * on save. When the cache holds more than the maximum number of entries, the least recently used
+ * entries are dropped.
+ * It is a singleton class.
+ *
+ * Configuration properties:
+ *  qc.testcase.cache.enable - enables the cache.
+ *  qc.testcase.cache.file - file holding the cached test cases.
+ *  qc.testcase.cache.ttl - milliseconds a cached test case is used before it is requested again.
+ *  qc.testcase.cache.max.entries - maximum number of cached test cases.
+ *  qc.testcase.cache.refresh - ignores the cached test cases and requests them all again.
+ */
+public class QcTestCaseCache
+{
+   private static final int MAGIC = 0x51435443; //"QCTC"
+   private static final int VERSION = 1;
+   private final static Logger log = LoggerFactory.getLogger(QcTestCaseCache.class);
+   private static QcTestCaseCache testCaseCache = new QcTestCaseCache(new File(
+            QcConstants.QC_TESTCASE_CACHE_FILE), QcConstants.QC_TESTCASE_CACHE_TTL,
+            QcConstants.QC_TESTCASE_CACHE_MAX_ENTRIES);
+
+   private final File cacheFile;
+   private final long ttl;
+   private final Map<Long, Entry> entries;
+   private boolean loaded = false;
+   private boolean dirty = false;
+
+   /**
+    * Cached test case and the time it was loaded from QC.
+    */
+   private static class Entry
+   {
+      private final QcTestCase testCase;
+      private final long loadedAt;
+
+      Entry(QcTestCase testCase, long loadedAt)
+      {
+         this.testCase = testCase;
+         this.loadedAt = loadedAt;
+      }
+   }
+
+   /**
+    * Constructor.
+    *
+    * @param cacheFile file holding the cached test cases.
+    * @param ttl milliseconds a cached test case is used.
+    * @param maxEntries maximum number of cached test cases.
+    */
+   public QcTestCaseCache(File cacheFile,
+                          long ttl,
+                          final int maxEntries)
+   {
+      this.cacheFile = cacheFile;
+      this.ttl = ttl;
+      this.entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest)
+         {
+            return size() > maxEntries;
+         }
+      };
+   }
+
+   /**
+    * Returns a singleton instance of this class.
+    */
+   public static QcTestCaseCache getInstance()
+   {
+      return testCaseCache;
+   }
+
+   /**
+    * Checks whether the test case cache is enabled by configuration.
+    */
+   public static boolean isEnabled()
+   {
+      return QcConstants.QC_TESTCASE_CACHE_ENABLE;
+   }
+
+   /**
+    * Returns the cached test case of a test id, if it was loaded within the time to live.
+    *
+    * @param testId test id.
+    * @return test case, null if it is not cached or is stale.
+    */
+   public synchronized QcTestCase get(long testId)
+   {
+      load();
+      Entry entry = entries.get(testId);
+      if (entry == null) {
+         return null;
+      }
+      if (System.currentTimeMillis() - entry.loadedAt > ttl) {
+         entries.remove(testId);
+         dirty = true;
+         return null;
+      }
+      return entry.testCase;
+   }
+
+   /**
+    * Caches a test case loaded from QC now.
+    *
+    * @param testId test id.
+    * @param testCase test case.
+    */
+   public synchronized void put(long testId, QcTestCase testCase)
+   {
+      load();
+      entries.put(testId, new Entry(testCase, System.currentTimeMillis()));
+      dirty = true;
+   }
+
+   /**
+    * Removes all cached test cases, so they are requested again from QC.
+    */
+   public synchronized void clear()
+   {
+      loaded = true;
+      entries.clear();
+      dirty = true;
+   }
+
+   /**
+    * Return number of cached test cases, including the stale ones.
+    */
+   public synchronized int size()
+   {
+      load();
+      return entries.size();
+   }
+
+   /**
+    * Writes the cache into its file, if it has changed since it was read or saved.
+    */
+   public synchronized void save()
+   {
+      if (!dirty) {
+         return;
+      }
+      File tmpFile = new File(cacheFile.getPath() + ".tmp");
+      DataOutputStream out = null;
+      try {
+         File dir = cacheFile.getAbsoluteFile().getParentFile();
+         if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Unable to create test case cache directory :" + dir);
+         }
+         out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         out.writeInt(entries.size());
+         for (Map.Entry<Long, Entry> me : entries.entrySet()) {
+            QcTestCase testCase = me.getValue().testCase;
+            out.writeLong(me.getKey());
+            out.writeLong(me.getValue().loadedAt);
+            writeString(out, testCase.getId());
+            writeString(out, testCase.getName());
+            writeString(out, testCase.getProduct());
+            writeString(out, testCase.getFuncArea());
+            writeString(out, testCase.getComponent());
+            writeString(out, testCase.getAutoLevel());
+            writeString(out, testCase.getPriority());
+         }
+         out.close();
+         out = null;
+         Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                  StandardCopyOption.ATOMIC_MOVE);
+         dirty = false;
+         log.info("Saved " + entries.size() + " test cases into " + cacheFile);
+      } catch (IOException ioe) {
+         log.error("Got an exception while saving test case cache :" + cacheFile, ioe);
+         tmpFile.delete();
+      } finally {
+         if (out != null) {
+            try {
+               out.close();
+            } catch (IOException ioe) {
+               log.error("Got exception while closing test case cache file :" + ioe);
+            }
+         }
+      }
+   }
+
+   /**
+    * Reads the cache file on the first use of the cache. An unreadable file is ignored.
+    */
+   private void load()
+   {
+      if (loaded) {
+         return;
+      }
+      loaded = true;
+      if (!cacheFile.isFile()) {
+         return;
+      }
+      DataInputStream in = null;
+      try {
+         in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+         if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            log.warn("Ignoring test case cache file of unknown format :" + cacheFile);
+            return;
+         }
+         int count = in.readInt();
+         for (int i = 0; i < count; i++) {
+            long testId = in.readLong();
+            long loadedAt = in.readLong();
+            QcTestCase testCase = new QcTestCase();
+            testCase.setId(readString(in));
+            testCase.setName(readString(in));
+            testCase.setProduct(readString(in));
+            testCase.setFuncArea(readString(in));
+            testCase.setComponent(readString(in));
+            testCase.setAutoLevel(readString(in));
+            testCase.setPriority(readString(in));
+            entries.put(testId, new Entry(testCase, loadedAt));
+         }
+         log.info("Read " + entries.size() + " test cases from " + cacheFile);
+      } catch (IOException ioe) {
+         log.error("Got an exception while reading test case cache :" + cacheFile, ioe);
+         entries.clear();
+      } finally {
+         if (in != null) {
+            try {
+               in.close();
+            } catch (IOException ioe) {
+               log.error("Got exception while closing test case cache file :" + ioe);
+            }
+         }
+      }
+   }
+
+   private static void writeString(DataOutputStream out, String value) throws IOException
+   {
+      out.writeBoolean(value != null);
+      if (value != null) {
+         out.writeUTF(value);
+      }
+   }
+
+   private static String readString(DataInputStream in) throws IOException
+   {
+      return (in.readBoolean() ? in.readUTF() : null);
+   }
+}
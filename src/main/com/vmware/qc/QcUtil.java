@@ -12,6 +12,8 @@ import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,7 +27,9 @@ public class QcUtil
 
    /**
     * Return Id of a specific name.
+    * @deprecated use {@link TestSetRegistry#getId(String)}
     */
+   @Deprecated
    public static long getIdByName(Map<Long, String> qcIdNames,
                                   String qcName)
    {
@@ -47,7 +51,9 @@ public class QcUtil
     * @param qcNames - list of qc names using which its corresponding qc ids are
     *           retrieved.
     * @return list of QC ids.
+    * @deprecated use {@link TestSetRegistry#getIds(java.util.Collection)}
     */
+   @Deprecated
    public static List<Long> getIds(final Map<Long, String> qcIdNames,
                                    final List<String> qcNames)
    {
@@ -120,6 +126,46 @@ public class QcUtil
       return sb.toString();
    }
 
+   /**
+    * Creates an executor that runs every task on a new virtual thread. Virtual threads are looked up
+    * by reflection, so this class still runs on JVMs without them.
+    *
+    * @return executor, null if the JVM does not support virtual threads.
+    */
+   public static ExecutorService newVirtualThreadExecutor()
+   {
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (Exception ex) {
+         //NoSuchMethodException before Java 21, UnsupportedOperationException [wrapped] when disabled.
+         log.debug("Virtual threads are not available :" + ex);
+         return null;
+      }
+   }
+
+   /**
+    * Converts build numbers read as text [Ex : from a QC run or a spooled result] into numbers.
+    * Values that are not numbers are skipped with a warning.
+    *
+    * @param buildNumbers build numbers as text, can be null.
+    * @return build numbers, null if buildNumbers is null.
+    */
+   public static List<Integer> toBuildNumbers(List<String> buildNumbers)
+   {
+      if (buildNumbers == null) {
+         return null;
+      }
+      List<Integer> numbers = new ArrayList<Integer>(buildNumbers.size());
+      for (String buildNumber : buildNumbers) {
+         try {
+            numbers.add(Integer.valueOf(buildNumber.trim()));
+         } catch (NumberFormatException nfe) {
+            log.warn("Ignoring build number that is not a number :" + buildNumber);
+         }
+      }
+      return numbers;
+   }
+
    /**
     * Check whether the given string data is empty.
     *
@@ -0,0 +1,499 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc;
+
+import static com.vmware.qc.QcXmlConfigUtil.AUTOLEVEL_TAG;
+import static com.vmware.qc.QcXmlConfigUtil.BUILD_TAG;
+import static com.vmware.qc.QcXmlConfigUtil.COMPONENT_TAG;
+import static com.vmware.qc.QcXmlConfigUtil.FILEPATH_TAG;
+import static com.vmware.qc.QcXmlConfigUtil.FUNCTIONALAREA_TAG;
+import static com.vmware.qc.QcXmlConfigUtil.ID_TAG;
+import static com.vmware.qc.QcXmlConfigUtil.LOGS_LOCATION_TAG;
+import static com.vmware.qc.QcXmlConfigUtil.NAME_TAG;
+import static com.vmware.qc.QcXmlConfigUtil.PARENT_FOLDERID_TAG;
+import static com.vmware.qc.QcXmlConfigUtil.PRIORITY_TAG;
+import static com.vmware.qc.QcXmlConfigUtil.PRODUCT_TAG;
+import static com.vmware.qc.QcXmlConfigUtil.RUNID_TAG;
+import static com.vmware.qc.QcXmlConfigUtil.STATUS_TAG;
+import static com.vmware.qc.QcXmlConfigUtil.TESTER_TAG;
+import static com.vmware.qc.QcXmlConfigUtil.TESTID_TAG;
+import static com.vmware.qc.QcXmlConfigUtil.TESTINSTANCEID_TAG;
+import static com.vmware.qc.QcXmlConfigUtil.TESTINSTANCE_TAG;
+import static com.vmware.qc.QcXmlConfigUtil.TESTNAME_TAG;
+import static com.vmware.qc.QcXmlConfigUtil.TESTSETID_TAG;
+import static com.vmware.qc.QcXmlConfigUtil.TESTSET_TAG;
+import static com.vmware.qc.QcXmlConfigUtil.TYPE_TAG;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Decodes QC XML responses straight from the response stream into value objects with a StAX
+ * pull parser. Unlike {@link QcXmlConfigUtil}, no DOM and no intermediate configuration objects
+ * are built, so the garbage created per response is about the value objects themselves.
+ * The decoded objects are the same as those returned by the corresponding QcXmlConfigUtil methods.
+ * Every decoder is available as a {@link QcResponseHandler} to be passed to {@link QcRestClient}.
+ */
+public class QcXmlStreamParser
+{
+   private static final String TESTSETS_TAG = "testSets";
+   private static final String TOTAL_ATTRIBUTE = "total";
+   private static final XMLInputFactory inputFactory = newInputFactory();
+
+   /**
+    * Decodes a page of test instances, null if the page is empty.
+    */
+   public static final QcResponseHandler<List<TestInstanceInfo>> TEST_INSTANCES = new QcResponseHandler<List<TestInstanceInfo>>() {
+      public List<TestInstanceInfo> handle(InputStream body) throws Exception
+      {
+         return getTestInstances(body);
+      }
+   };
+
+   /**
+    * Decodes a page of test instances together with the total number of test instances.
+    */
+   public static final QcResponseHandler<TestInstancePage> TEST_INSTANCE_PAGE = new QcResponseHandler<TestInstancePage>() {
+      public TestInstancePage handle(InputStream body) throws Exception
+      {
+         return getTestInstancePage(body);
+      }
+   };
+
+   /**
+    * Decodes a single test instance.
+    */
+   public static final QcResponseHandler<TestInstanceInfo> TEST_INSTANCE = new QcResponseHandler<TestInstanceInfo>() {
+      public TestInstanceInfo handle(InputStream body) throws Exception
+      {
+         return getTestInstanceInfo(body);
+      }
+   };
+
+   /**
+    * Decodes a list of test sets.
+    */
+   public static final QcResponseHandler<List<TestSetInfo>> TEST_SETS = new QcResponseHandler<List<TestSetInfo>>() {
+      public List<TestSetInfo> handle(InputStream body) throws Exception
+      {
+         return getTestSets(body);
+      }
+   };
+
+   /**
+    * Decodes the test sets of a test set tree.
+    */
+   public static final QcResponseHandler<List<TestSetInfo>> TEST_SET_TREE = new QcResponseHandler<List<TestSetInfo>>() {
+      public List<TestSetInfo> handle(InputStream body) throws Exception
+      {
+         return getTestSetsFromTestSetTree(body);
+      }
+   };
+
+   /**
+    * Decodes a test run.
+    */
+   public static final QcResponseHandler<TestRunInfo> TEST_RUN = new QcResponseHandler<TestRunInfo>() {
+      public TestRunInfo handle(InputStream body) throws Exception
+      {
+         return getTestRunInfo(body);
+      }
+   };
+
+   /**
+    * Decodes a test case.
+    */
+   public static final QcResponseHandler<QcTestCase> TEST_CASE = new QcResponseHandler<QcTestCase>() {
+      public QcTestCase handle(InputStream body) throws Exception
+      {
+         return getTestcase(body);
+      }
+   };
+
+   /**
+    * Decodes log file information of a log attachment.
+    */
+   public static final QcResponseHandler<LogFileInfo> LOG_FILE = new QcResponseHandler<LogFileInfo>() {
+      public LogFileInfo handle(InputStream body) throws Exception
+      {
+         return getLogFileInfo(body);
+      }
+   };
+
+   /**
+    * Read test instances [TestInstance elements under the root element].
+    *
+    * @param body xml data.
+    * @return list of test instances, null if no test instance is found.
+    */
+   public static List<TestInstanceInfo> getTestInstances(InputStream body) throws XMLStreamException
+   {
+      return getTestInstancePage(body).getTestInstances();
+   }
+
+   /**
+    * Read a page of test instances [TestInstance elements under the root element] and the total
+    * number of test instances [total attribute of the root element, if present].
+    *
+    * @param body xml data.
+    * @return test instance page.
+    */
+   public static TestInstancePage getTestInstancePage(InputStream body) throws XMLStreamException
+   {
+      TestInstancePage page = new TestInstancePage();
+      List<TestInstanceInfo> testInstances = null;
+      XMLStreamReader reader = inputFactory.createXMLStreamReader(body);
+      try {
+         if (nextElement(reader)) {
+            String total = reader.getAttributeValue(null, TOTAL_ATTRIBUTE);
+            if (total != null && !total.trim().isEmpty()) {
+               page.setTotal(Integer.parseInt(total.trim()));
+            }
+         }
+         while (nextChildElement(reader)) {
+            if (TESTINSTANCE_TAG.equals(reader.getLocalName())) {
+               if (testInstances == null) {
+                  testInstances = new ArrayList<TestInstanceInfo>();
+               }
+               testInstances.add(readTestInstance(reader));
+            } else {
+               skipElement(reader);
+            }
+         }
+      } finally {
+         reader.close();
+      }
+      page.setTestInstances(testInstances);
+      return page;
+   }
+
+   /**
+    * Read test instance from the root element.
+    */
+   public static TestInstanceInfo getTestInstanceInfo(InputStream body) throws XMLStreamException
+   {
+      XMLStreamReader reader = inputFactory.createXMLStreamReader(body);
+      try {
+         return (nextElement(reader) ? readTestInstance(reader) : null);
+      } finally {
+         reader.close();
+      }
+   }
+
+   /**
+    * Read test sets [TestSet elements under the root element].
+    */
+   public static List<TestSetInfo> getTestSets(InputStream body) throws XMLStreamException
+   {
+      List<TestSetInfo> testSets = new ArrayList<TestSetInfo>();
+      XMLStreamReader reader = inputFactory.createXMLStreamReader(body);
+      try {
+         nextElement(reader);
+         while (nextChildElement(reader)) {
+            if (TESTSET_TAG.equals(reader.getLocalName())) {
+               testSets.add(readTestSet(reader));
+            } else {
+               skipElement(reader);
+            }
+         }
+      } finally {
+         reader.close();
+      }
+      return testSets;
+   }
+
+   /**
+    * Read test sets of a test set tree: test sets of the folder [testSets.TestSet] and of its
+    * immediate sub-folders [subFolders.TestSetFolder.testSets.TestSet]. The name of the folder
+    * containing a test set is set as its folder name.
+    */
+   public static List<TestSetInfo> getTestSetsFromTestSetTree(InputStream body) throws XMLStreamException
+   {
+      List<TestSetInfo> testSets = new ArrayList<TestSetInfo>();
+      XMLStreamReader reader = inputFactory.createXMLStreamReader(body);
+      try {
+         int depth = 0;
+         String parent = null;
+         String folderName = null;
+         String subFolderName = null;
+         while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+               depth++;
+               if ((depth == 3 || depth == 5) && TESTSET_TAG.equals(reader.getLocalName())
+                        && TESTSETS_TAG.equals(parent)) {
+                  TestSetInfo testSet = readTestSet(reader);
+                  testSet.setFolderName(depth == 3 ? folderName : subFolderName);
+                  testSets.add(testSet);
+                  depth--;
+               } else if ((depth == 2 || depth == 4) && NAME_TAG.equals(reader.getLocalName())) {
+                  //name of the folder [depth 2] or of the sub-folder [depth 4].
+                  if (depth == 2) {
+                     folderName = readText(reader);
+                  } else {
+                     subFolderName = readText(reader);
+                  }
+                  depth--;
+                  parent = null;
+               } else {
+                  if (depth == 3) {
+                     subFolderName = null;
+                  }
+                  parent = reader.getLocalName();
+               }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+               depth--;
+               parent = null;
+            }
+         }
+      } finally {
+         reader.close();
+      }
+      return testSets;
+   }
+
+   /**
+    * Read test run from the root element.
+    */
+   public static TestRunInfo getTestRunInfo(InputStream body) throws XMLStreamException
+   {
+      XMLStreamReader reader = inputFactory.createXMLStreamReader(body);
+      try {
+         if (!nextElement(reader)) {
+            return null;
+         }
+         TestRunInfo testRunInfo = new TestRunInfo();
+         List<String> buildNumbers = new ArrayList<String>();
+         while (nextChildElement(reader)) {
+            String name = reader.getLocalName();
+            if (ID_TAG.equals(name)) {
+               testRunInfo.setId(toLong(readText(reader)));
+            } else if (NAME_TAG.equals(name)) {
+               testRunInfo.setName(readText(reader));
+            } else if (TESTINSTANCEID_TAG.equals(name)) {
+               testRunInfo.setTestInstanceId(toLong(readText(reader)));
+            } else if (TESTID_TAG.equals(name)) {
+               testRunInfo.setTestId(toLong(readText(reader)));
+            } else if (STATUS_TAG.equals(name)) {
+               testRunInfo.setStatus(toStatus(readText(reader)));
+            } else if (LOGS_LOCATION_TAG.equals(name)) {
+               testRunInfo.setLogsLocation(readText(reader));
+            } else if (BUILD_TAG.equals(name)) {
+               buildNumbers.add(readText(reader));
+            } else if (TESTER_TAG.equals(name)) {
+               testRunInfo.setUserId(readText(reader));
+            } else {
+               skipElement(reader);
+            }
+         }
+         //build numbers are returned as text by QC.
+         testRunInfo.setBuildNumbers(QcUtil.toBuildNumbers(buildNumbers));
+         return testRunInfo;
+      } finally {
+         reader.close();
+      }
+   }
+
+   /**
+    * Read test case from the root element.
+    */
+   public static QcTestCase getTestcase(InputStream body) throws XMLStreamException
+   {
+      XMLStreamReader reader = inputFactory.createXMLStreamReader(body);
+      try {
+         if (!nextElement(reader)) {
+            return null;
+         }
+         QcTestCase testCase = new QcTestCase();
+         while (nextChildElement(reader)) {
+            String name = reader.getLocalName();
+            if (ID_TAG.equals(name)) {
+               testCase.setId(readText(reader));
+            } else if (NAME_TAG.equals(name)) {
+               testCase.setName(readText(reader));
+            } else if (PRODUCT_TAG.equals(name)) {
+               testCase.setProduct(readText(reader));
+            } else if (FUNCTIONALAREA_TAG.equals(name)) {
+               testCase.setFuncArea(readText(reader));
+            } else if (COMPONENT_TAG.equals(name)) {
+               testCase.setComponent(readText(reader));
+            } else if (AUTOLEVEL_TAG.equals(name)) {
+               testCase.setAutoLevel(readText(reader));
+            } else if (PRIORITY_TAG.equals(name)) {
+               testCase.setPriority(readText(reader));
+            } else {
+               skipElement(reader);
+            }
+         }
+         return testCase;
+      } finally {
+         reader.close();
+      }
+   }
+
+   /**
+    * Read log file information from the root element.
+    */
+   public static LogFileInfo getLogFileInfo(InputStream body) throws XMLStreamException
+   {
+      XMLStreamReader reader = inputFactory.createXMLStreamReader(body);
+      try {
+         if (!nextElement(reader)) {
+            return null;
+         }
+         LogFileInfo logFileInfo = new LogFileInfo();
+         while (nextChildElement(reader)) {
+            String name = reader.getLocalName();
+            if (RUNID_TAG.equals(name)) {
+               logFileInfo.setRunId(toLong(readText(reader)));
+            } else if (TYPE_TAG.equals(name)) {
+               logFileInfo.setType(readText(reader));
+            } else if (NAME_TAG.equals(name)) {
+               logFileInfo.setFileName(readText(reader));
+            } else if (FILEPATH_TAG.equals(name)) {
+               logFileInfo.setFilePath(readText(reader));
+            } else {
+               skipElement(reader);
+            }
+         }
+         return logFileInfo;
+      } finally {
+         reader.close();
+      }
+   }
+
+   /**
+    * Reads the test instance element the reader is positioned on.
+    */
+   private static TestInstanceInfo readTestInstance(XMLStreamReader reader) throws XMLStreamException
+   {
+      TestInstanceInfo testInstanceInfo = new TestInstanceInfo();
+      while (nextChildElement(reader)) {
+         String name = reader.getLocalName();
+         if (ID_TAG.equals(name)) {
+            testInstanceInfo.setId(toLong(readText(reader)));
+         } else if (NAME_TAG.equals(name)) {
+            testInstanceInfo.setName(readText(reader));
+         } else if (TESTID_TAG.equals(name)) {
+            testInstanceInfo.setTestId(toLong(readText(reader)));
+         } else if (TESTNAME_TAG.equals(name)) {
+            testInstanceInfo.setTestName(readText(reader));
+         } else if (STATUS_TAG.equals(name)) {
+            testInstanceInfo.setStatus(toStatus(readText(reader)));
+         } else if (TESTSETID_TAG.equals(name)) {
+            testInstanceInfo.setTestSetId(toLong(readText(reader)));
+         } else {
+            skipElement(reader);
+         }
+      }
+      return testInstanceInfo;
+   }
+
+   /**
+    * Reads the test set element the reader is positioned on.
+    */
+   private static TestSetInfo readTestSet(XMLStreamReader reader) throws XMLStreamException
+   {
+      TestSetInfo testSetInfo = new TestSetInfo();
+      while (nextChildElement(reader)) {
+         String name = reader.getLocalName();
+         if (ID_TAG.equals(name)) {
+            testSetInfo.setId(toLong(readText(reader)));
+         } else if (NAME_TAG.equals(name)) {
+            testSetInfo.setName(readText(reader));
+         } else if (PARENT_FOLDERID_TAG.equals(name)) {
+            testSetInfo.setParentFolderId(toLong(readText(reader)));
+         } else {
+            skipElement(reader);
+         }
+      }
+      return testSetInfo;
+   }
+
+   /**
+    * Moves the reader to the next start element.
+    *
+    * @return false if the document has no more elements.
+    */
+   private static boolean nextElement(XMLStreamReader reader) throws XMLStreamException
+   {
+      while (reader.hasNext()) {
+         if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Moves the reader to the next child element of the current element. The reader must be on
+    * the start element of the parent, or on the end element of a previous child.
+    *
+    * @return false when the end of the parent element is reached.
+    */
+   private static boolean nextChildElement(XMLStreamReader reader) throws XMLStreamException
+   {
+      while (reader.hasNext()) {
+         int event = reader.next();
+         if (event == XMLStreamConstants.START_ELEMENT) {
+            return true;
+         }
+         if (event == XMLStreamConstants.END_ELEMENT) {
+            return false;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Reads the text of a leaf element and leaves the reader on its end element.
+    */
+   private static String readText(XMLStreamReader reader) throws XMLStreamException
+   {
+      String text = reader.getElementText().trim();
+      return (text.isEmpty() ? null : text);
+   }
+
+   /**
+    * Skips the element the reader is positioned on, with all its children.
+    */
+   private static void skipElement(XMLStreamReader reader) throws XMLStreamException
+   {
+      int depth = 1;
+      while (depth > 0 && reader.hasNext()) {
+         int event = reader.next();
+         if (event == XMLStreamConstants.START_ELEMENT) {
+            depth++;
+         } else if (event == XMLStreamConstants.END_ELEMENT) {
+            depth--;
+         }
+      }
+   }
+
+   private static long toLong(String text)
+   {
+      return (text != null ? Long.parseLong(text) : 0);
+   }
+
+   private static QcTestStatus toStatus(String text)
+   {
+      return (text != null ? QcTestStatus.fromValue(text) : null);
+   }
+
+   private static XMLInputFactory newInputFactory()
+   {
+      XMLInputFactory factory = XMLInputFactory.newInstance();
+      factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+      factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+      factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+      return factory;
+   }
+}
@@ -0,0 +1,356 @@
+/**
+ ***********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ ************************************************************************
+ */
+package com.vmware.qc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable local spool of test run results that could not be posted because QC is unavailable.
+ * Every result is written into its own properties file in the spool directory, so spooled results
+ * survive a JVM restart and are posted by the next PostResult2Qc of the same name that is started.
+ * Files are written to a temporary name and renamed, so a crash never leaves a partial result behind.
+ *
+ * A result taken from the spool stays on disk under an in-flight name until it is posted
+ * [see {@link Entry}]; in-flight files left by a crash are returned to the spool when the spool is
+ * first used. Files that cannot be read are renamed to a corrupt name and results that failed to
+ * post to a failed name, so that they are kept for inspection but not posted again.
+ * The names of the spooled files are kept in memory in order, so the spool directory is only listed
+ * once; the spool directory must therefore not be shared by two spools at the same time.
+ */
+public class ResultSpool
+{
+   private static final String FILE_PREFIX = "run-";
+   private static final String FILE_SUFFIX = ".properties";
+   private static final String INFLIGHT_SUFFIX = ".inflight";
+   private static final String CORRUPT_SUFFIX = ".corrupt";
+   private static final String FAILED_SUFFIX = ".failed";
+   private static final String CUSTOM_FIELD_PREFIX = "customField.";
+   private static final AtomicLong sequence = new AtomicLong();
+   private final File spoolDir;
+   //names of spooled files [without suffix] from the oldest to the newest, null until loaded.
+   private TreeSet<String> spooledNames = null;
+   private final static Logger log = LoggerFactory.getLogger(ResultSpool.class);
+
+   /**
+    * Constructor.
+    *
+    * @param spoolDir directory where results are spooled. It is created if it does not exist.
+    */
+   public ResultSpool(File spoolDir)
+   {
+      this.spoolDir = spoolDir;
+   }
+
+   /**
+    * Writes a test run result into the spool.
+    *
+    * @param testRunInfo test run result.
+    * @return true if the result is spooled, else false.
+    */
+   public boolean spool(TestRunInfo testRunInfo)
+   {
+      Properties props = toProperties(testRunInfo);
+      String name = FILE_PREFIX + System.currentTimeMillis() + "-"
+               + String.format("%06d", sequence.incrementAndGet());
+      File tmpFile = new File(spoolDir, name + ".tmp");
+      File spoolFile = new File(spoolDir, name + FILE_SUFFIX);
+      OutputStream out = null;
+      try {
+         if (!spoolDir.isDirectory() && !spoolDir.mkdirs() && !spoolDir.isDirectory()) {
+            throw new IOException("Unable to create spool directory :" + spoolDir);
+         }
+         out = new FileOutputStream(tmpFile);
+         props.store(out, "Spooled QC test run result");
+         out.close();
+         out = null;
+         Files.move(tmpFile.toPath(), spoolFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+         synchronized (this) {
+            load().add(name);
+         }
+         log.info("Spooled test run result into " + spoolFile + " :" + testRunInfo);
+         return true;
+      } catch (IOException ioe) {
+         log.error("Got an exception while spooling test run result :" + testRunInfo, ioe);
+         tmpFile.delete();
+         return false;
+      } finally {
+         if (out != null) {
+            try {
+               out.close();
+            } catch (IOException ioe) {
+               log.error("Got exception while closing spool file :" + ioe);
+            }
+         }
+      }
+   }
+
+   /**
+    * Takes the oldest result from the spool. Its file is renamed to an in-flight name; the caller
+    * must either {@link #remove(Entry, boolean) remove} the entry once the result is posted or
+    * {@link #release(Entry) release} it back into the spool.
+    *
+    * @return spooled result, or null if the spool is empty.
+    */
+   public synchronized Entry poll()
+   {
+      TreeSet<String> names = load();
+      String name;
+      while ((name = names.pollFirst()) != null) {
+         File spoolFile = new File(spoolDir, name + FILE_SUFFIX);
+         File inflightFile = new File(spoolDir, name + INFLIGHT_SUFFIX);
+         if (!rename(spoolFile, inflightFile)) {
+            continue;
+         }
+         TestRunInfo testRunInfo = read(inflightFile);
+         if (testRunInfo != null) {
+            return new Entry(name, testRunInfo);
+         }
+         rename(inflightFile, new File(spoolDir, name + CORRUPT_SUFFIX));
+      }
+      return null;
+   }
+
+   /**
+    * Returns a result taken from the spool back into the spool, as it could not be posted.
+    *
+    * @return true if the result is spooled again, else false.
+    */
+   public synchronized boolean release(Entry entry)
+   {
+      if (!rename(new File(spoolDir, entry.name + INFLIGHT_SUFFIX), new File(spoolDir, entry.name + FILE_SUFFIX))) {
+         return false;
+      }
+      load().add(entry.name);
+      log.info("Returned test run result into spool :" + entry.testRunInfo);
+      return true;
+   }
+
+   /**
+    * Removes a result taken from the spool once it is done with.
+    *
+    * @param entry result taken from the spool.
+    * @param failed true if the result failed to post; its file is then kept under a failed name
+    *          instead of being deleted.
+    */
+   public void remove(Entry entry,
+                      boolean failed)
+   {
+      File inflightFile = new File(spoolDir, entry.name + INFLIGHT_SUFFIX);
+      if (failed) {
+         rename(inflightFile, new File(spoolDir, entry.name + FAILED_SUFFIX));
+      } else if (!inflightFile.delete() && inflightFile.exists()) {
+         log.warn("Unable to delete spool file :" + inflightFile);
+      }
+   }
+
+   /**
+    * Return number of results in the spool [results taken from the spool are not counted].
+    */
+   public synchronized int size()
+   {
+      return load().size();
+   }
+
+   /**
+    * Return spool directory.
+    */
+   public File getSpoolDir()
+   {
+      return spoolDir;
+   }
+
+   /**
+    * Return names of the spooled files. On first use the spool directory is listed and in-flight
+    * files left by a previous run are returned into the spool.
+    */
+   private TreeSet<String> load()
+   {
+      if (spooledNames == null) {
+         spooledNames = new TreeSet<String>();
+         File[] files = spoolDir.listFiles();
+         if (files != null) {
+            for (File file : files) {
+               String fileName = file.getName();
+               if (!fileName.startsWith(FILE_PREFIX)) {
+                  continue;
+               }
+               if (fileName.endsWith(FILE_SUFFIX)) {
+                  spooledNames.add(fileName.substring(0, fileName.length() - FILE_SUFFIX.length()));
+               } else if (fileName.endsWith(INFLIGHT_SUFFIX)) {
+                  String name = fileName.substring(0, fileName.length() - INFLIGHT_SUFFIX.length());
+                  if (rename(file, new File(spoolDir, name + FILE_SUFFIX))) {
+                     log.warn("Recovered test run result that was being posted :" + file);
+                     spooledNames.add(name);
+                  }
+               }
+            }
+         }
+      }
+      return spooledNames;
+   }
+
+   /**
+    * Renames a spool file.
+    *
+    * @return true if it is renamed, else false.
+    */
+   private static boolean rename(File from,
+                                 File to)
+   {
+      try {
+         Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+         return true;
+      } catch (IOException ioe) {
+         log.error("Unable to rename spool file " + from + " to " + to + " :" + ioe);
+         return false;
+      }
+   }
+
+   /**
+    * Read test run result from a spool file.
+    */
+   private TestRunInfo read(File spoolFile)
+   {
+      Properties props = new Properties();
+      InputStream in = null;
+      try {
+         in = new FileInputStream(spoolFile);
+         props.load(in);
+         return fromProperties(props);
+      } catch (Exception ex) {
+         log.error("Got an exception while reading spool file :" + spoolFile, ex);
+         return null;
+      } finally {
+         if (in != null) {
+            try {
+               in.close();
+            } catch (IOException ioe) {
+               log.error("Got exception while closing spool file :" + ioe);
+            }
+         }
+      }
+   }
+
+   /**
+    * A result taken from the spool, whose file is kept under an in-flight name until it is removed
+    * or released.
+    */
+   public static class Entry
+   {
+      private final String name;
+      private final TestRunInfo testRunInfo;
+
+      private Entry(String name,
+                    TestRunInfo testRunInfo)
+      {
+         this.name = name;
+         this.testRunInfo = testRunInfo;
+      }
+
+      /**
+       * Return the spooled test run result.
+       */
+      public TestRunInfo getTestRunInfo()
+      {
+         return testRunInfo;
+      }
+
+      public String toString()
+      {
+         return name;
+      }
+   }
+
+   private static Properties toProperties(TestRunInfo testRunInfo)
+   {
+      Properties props = new Properties();
+      props.setProperty("testInstanceId", String.valueOf(testRunInfo.getTestInstanceId()));
+      props.setProperty("testId", String.valueOf(testRunInfo.getTestId()));
+      setProperty(props, "status", testRunInfo.getStatus());
+      setProperty(props, "userId", testRunInfo.getUserId());
+      setList(props, "buildNumber", testRunInfo.getBuildNumbers());
+      setList(props, "clientLogFilePath", testRunInfo.getClientLogFilePaths());
+      setList(props, "bugId", testRunInfo.getBugIds());
+      if (testRunInfo.getCustomFields() != null) {
+         for (Map.Entry<String, String> me : testRunInfo.getCustomFields().entrySet()) {
+            setProperty(props, CUSTOM_FIELD_PREFIX + me.getKey(), me.getValue());
+         }
+      }
+      return props;
+   }
+
+   private static TestRunInfo fromProperties(Properties props)
+   {
+      TestRunInfo testRunInfo = new TestRunInfo();
+      testRunInfo.setTestInstanceId(Long.parseLong(props.getProperty("testInstanceId")));
+      testRunInfo.setTestId(Long.parseLong(props.getProperty("testId", "0")));
+      if (props.getProperty("status") != null) {
+         testRunInfo.setStatus(QcTestStatus.fromValue(props.getProperty("status")));
+      }
+      testRunInfo.setUserId(props.getProperty("userId"));
+      testRunInfo.setBuildNumbers(QcUtil.toBuildNumbers(getList(props, "buildNumber")));
+      testRunInfo.setClientLogFilePaths(getList(props, "clientLogFilePath"));
+      testRunInfo.setBugIds(getList(props, "bugId"));
+      Map<String, String> customFields = new HashMap<String, String>();
+      for (String key : props.stringPropertyNames()) {
+         if (key.startsWith(CUSTOM_FIELD_PREFIX)) {
+            customFields.put(key.substring(CUSTOM_FIELD_PREFIX.length()), props.getProperty(key));
+         }
+      }
+      testRunInfo.setCustomFields(customFields);
+      return testRunInfo;
+   }
+
+   private static void setProperty(Properties props, String key, Object value)
+   {
+      if (value != null) {
+         props.setProperty(key, value.toString());
+      }
+   }
+
+   private static void setList(Properties props, String key, List<?> values)
+   {
+      if (values != null) {
+         props.setProperty(key + ".count", String.valueOf(values.size()));
+         for (int i = 0; i < values.size(); i++) {
+            setProperty(props, key + "." + i, values.get(i));
+         }
+      }
+   }
+
+   private static List<String> getList(Properties props, String key)
+   {
+      String count = props.getProperty(key + ".count");
+      if (count == null) {
+         return null;
+      }
+      List<String> values = new ArrayList<String>();
+      for (int i = 0; i < Integer.parseInt(count); i++) {
+         String value = props.getProperty(key + "." + i);
+         if (value != null) {
+            values.add(value);
+         }
+      }
+      return values;
+   }
+}
@@ -0,0 +1,70 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Contains the result of loading test cases by their ids : the test cases found, in the order of
+ * the first occurrence of their ids, and the ids no test case is found for.
+ */
+public class TestCaseBatch
+{
+   private final Map<Long, QcTestCase> testCases = new LinkedHashMap<Long, QcTestCase>();
+   private final List<Long> notFoundIds = new ArrayList<Long>();
+
+   /**
+    * Add test case found for an id.
+    */
+   void addTestCase(long testcaseId, QcTestCase testCase)
+   {
+      testCases.put(testcaseId, testCase);
+   }
+
+   /**
+    * Add id for which no test case is found.
+    */
+   void addNotFoundId(long testcaseId)
+   {
+      notFoundIds.add(testcaseId);
+   }
+
+   /**
+    * Return test cases found, each once, in the order of the first occurrence of their ids.
+    */
+   public List<QcTestCase> getTestCases()
+   {
+      return new ArrayList<QcTestCase>(testCases.values());
+   }
+
+   /**
+    * Return test case for an id.
+    *
+    * @param testcaseId test case id.
+    * @return test case, null if it is not found or was not requested.
+    */
+   public QcTestCase getTestCase(long testcaseId)
+   {
+      return testCases.get(testcaseId);
+   }
+
+   /**
+    * Return ids for which no test case is found, in the order of the first occurrence of the ids.
+    */
+   public List<Long> getNotFoundIds()
+   {
+      return Collections.unmodifiableList(notFoundIds);
+   }
+
+   @Override
+   public String toString()
+   {
+      return "TestCaseBatch [found=" + testCases.size() + ", notFound=" + notFoundIds + "]";
+   }
+}
@@ -0,0 +1,247 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * Index of test instances by [test set id, test name, test instance name], so that the test
+ * instance of a test result is found with a hash lookup instead of a scan of all test instances.
+ * A lookup without test set id returns the first test instance added with the test name and
+ * test instance name, like {@link QcUtil#findTestInstance(java.util.List, String, String, Long)}.
+ *
+ * The index is kept compact for test labs of 100k+ test instances : test instances are held in an
+ * array and looked up through open addressing tables of primitive ints [by names, by test set id
+ * and names] and longs [by test instance id], instead of hash map entries and key objects per test
+ * instance. Test names and test instance names are interned when they are added, so the test
+ * instances of a test share one name string.
+ *
+ * The index is not synchronized. It is built once and then shared for lookups only.
+ */
+public class TestInstanceIndex
+{
+   private static final int INITIAL_CAPACITY = 16;
+
+   private TestInstanceInfo[] testInstances;
+   private int[] nameHashes;
+   private int size = 0;
+   //slots hold test instance number + 1, 0 is an empty slot.
+   private int[] nameSlots;
+   private int[] testSetSlots;
+   //slots hold test instance id and test instance number + 1.
+   private long[] idSlotKeys;
+   private int[] idSlotValues;
+
+   public TestInstanceIndex()
+   {
+      testInstances = new TestInstanceInfo[INITIAL_CAPACITY];
+      nameHashes = new int[INITIAL_CAPACITY];
+      allocateSlots(INITIAL_CAPACITY * 2);
+   }
+
+   /**
+    * Constructor. Indexes the given test instances.
+    *
+    * @param testInstances test instances, can be null.
+    */
+   public TestInstanceIndex(Collection<TestInstanceInfo> testInstances)
+   {
+      this();
+      if (testInstances != null) {
+         addAll(testInstances.iterator());
+      }
+   }
+
+   /**
+    * Adds a test instance to the index. Its test name and test instance name are replaced by
+    * their interned copies.
+    *
+    * @param testInstance test instance.
+    */
+   public void add(TestInstanceInfo testInstance)
+   {
+      testInstance.setTestName(intern(testInstance.getTestName()));
+      testInstance.setName(intern(testInstance.getName()));
+      if (size == testInstances.length) {
+         testInstances = Arrays.copyOf(testInstances, size * 2);
+         nameHashes = Arrays.copyOf(nameHashes, size * 2);
+      }
+      //lookup tables are kept at most 3/4 full.
+      if ((size + 1) * 4 > nameSlots.length * 3) {
+         allocateSlots(nameSlots.length * 2);
+         for (int i = 0; i < size; i++) {
+            addSlots(i);
+         }
+      }
+      testInstances[size] = testInstance;
+      nameHashes[size] = hash(testInstance.getTestName(), testInstance.getName());
+      addSlots(size);
+      size++;
+   }
+
+   /**
+    * Adds all test instances of an iterator to the index [Ex : the lazily paged
+    * test instances of {@link QcConnector#iterateTestInstances(java.util.List)}].
+    *
+    * @param testInstances test instances.
+    */
+   public void addAll(Iterator<TestInstanceInfo> testInstances)
+   {
+      while (testInstances.hasNext()) {
+         add(testInstances.next());
+      }
+   }
+
+   /**
+    * Finds test instance of a test in any test set.
+    *
+    * @param testName test name.
+    * @param testInstanceName test instance name.
+    *          if it is not specified, test instance name & test name are same.
+    * @return test instance, null if it is not found.
+    */
+   public TestInstanceInfo find(String testName,
+                                String testInstanceName)
+   {
+      return find(testName, testInstanceName, 0);
+   }
+
+   /**
+    * Finds test instance of a test.
+    *
+    * @param testName test name.
+    * @param testInstanceName test instance name.
+    *          if it is not specified, test instance name & test name are same.
+    * @param testSetId test set id, 0 for any test set.
+    * @return test instance, null if it is not found.
+    */
+   public TestInstanceInfo find(String testName,
+                                String testInstanceName,
+                                long testSetId)
+   {
+      String testInstanceName1 = (testInstanceName == null ? testName : testInstanceName);
+      int nameHash = hash(testName, testInstanceName1);
+      int[] slots = (testSetId == 0 ? nameSlots : testSetSlots);
+      int mask = slots.length - 1;
+      //slots of equal keys are probed in the order the test instances were added.
+      for (int slot = mix(testSetId == 0 ? nameHash : hash(nameHash, testSetId)) & mask;
+               slots[slot] != 0; slot = (slot + 1) & mask) {
+         int i = slots[slot] - 1;
+         TestInstanceInfo testInstance = testInstances[i];
+         if (nameHashes[i] == nameHash
+                  && (testSetId == 0 || testInstance.getTestSetId() == testSetId)
+                  && equals(testName, testInstance.getTestName())
+                  && equals(testInstanceName1, testInstance.getName())) {
+            return testInstance;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Gets test instance by its id.
+    *
+    * @param testInstanceId test instance id.
+    * @return test instance, null if it is not found.
+    */
+   public TestInstanceInfo get(long testInstanceId)
+   {
+      int mask = idSlotKeys.length - 1;
+      for (int slot = mix(Long.hashCode(testInstanceId)) & mask; idSlotValues[slot] != 0;
+               slot = (slot + 1) & mask) {
+         if (idSlotKeys[slot] == testInstanceId) {
+            return testInstances[idSlotValues[slot] - 1];
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Return number of indexed test instances.
+    */
+   public int size()
+   {
+      return size;
+   }
+
+   /**
+    * Checks whether no test instance is indexed.
+    */
+   public boolean isEmpty()
+   {
+      return size == 0;
+   }
+
+   private void allocateSlots(int capacity)
+   {
+      nameSlots = new int[capacity];
+      testSetSlots = new int[capacity];
+      idSlotKeys = new long[capacity];
+      idSlotValues = new int[capacity];
+   }
+
+   /**
+    * Adds test instance number i to the lookup tables.
+    */
+   private void addSlots(int i)
+   {
+      TestInstanceInfo testInstance = testInstances[i];
+      int mask = nameSlots.length - 1;
+      int slot = mix(nameHashes[i]) & mask;
+      while (nameSlots[slot] != 0) {
+         slot = (slot + 1) & mask;
+      }
+      nameSlots[slot] = i + 1;
+      slot = mix(hash(nameHashes[i], testInstance.getTestSetId())) & mask;
+      while (testSetSlots[slot] != 0) {
+         slot = (slot + 1) & mask;
+      }
+      testSetSlots[slot] = i + 1;
+      slot = mix(Long.hashCode(testInstance.getId())) & mask;
+      while (idSlotValues[slot] != 0) {
+         if (idSlotKeys[slot] == testInstance.getId()) {
+            //the first test instance added with an id is kept.
+            return;
+         }
+         slot = (slot + 1) & mask;
+      }
+      idSlotKeys[slot] = testInstance.getId();
+      idSlotValues[slot] = i + 1;
+   }
+
+   private static String intern(String name)
+   {
+      return (name != null ? name.intern() : null);
+   }
+
+   private static int hash(String testName,
+                           String testInstanceName)
+   {
+      return 31 * (testName != null ? testName.hashCode() : 0)
+               + (testInstanceName != null ? testInstanceName.hashCode() : 0);
+   }
+
+   private static int hash(int nameHash,
+                           long testSetId)
+   {
+      return 31 * nameHash + Long.hashCode(testSetId);
+   }
+
+   /**
+    * Spreads the bits of a hash code, so that hash codes differing in high bits only use different slots.
+    */
+   private static int mix(int hash)
+   {
+      int h = hash * 0x9E3779B9;
+      return h ^ (h >>> 16);
+   }
+
+   private static boolean equals(String s1, String s2)
+   {
+      return (s1 == null ? s2 == null : s1.equals(s2));
+   }
+}
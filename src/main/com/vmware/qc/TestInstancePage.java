@@ -0,0 +1,71 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc;
+
+import java.util.List;
+
+/**
+ * Contains a page of test instances returned by QC and the total number of test instances
+ * of the request, when QC reports it.
+ */
+public class TestInstancePage
+{
+   private List<TestInstanceInfo> testInstances;
+   private int total = -1;
+
+   /**
+    * Return test instances of the page.
+    *
+    * @return list of test instances, null if the page is empty.
+    */
+   public List<TestInstanceInfo> getTestInstances()
+   {
+      return testInstances;
+   }
+
+   /**
+    * Set test instances of the page.
+    *
+    * @param testInstances
+    */
+   public void setTestInstances(List<TestInstanceInfo> testInstances)
+   {
+      this.testInstances = testInstances;
+   }
+
+   /**
+    * Return number of test instances in the page.
+    */
+   public int size()
+   {
+      return (testInstances != null ? testInstances.size() : 0);
+   }
+
+   /**
+    * Return total number of test instances of all pages.
+    *
+    * @return total, -1 if QC did not report it.
+    */
+   public int getTotal()
+   {
+      return total;
+   }
+
+   /**
+    * Set total number of test instances of all pages.
+    *
+    * @param total
+    */
+   public void setTotal(int total)
+   {
+      this.total = total;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "TestInstancePage [size=" + size() + ", total=" + total + "]";
+   }
+}
@@ -0,0 +1,600 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read-only snapshot of the test sets under a test set folder and of their test instances,
+ * kept in a memory-mapped file. A new JVM opens the snapshot without any QC request, and
+ * test instances are resolved by [test name, test instance name] through the hash index stored
+ * in the file, without decoding the whole snapshot.
+ *
+ * File layout [big endian] :
+ *  header - magic, version, creation time, test set count, test instance count, index slot count,
+ *           offsets of the sections below and the string reference of the folder path.
+ *  test sets - fixed size records : id, parent folder id, name, parent folder name.
+ *  test instances - fixed size records : id, test id, test set id, name, test name, status.
+ *  index - open addressing table of test instance record numbers + 1 [0 is an empty slot],
+ *          hashed by test name and test instance name.
+ *  strings - length prefixed UTF-8 strings referenced by their offset in this section [-1 is null].
+ *
+ * {@link #getSnapshot(String)} opens the snapshot of a folder, or creates it from QC if there is
+ * none. A snapshot older than qc.snapshot.refresh.age is refreshed from QC in the background, and
+ * the refreshed snapshot is returned by the next getSnapshot call.
+ *
+ * Every snapshot of a folder is written to a new file named after the folder and the creation time
+ * [versioned file], and the newest file is the one opened. A snapshot file is never replaced or
+ * written again, as it may still be mapped by this or another JVM, and Windows neither renames over
+ * nor deletes a mapped file. Older files of the folder are deleted after a refresh; a file that is
+ * still mapped on Windows is left behind and deleted by a later refresh.
+ *
+ * Configuration properties:
+ *  qc.snapshot.enable - enables the use of snapshots by the TestNG listener and PostResultFile2Qc.
+ *  qc.snapshot.dir - directory holding the snapshot files.
+ *  qc.snapshot.refresh.age - milliseconds after which a snapshot is refreshed in the background.
+ */
+public class TestLabSnapshot
+{
+   private static final int MAGIC = 0x51434c53; //"QCLS"
+   private static final int VERSION = 2;
+   private static final int HEADER_SIZE = 48;
+   private static final int TESTSET_RECORD_SIZE = 24;
+   private static final int TESTINSTANCE_RECORD_SIZE = 36;
+   private static final String FILE_SUFFIX = ".snapshot";
+   private final static Logger log = LoggerFactory.getLogger(TestLabSnapshot.class);
+   private static final ConcurrentMap<String, TestLabSnapshot> snapshots = new ConcurrentHashMap<String, TestLabSnapshot>();
+   private static final ConcurrentMap<String, CompletableFuture<TestLabSnapshot>> refreshes =
+            new ConcurrentHashMap<String, CompletableFuture<TestLabSnapshot>>();
+   private static final ExecutorService refresher = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "TestLabSnapshotRefresher");
+      thread.setDaemon(true);
+      return thread;
+   });
+
+   private final File file;
+   private final ByteBuffer buffer;
+   private final long createdAt;
+   private final int testSetCount;
+   private final int testInstanceCount;
+   private final int indexSlots;
+   private final int testSetsOffset;
+   private final int testInstancesOffset;
+   private final int indexOffset;
+   private final int stringsOffset;
+   private final String testSetFolderPath;
+   private volatile TestSetRegistry testSetRegistry;
+
+   private TestLabSnapshot(File file, ByteBuffer buffer) throws IOException
+   {
+      this.file = file;
+      this.buffer = buffer;
+      if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+         throw new IOException("Not a test lab snapshot of version " + VERSION + " :" + file);
+      }
+      createdAt = buffer.getLong(8);
+      testSetCount = buffer.getInt(16);
+      testInstanceCount = buffer.getInt(20);
+      indexSlots = buffer.getInt(24);
+      testSetsOffset = buffer.getInt(28);
+      testInstancesOffset = buffer.getInt(32);
+      indexOffset = buffer.getInt(36);
+      stringsOffset = buffer.getInt(40);
+      testSetFolderPath = getString(buffer.getInt(44));
+   }
+
+   /**
+    * Returns the snapshot of a test set folder. The snapshot is read from its file if it exists,
+    * and is refreshed in the background when it is older than qc.snapshot.refresh.age.
+    * Otherwise it is created from QC.
+    *
+    * @param testSetFolderPath - testset folder path.
+    * @return snapshot.
+    */
+   public static TestLabSnapshot getSnapshot(String testSetFolderPath) throws Exception
+   {
+      TestLabSnapshot snapshot = snapshots.get(testSetFolderPath);
+      if (snapshot == null) {
+         File file = getSnapshotFile(testSetFolderPath);
+         snapshot = (file != null ? open(file) : null);
+         if (snapshot == null) {
+            return refresh(new QcConnector(), testSetFolderPath);
+         }
+         snapshots.putIfAbsent(testSetFolderPath, snapshot);
+         log.info("Opened test lab snapshot of " + snapshot.getTestInstanceCount()
+                  + " test instances created at " + new Date(snapshot.getCreatedAt()));
+      }
+      if (System.currentTimeMillis() - snapshot.getCreatedAt() > QcConstants.QC_SNAPSHOT_REFRESH_AGE) {
+         refreshAsync(testSetFolderPath);
+      }
+      return snapshot;
+   }
+
+   /**
+    * Refreshes the snapshot of a test set folder from QC in the background. Only one refresh
+    * of a folder runs at a time.
+    *
+    * @param testSetFolderPath - testset folder path.
+    * @return future of the refreshed snapshot.
+    */
+   public static CompletableFuture<TestLabSnapshot> refreshAsync(final String testSetFolderPath)
+   {
+      CompletableFuture<TestLabSnapshot> refresh = new CompletableFuture<TestLabSnapshot>();
+      CompletableFuture<TestLabSnapshot> running = refreshes.putIfAbsent(testSetFolderPath, refresh);
+      if (running != null) {
+         return running;
+      }
+      refresher.execute(() -> {
+         try {
+            refresh.complete(refresh(new QcConnector(), testSetFolderPath));
+         } catch (Throwable th) {
+            log.warn("Got an exception while refreshing test lab snapshot of " + testSetFolderPath, th);
+            refresh.completeExceptionally(th);
+         } finally {
+            refreshes.remove(testSetFolderPath, refresh);
+         }
+      });
+      return refresh;
+   }
+
+   /**
+    * Creates the snapshot of a test set folder from QC into a new file, and deletes the older files
+    * of the folder that are no longer mapped.
+    *
+    * @param connector connector used to read the test lab.
+    * @param testSetFolderPath - testset folder path.
+    * @return new snapshot.
+    */
+   public static TestLabSnapshot refresh(QcConnector connector,
+                                         String testSetFolderPath)
+                                         throws Exception
+   {
+      long startTime = System.currentTimeMillis();
+      List<TestSetInfo> testSets = connector.getTestSets(testSetFolderPath, true);
+      if (testSets == null) {
+         testSets = new ArrayList<TestSetInfo>();
+      }
+      List<Long> testSetIds = new ArrayList<Long>();
+      for (TestSetInfo testSet : testSets) {
+         testSetIds.add(testSet.getId());
+      }
+      List<TestInstanceInfo> testInstances = (testSetIds.isEmpty() ? null
+               : connector.getTestInstances(testSetIds));
+      if (testInstances == null) {
+         testInstances = new ArrayList<TestInstanceInfo>();
+      }
+      File file = newSnapshotFile(testSetFolderPath);
+      write(file, testSetFolderPath, testSets, testInstances);
+      TestLabSnapshot snapshot = open(file);
+      if (snapshot == null) {
+         throw new IOException("Unable to open test lab snapshot :" + file);
+      }
+      snapshots.put(testSetFolderPath, snapshot);
+      deleteOldFiles(testSetFolderPath, file);
+      log.info("Created test lab snapshot of " + testSets.size() + " test sets and "
+               + testInstances.size() + " test instances in "
+               + (System.currentTimeMillis() - startTime) + " ms :" + file);
+      return snapshot;
+   }
+
+   /**
+    * Opens a snapshot file.
+    *
+    * @param file snapshot file.
+    * @return snapshot, null if the file does not exist or is not a valid snapshot.
+    */
+   public static TestLabSnapshot open(File file)
+   {
+      if (!file.isFile()) {
+         return null;
+      }
+      try {
+         RandomAccessFile raf = new RandomAccessFile(file, "r");
+         try {
+            //the mapping stays valid after the channel is closed.
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            return new TestLabSnapshot(file, buffer);
+         } finally {
+            raf.close();
+         }
+      } catch (IOException ioe) {
+         log.warn("Ignoring unreadable test lab snapshot :" + file + " :" + ioe.getMessage());
+         return null;
+      }
+   }
+
+   /**
+    * Writes a snapshot file. The file is written to a temporary name and renamed, so a snapshot is
+    * never seen half written.
+    *
+    * @param file snapshot file, it must not exist [see {@link #newSnapshotFile(String)}].
+    * @param testSetFolderPath - testset folder path.
+    * @param testSets test sets.
+    * @param testInstances test instances of the test sets.
+    */
+   public static void write(File file,
+                            String testSetFolderPath,
+                            List<TestSetInfo> testSets,
+                            List<TestInstanceInfo> testInstances)
+                            throws IOException
+   {
+      ByteArrayOutputStream strings = new ByteArrayOutputStream();
+      DataOutputStream stringsOut = new DataOutputStream(strings);
+      Map<String, Integer> stringRefs = new HashMap<String, Integer>();
+      int indexSlots = Integer.highestOneBit(Math.max(1, testInstances.size()) * 2 - 1) << 1;
+      int testSetsOffset = HEADER_SIZE;
+      int testInstancesOffset = testSetsOffset + testSets.size() * TESTSET_RECORD_SIZE;
+      int indexOffset = testInstancesOffset + testInstances.size() * TESTINSTANCE_RECORD_SIZE;
+      int stringsOffset = indexOffset + indexSlots * 4;
+
+      ByteBuffer records = ByteBuffer.allocate(stringsOffset);
+      records.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis());
+      records.putInt(testSets.size()).putInt(testInstances.size()).putInt(indexSlots);
+      records.putInt(testSetsOffset).putInt(testInstancesOffset).putInt(indexOffset).putInt(stringsOffset);
+      records.putInt(putString(testSetFolderPath, stringsOut, stringRefs));
+      for (TestSetInfo testSet : testSets) {
+         records.putLong(testSet.getId()).putLong(testSet.getParentFolderId());
+         records.putInt(putString(testSet.getName(), stringsOut, stringRefs));
+         records.putInt(putString(testSet.getFolderName(), stringsOut, stringRefs));
+      }
+      int[] index = new int[indexSlots];
+      for (int i = 0; i < testInstances.size(); i++) {
+         TestInstanceInfo testInstance = testInstances.get(i);
+         records.putLong(testInstance.getId()).putLong(testInstance.getTestId()).putLong(testInstance.getTestSetId());
+         records.putInt(putString(testInstance.getName(), stringsOut, stringRefs));
+         records.putInt(putString(testInstance.getTestName(), stringsOut, stringRefs));
+         records.putInt(testInstance.getStatus() != null ? testInstance.getStatus().ordinal() : -1);
+         int slot = hash(testInstance.getTestName(), testInstance.getName()) & (indexSlots - 1);
+         while (index[slot] != 0) {
+            slot = (slot + 1) & (indexSlots - 1);
+         }
+         index[slot] = i + 1;
+      }
+      for (int recordNumber : index) {
+         records.putInt(recordNumber);
+      }
+      stringsOut.flush();
+
+      File dir = file.getAbsoluteFile().getParentFile();
+      if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+         throw new IOException("Unable to create snapshot directory :" + dir);
+      }
+      File tmpFile = File.createTempFile(file.getName(), ".tmp", dir);
+      try {
+         OutputStream out = new FileOutputStream(tmpFile);
+         try {
+            out.write(records.array());
+            strings.writeTo(out);
+         } finally {
+            out.close();
+         }
+         Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+         tmpFile.delete();
+      }
+   }
+
+   /**
+    * Return newest snapshot file of a test set folder of the configured QC server and project.
+    *
+    * @param testSetFolderPath - testset folder path.
+    * @return snapshot file, null if the folder has no snapshot.
+    */
+   public static File getSnapshotFile(String testSetFolderPath)
+   {
+      File newest = null;
+      long newestVersion = -1;
+      String prefix = getFilePrefix(testSetFolderPath);
+      File[] files = new File(QcConstants.QC_SNAPSHOT_DIR).listFiles();
+      if (files != null) {
+         for (File file : files) {
+            long version = getVersion(file, prefix);
+            if (version > newestVersion) {
+               newest = file;
+               newestVersion = version;
+            }
+         }
+      }
+      return newest;
+   }
+
+   /**
+    * Return a snapshot file for a new snapshot of a test set folder, versioned by the current time.
+    *
+    * @param testSetFolderPath - testset folder path.
+    * @return snapshot file that does not exist yet.
+    */
+   public static File newSnapshotFile(String testSetFolderPath)
+   {
+      String prefix = getFilePrefix(testSetFolderPath);
+      File latest = getSnapshotFile(testSetFolderPath);
+      long version = Math.max(System.currentTimeMillis(), (latest != null ? getVersion(latest, prefix) + 1 : 0));
+      File file;
+      while ((file = new File(QcConstants.QC_SNAPSHOT_DIR, prefix + version + FILE_SUFFIX)).exists()) {
+         version++;
+      }
+      return file;
+   }
+
+   /**
+    * Deletes the snapshot files of a test set folder older than the given file.
+    */
+   private static void deleteOldFiles(String testSetFolderPath,
+                                      File current)
+   {
+      String prefix = getFilePrefix(testSetFolderPath);
+      long currentVersion = getVersion(current, prefix);
+      File[] files = new File(QcConstants.QC_SNAPSHOT_DIR).listFiles();
+      if (files != null) {
+         for (File file : files) {
+            long version = getVersion(file, prefix);
+            if (version >= 0 && version < currentVersion && !file.delete()) {
+               //still mapped on Windows, deleted by a later refresh.
+               log.debug("Unable to delete old test lab snapshot :" + file);
+            }
+         }
+      }
+   }
+
+   /**
+    * Return file name prefix of the snapshots of a test set folder, a hash of the QC endpoint and
+    * the folder path.
+    */
+   private static String getFilePrefix(String testSetFolderPath)
+   {
+      try {
+         MessageDigest digest = MessageDigest.getInstance("SHA-256");
+         byte[] hash = digest.digest((QcConstants.QC_ENDPOINT_URL + "|" + testSetFolderPath)
+                  .getBytes(StandardCharsets.UTF_8));
+         StringBuilder name = new StringBuilder();
+         for (int i = 0; i < 16; i++) {
+            name.append(String.format("%02x", hash[i]));
+         }
+         return name.append('-').toString();
+      } catch (Exception ex) {
+         throw new IllegalStateException("SHA-256 is not available", ex);
+      }
+   }
+
+   /**
+    * Return version of a snapshot file, -1 if it is not a snapshot file with the given prefix.
+    */
+   private static long getVersion(File file,
+                                  String prefix)
+   {
+      String name = file.getName();
+      if (name.startsWith(prefix) && name.endsWith(FILE_SUFFIX)) {
+         try {
+            return Long.parseLong(name.substring(prefix.length(), name.length() - FILE_SUFFIX.length()));
+         } catch (NumberFormatException nfe) {
+            return -1;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Return test set folder path of the snapshot.
+    */
+   public String getTestSetFolderPath()
+   {
+      return testSetFolderPath;
+   }
+
+   /**
+    * Return time [in milliseconds since epoch] the snapshot was created.
+    */
+   public long getCreatedAt()
+   {
+      return createdAt;
+   }
+
+   /**
+    * Return number of test instances in the snapshot.
+    */
+   public int getTestInstanceCount()
+   {
+      return testInstanceCount;
+   }
+
+   /**
+    * Return test sets of the snapshot.
+    *
+    * @return testset map containing testset id as key and testset name as value.
+    */
+   public Map<Long, String> getTestSets()
+   {
+      return getTestSetRegistry().asMap();
+   }
+
+   /**
+    * Return test sets of the snapshot indexed by id and by name. The registry is read from the
+    * snapshot on the first call.
+    */
+   public TestSetRegistry getTestSetRegistry()
+   {
+      TestSetRegistry registry = testSetRegistry;
+      if (registry == null) {
+         registry = new TestSetRegistry();
+         for (int i = 0; i < testSetCount; i++) {
+            int record = testSetsOffset + i * TESTSET_RECORD_SIZE;
+            registry.add(buffer.getLong(record), getString(buffer.getInt(record + 16)),
+                     getString(buffer.getInt(record + 20)));
+         }
+         testSetRegistry = registry;
+      }
+      return registry;
+   }
+
+   /**
+    * Gets testset id for a given testset name.
+    *
+    * @param testsetName - testset name, or folder name\testset name [see {@link TestSetRegistry}].
+    * @return testset id, 0 if no test set is found.
+    */
+   public long getTestSetId(String testsetName)
+   {
+      return getTestSetRegistry().getId(testsetName);
+   }
+
+   /**
+    * Return test instances of test sets.
+    *
+    * @param testSetIds test set ids, null for all test sets.
+    * @return list of test instances, empty if none is found.
+    */
+   public List<TestInstanceInfo> getTestInstances(Collection<Long> testSetIds)
+   {
+      List<TestInstanceInfo> testInstances = new ArrayList<TestInstanceInfo>();
+      Set<Long> testSetIdSet = (testSetIds != null ? new HashSet<Long>(testSetIds) : null);
+      for (int i = 0; i < testInstanceCount; i++) {
+         //the test set id is read from the record, so other test instances are not decoded.
+         if (testSetIdSet == null || testSetIdSet.contains(buffer.getLong(
+                  testInstancesOffset + i * TESTINSTANCE_RECORD_SIZE + 16))) {
+            testInstances.add(getTestInstance(i));
+         }
+      }
+      return testInstances;
+   }
+
+   /**
+    * Returns an iterator that decodes the test instances of the snapshot one at a time.
+    */
+   public Iterator<TestInstanceInfo> iterateTestInstances()
+   {
+      return new Iterator<TestInstanceInfo>() {
+         private int next = 0;
+
+         public boolean hasNext()
+         {
+            return next < testInstanceCount;
+         }
+
+         public TestInstanceInfo next()
+         {
+            if (!hasNext()) {
+               throw new NoSuchElementException();
+            }
+            return getTestInstance(next++);
+         }
+      };
+   }
+
+   /**
+    * Finds a test instance by its test name and test instance name through the index. Only the
+    * records probed are read, so a lookup does not decode the snapshot.
+    *
+    * @param testName test name.
+    * @param testInstanceName test instance name, if it is null the test name is used.
+    * @param testSetId test set of the test instance, 0 for any test set.
+    * @return test instance, null if it is not found.
+    */
+   public TestInstanceInfo findTestInstance(String testName,
+                                            String testInstanceName,
+                                            long testSetId)
+   {
+      String name = (QcUtil.isEmpty(testInstanceName) ? testName : testInstanceName);
+      int slot = hash(testName, name) & (indexSlots - 1);
+      int recordNumber;
+      while ((recordNumber = buffer.getInt(indexOffset + slot * 4)) != 0) {
+         int record = testInstancesOffset + (recordNumber - 1) * TESTINSTANCE_RECORD_SIZE;
+         if ((testSetId == 0 || buffer.getLong(record + 16) == testSetId)
+                  && name.equals(getString(buffer.getInt(record + 24)))
+                  && testName.equals(getString(buffer.getInt(record + 28)))) {
+            return getTestInstance(recordNumber - 1);
+         }
+         slot = (slot + 1) & (indexSlots - 1);
+      }
+      return null;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "TestLabSnapshot [folder=" + testSetFolderPath + ", testSets=" + testSetCount
+               + ", testInstances=" + testInstanceCount + ", file=" + file + "]";
+   }
+
+   private TestInstanceInfo getTestInstance(int recordNumber)
+   {
+      int record = testInstancesOffset + recordNumber * TESTINSTANCE_RECORD_SIZE;
+      TestInstanceInfo testInstance = new TestInstanceInfo();
+      testInstance.setId(buffer.getLong(record));
+      testInstance.setTestId(buffer.getLong(record + 8));
+      testInstance.setTestSetId(buffer.getLong(record + 16));
+      testInstance.setName(getString(buffer.getInt(record + 24)));
+      testInstance.setTestName(getString(buffer.getInt(record + 28)));
+      int status = buffer.getInt(record + 32);
+      testInstance.setStatus(status >= 0 ? QcTestStatus.values()[status] : null);
+      return testInstance;
+   }
+
+   private String getString(int ref)
+   {
+      if (ref < 0) {
+         return null;
+      }
+      int position = stringsOffset + ref;
+      byte[] bytes = new byte[buffer.getInt(position)];
+      buffer.get(position + 4, bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+   private static int putString(String value,
+                                DataOutputStream stringsOut,
+                                Map<String, Integer> stringRefs)
+                                throws IOException
+   {
+      if (value == null) {
+         return -1;
+      }
+      Integer ref = stringRefs.get(value);
+      if (ref == null) {
+         ref = stringsOut.size();
+         byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+         stringsOut.writeInt(bytes.length);
+         stringsOut.write(bytes);
+         stringRefs.put(value, ref);
+      }
+      return ref;
+   }
+
+   private static int hash(String testName, String testInstanceName)
+   {
+      int hash = 31 * String.valueOf(testName).hashCode() + String.valueOf(testInstanceName).hashCode();
+      return hash ^ (hash >>> 16);
+   }
+}
@@ -4,15 +4,28 @@
  */
 package com.vmware.qc;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Contains test run information.
  */
 public class TestRunInfo
 {
+   /**
+    * Request name under which attempts of the test run POST are recorded.
+    */
+   public static final String RUN_POST_REQUEST = "POST /run";
+
+   /**
+    * Prefix of the request name under which attempts of a log file upload are recorded.
+    * The log file path is appended to it.
+    */
+   public static final String LOG_UPLOAD_REQUEST_PREFIX = "UPLOAD ";
+
    private long id;
    private String name;
    private long testInstanceId;
@@ -24,6 +37,7 @@ public class TestRunInfo
    private List<String> clientLogFilePaths;
    private List<String> bugIds;
    public Map<String, String> customFields = new HashMap<String, String>();
+   private final Map<String, Integer> requestAttempts = new ConcurrentHashMap<String, Integer>();
 
    /**
     * Return test run id.
@@ -276,4 +290,37 @@ public class TestRunInfo
         this.customFields = customFields;
     }
 
-}
\ No newline at end of file
+   /**
+    * Record the number of attempts made for a QC request of this test run.
+    *
+    * @param requestName request name [Ex : {@link #RUN_POST_REQUEST}].
+    * @param attempts number of attempts, retries included.
+    */
+   public void setRequestAttempts(String requestName, int attempts)
+   {
+      requestAttempts.put(requestName, attempts);
+   }
+
+   /**
+    * Return the number of attempts made for a QC request of this test run.
+    *
+    * @param requestName request name [Ex : {@link #RUN_POST_REQUEST}].
+    * @return number of attempts, 0 if the request was not sent.
+    */
+   public int getRequestAttempts(String requestName)
+   {
+      Integer attempts = requestAttempts.get(requestName);
+      return (attempts != null ? attempts : 0);
+   }
+
+   /**
+    * Return the number of attempts made for each QC request of this test run.
+    *
+    * @return map [key = request name | value = attempts].
+    */
+   public Map<String, Integer> getRequestAttempts()
+   {
+      return Collections.unmodifiableMap(requestAttempts);
+   }
+
+}
@@ -0,0 +1,203 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Contains the outcome of a test run result added to {@link PostResult2Qc} : what happened to it,
+ * the id of the test run created in QC, the attempts made for each QC request, the outcome of each
+ * log upload and the time spent in queue and in posting.
+ */
+public class TestRunOutcome
+{
+   /**
+    * What happened to a test run result.
+    */
+   public enum Status {
+      /** The test run is created in QC [log uploads may still have failed]. */
+      POSTED,
+      /** The test run could not be created in QC. */
+      FAILED,
+      /** Not posted, as the test already passed and overwrite of pass status is disabled. */
+      SKIPPED,
+      /**
+       * Written into the result spool, to be posted once QC is available. This outcome is final :
+       * the spool drainer posts the result later as a new queued result, whose outcome is only
+       * counted in {@link PostStatistics} and not reported to the caller that added it.
+       */
+      SPOOLED,
+      /** Not accepted, as the pipeline is stopping. */
+      REJECTED,
+      /** Not posted, as a later or worse result for the same test instance is posted instead [see qc.post.coalesce]. */
+      SUPERSEDED
+   }
+
+   private final TestRunInfo testRunInfo;
+   private final long queuedAt;
+   private volatile long startedAt = 0;
+   private volatile long finishedAt = 0;
+   private volatile Status status;
+   private volatile long testRunId = 0;
+   private volatile Map<String, Integer> requestAttempts = Collections.emptyMap();
+   private final Map<String, Boolean> logUploads = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>());
+
+   /**
+    * Constructor.
+    *
+    * @param testRunInfo test run result.
+    */
+   TestRunOutcome(TestRunInfo testRunInfo)
+   {
+      this.testRunInfo = testRunInfo;
+      this.queuedAt = System.currentTimeMillis();
+   }
+
+   /**
+    * Record the time posting started.
+    */
+   void started()
+   {
+      startedAt = System.currentTimeMillis();
+   }
+
+   /**
+    * Record the outcome and the attempts made for the test run's QC requests.
+    */
+   void finished(Status status)
+   {
+      this.requestAttempts = new HashMap<String, Integer>(testRunInfo.getRequestAttempts());
+      this.status = status;
+      this.finishedAt = System.currentTimeMillis();
+   }
+
+   /**
+    * Set id of the test run created in QC.
+    */
+   void setTestRunId(long testRunId)
+   {
+      this.testRunId = testRunId;
+   }
+
+   /**
+    * Add outcome of a log file upload.
+    */
+   void addLogUpload(String logFilePath, boolean uploaded)
+   {
+      logUploads.put(logFilePath, uploaded);
+   }
+
+   /**
+    * Return test run result added to the queue.
+    */
+   public TestRunInfo getTestRunInfo()
+   {
+      return testRunInfo;
+   }
+
+   /**
+    * Return time [in milliseconds since epoch] the result was added to the queue.
+    */
+   public long getQueuedAt()
+   {
+      return queuedAt;
+   }
+
+   /**
+    * Return what happened to the test run result.
+    */
+   public Status getStatus()
+   {
+      return status;
+   }
+
+   /**
+    * Checks whether the test run is created in QC.
+    */
+   public boolean isPosted()
+   {
+      return status == Status.POSTED;
+   }
+
+   /**
+    * Return id of the test run created in QC, 0 if it is not created.
+    */
+   public long getTestRunId()
+   {
+      return testRunId;
+   }
+
+   /**
+    * Return the number of attempts made for each QC request of the test run.
+    *
+    * @return map [key = request name | value = attempts].
+    */
+   public Map<String, Integer> getRequestAttempts()
+   {
+      return Collections.unmodifiableMap(requestAttempts);
+   }
+
+   /**
+    * Return the outcome of each log file upload.
+    *
+    * @return map [key = log file path | value = uploaded (true / false)], in upload order.
+    */
+   public Map<String, Boolean> getLogUploads()
+   {
+      synchronized (logUploads) {
+         return Collections.unmodifiableMap(new LinkedHashMap<String, Boolean>(logUploads));
+      }
+   }
+
+   /**
+    * Checks whether all log files are uploaded.
+    */
+   public boolean isLogsUploaded()
+   {
+      synchronized (logUploads) {
+         return !logUploads.containsValue(Boolean.FALSE);
+      }
+   }
+
+   /**
+    * Return milliseconds the result waited in queue, -1 if posting did not start.
+    */
+   public long getQueueTime()
+   {
+      return (startedAt > 0 ? startedAt - queuedAt : -1);
+   }
+
+   /**
+    * Return milliseconds spent in posting the result and uploading its logs, -1 if posting did not start.
+    */
+   public long getPostTime()
+   {
+      return (startedAt > 0 && finishedAt > 0 ? finishedAt - startedAt : -1);
+   }
+
+   /**
+    * Return milliseconds from adding the result to the queue to its outcome.
+    */
+   public long getTotalTime()
+   {
+      return (finishedAt > 0 ? finishedAt - queuedAt : -1);
+   }
+
+   public String toString()
+   {
+      StringBuilder sb = new StringBuilder();
+      sb.append("status =" + status)
+        .append(", testRunId =" + testRunId)
+        .append(", requestAttempts =" + requestAttempts)
+        .append(", logUploads =" + getLogUploads())
+        .append(", queueTime =" + getQueueTime())
+        .append(", postTime =" + getPostTime())
+        .append(", testRun =[" + testRunInfo + "]");
+      return sb.toString();
+   }
+}
@@ -12,6 +12,7 @@ public class TestSetInfo
    private long id;
    private String name;
    private long parentFolderId;
+   private String folderName;
 
    /**
     * Get Test Set id.
@@ -61,12 +62,29 @@ public class TestSetInfo
       this.parentFolderId = parentFolderId;
    }
 
+   /**
+    * Get name of test set's parent folder, null if it is not known.
+    */
+   public String getFolderName()
+   {
+      return folderName;
+   }
+
+   /**
+    * Sets name of test set's parent folder.
+    */
+   public void setFolderName(String folderName)
+   {
+      this.folderName = folderName;
+   }
+
    public String toString()
    {
       StringBuilder sb = new StringBuilder();
       sb.append("id =" + id)
         .append(", name = " + name)
-        .append(", parentFolderId =" + parentFolderId);
+        .append(", parentFolderId =" + parentFolderId)
+        .append(", folderName =" + folderName);
       return sb.toString();
    }
 
@@ -0,0 +1,198 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test sets of a test set folder, indexed by id and by name, so that test set ids and names are
+ * resolved with hash lookups instead of scans of a testset map [QcUtil.getIdByName, QcUtil.getIds].
+ *
+ * Test sets in different sub-folders can have the same name. A name resolves to the first test set
+ * registered with it [test sets of the folder itself are listed before test sets of its sub-folders],
+ * and a test set of a specific folder is resolved by its path : folder name\test set name
+ * [Ex : CoreVC\VC-ESX50i]. A longer path is resolved by its last two parts, and only test sets whose
+ * folder name is known [read from the test lab tree] can be resolved by path.
+ *
+ * The registry is not synchronized. It is built once and then shared for lookups only.
+ */
+public class TestSetRegistry
+{
+   private static final String PATH_SEPARATOR = "\\";
+   private final static Logger log = LoggerFactory.getLogger(TestSetRegistry.class);
+
+   private final Map<Long, String> namesById = new LinkedHashMap<Long, String>();
+   private final Map<String, Long> idsByName = new HashMap<String, Long>();
+   private final Map<String, Long> idsByPath = new HashMap<String, Long>();
+
+   public TestSetRegistry()
+   {
+   }
+
+   /**
+    * Constructor. Registers the given test sets.
+    *
+    * @param testSets test sets, can be null.
+    */
+   public TestSetRegistry(Collection<TestSetInfo> testSets)
+   {
+      if (testSets != null) {
+         for (TestSetInfo testSet : testSets) {
+            add(testSet.getId(), testSet.getName(), testSet.getFolderName());
+         }
+      }
+   }
+
+   /**
+    * Constructor. Registers the test sets of a testset map.
+    *
+    * @param testSets testset map containing testset id as key and testset name as value, can be null.
+    */
+   public TestSetRegistry(Map<Long, String> testSets)
+   {
+      if (testSets != null) {
+         for (Map.Entry<Long, String> me : testSets.entrySet()) {
+            add(me.getKey(), me.getValue(), null);
+         }
+      }
+   }
+
+   /**
+    * Registers a test set.
+    *
+    * @param id test set id.
+    * @param name test set name, can be null or empty if it is not known [Ex : test sets of qc.testset.ids].
+    * @param folderName name of the test set's parent folder, null if it is not known.
+    */
+   public void add(long id,
+                   String name,
+                   String folderName)
+   {
+      namesById.put(id, name);
+      if (QcUtil.isEmpty(name)) {
+         return;
+      }
+      Long firstId = idsByName.get(name);
+      if (firstId == null) {
+         idsByName.put(name, id);
+      } else if (firstId != id) {
+         log.warn("Test set name {} is used by test sets {}, use folder name\\test set name to select one",
+                  name, firstId + ", " + id);
+      }
+      if (folderName != null) {
+         String path = folderName + PATH_SEPARATOR + name;
+         if (!idsByPath.containsKey(path)) {
+            idsByPath.put(path, id);
+         }
+      }
+   }
+
+   /**
+    * Gets testset id for a given testset name or path.
+    *
+    * @param testsetName - testset name, or folder name\testset name.
+    * @return testset id, 0 if no test set is found.
+    */
+   public long getId(String testsetName)
+   {
+      if (testsetName == null) {
+         return 0;
+      }
+      Long id = idsByName.get(testsetName);
+      if (id == null) {
+         int separator = testsetName.lastIndexOf(PATH_SEPARATOR);
+         if (separator > 0) {
+            int folderSeparator = testsetName.lastIndexOf(PATH_SEPARATOR, separator - 1);
+            id = idsByPath.get(testsetName.substring(folderSeparator + 1));
+         }
+      }
+      return (id != null ? id : 0);
+   }
+
+   /**
+    * Gets testset ids for the given testset names or paths. Names without a test set are skipped.
+    *
+    * @param testsetNames - testset names.
+    * @return list of distinct testset ids in the order of the names, null if none is found.
+    */
+   public List<Long> getIds(Collection<String> testsetNames)
+   {
+      LinkedHashMap<Long, Boolean> ids = new LinkedHashMap<Long, Boolean>();
+      for (String testsetName : testsetNames) {
+         long id = getId(testsetName);
+         if (id > 0) {
+            ids.put(id, Boolean.TRUE);
+         }
+      }
+      return (!ids.isEmpty() ? new ArrayList<Long>(ids.keySet()) : null);
+   }
+
+   /**
+    * Return ids of all test sets in the order they were registered.
+    */
+   public List<Long> getIds()
+   {
+      return new ArrayList<Long>(namesById.keySet());
+   }
+
+   /**
+    * Gets testset name for a given testset id.
+    *
+    * @param testsetId - testset id.
+    * @return testset name, null if no test set is found.
+    */
+   public String getName(long testsetId)
+   {
+      return namesById.get(testsetId);
+   }
+
+   /**
+    * Checks whether a test set is registered.
+    *
+    * @param testsetId - testset id.
+    */
+   public boolean contains(long testsetId)
+   {
+      return namesById.containsKey(testsetId);
+   }
+
+   /**
+    * Return test sets as a read only testset map containing testset id as key and testset name as value.
+    */
+   public Map<Long, String> asMap()
+   {
+      return Collections.unmodifiableMap(namesById);
+   }
+
+   /**
+    * Return number of registered test sets.
+    */
+   public int size()
+   {
+      return namesById.size();
+   }
+
+   /**
+    * Checks whether no test set is registered.
+    */
+   public boolean isEmpty()
+   {
+      return namesById.isEmpty();
+   }
+
+   public String toString()
+   {
+      return namesById.toString();
+   }
+}
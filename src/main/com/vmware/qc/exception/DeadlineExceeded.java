@@ -0,0 +1,17 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc.exception;
+
+/**
+ * This exception is thrown when a request is not sent [or not retried] because it
+ * cannot complete before its deadline.
+ */
+public class DeadlineExceeded extends QcException
+{
+   public DeadlineExceeded(String errorMsg)
+   {
+      super(errorMsg);
+   }
+}
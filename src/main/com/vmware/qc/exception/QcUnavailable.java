@@ -0,0 +1,17 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc.exception;
+
+/**
+ * This exception is thrown when a request is not sent because QC is considered unavailable
+ * [the circuit breaker is open].
+ */
+public class QcUnavailable extends QcException
+{
+   public QcUnavailable(String errorMsg)
+   {
+      super(errorMsg);
+   }
+}
@@ -0,0 +1,18 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc.exception;
+
+/**
+ * This exception wraps an exception thrown by a QC request made where checked exceptions
+ * cannot be thrown [Ex : Iterator.hasNext() of a lazily paged result]. The original
+ * exception is its cause.
+ */
+public class UncheckedQcException extends RuntimeException
+{
+   public UncheckedQcException(Exception cause)
+   {
+      super(cause.getMessage(), cause);
+   }
+}
@@ -6,10 +6,9 @@
 package com.vmware.qc.file;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,9 +17,14 @@ import com.vmware.qc.PostResult2Qc;
 import com.vmware.qc.QcConnector;
 import com.vmware.qc.QcConstants;
 import com.vmware.qc.QcTestStatus;
-import com.vmware.qc.QcUtil;
+import com.vmware.qc.TestInstanceIndex;
 import com.vmware.qc.TestInstanceInfo;
+import com.vmware.qc.TestLabSnapshot;
 import com.vmware.qc.TestRunInfo;
+import com.vmware.qc.TestRunOutcome;
+import com.vmware.qc.TestSetInfo;
+import com.vmware.qc.TestSetRegistry;
+import com.vmware.qc.exception.UncheckedQcException;
 
 /**
  * This class implements the task of uploading the test results into the QC by offline upload mechanism.
@@ -30,8 +34,10 @@ import com.vmware.qc.TestRunInfo;
 public class PostResultFile2Qc
 {
    private final QcConnector connector;
-   private final Map<String, Object> cacheTestInstances = new HashMap<String, Object>();
-   private final Map<Long, String> cacheAllTestSets = new HashMap<Long, String>();
+   private final TestInstanceIndex testInstanceIndex = new TestInstanceIndex();
+   private TestSetRegistry testSetRegistry = new TestSetRegistry();
+   private TestLabSnapshot snapshot;
+   private List<String> testsetNames;
    public static final Logger log = LoggerFactory.getLogger(PostResultFile2Qc.class);
 
    public PostResultFile2Qc()
@@ -66,12 +72,15 @@ public class PostResultFile2Qc
       }
       log.info("List of testset names :" + testsetNames);
       loadTestInstances(testsetNames);
-      if (cacheTestInstances.isEmpty()) {
+      if (snapshot == null && testInstanceIndex.isEmpty()) {
          log.error("No test instances found");
          return;
       }
       int failedCount = 0;
-      PostResult2Qc postResult2Qc = PostResult2Qc.getInstance();
+      int spooledCount = 0;
+      List<CompletableFuture<TestRunOutcome>> outcomes = new ArrayList<CompletableFuture<TestRunOutcome>>();
+      //fixed name, so results spooled by an earlier upload are posted by the next one.
+      PostResult2Qc postResult2Qc = new PostResult2Qc("resultfile");
       postResult2Qc.start();
       for(TestResultData resultData : testResults) {
          String testName = resultData.getTestName();
@@ -86,7 +95,7 @@ public class PostResultFile2Qc
             testrunInfo.setBuildNumbers(resultData.getBuildNumbers() == null ? QcConstants.QC_BUILD_NUMBERS
                      : resultData.getBuildNumbers());
             testrunInfo.setCustomFields(resultData.getCustomFields());
-            postResult2Qc.addToQueue(testrunInfo);
+            outcomes.add(postResult2Qc.addToQueue(testrunInfo));
             log.debug("Testrun info :" + testrunInfo);
          } else {
             log.error("Couldn't find test instance id for test name :" + testName);
@@ -94,54 +103,99 @@ public class PostResultFile2Qc
          }
       }
       postResult2Qc.stop();
-      for(Boolean status : postResult2Qc.getTestRunsPostedStatus().values()) {
-         if (!status) {
+      for(CompletableFuture<TestRunOutcome> future : outcomes) {
+         TestRunOutcome outcome = future.getNow(null);
+         if (outcome != null && outcome.getStatus() == TestRunOutcome.Status.SPOOLED) {
+            //not posted yet, neither a success nor a failure.
+            spooledCount++;
+         } else if (outcome == null || outcome.getStatus() == TestRunOutcome.Status.FAILED
+                  || outcome.getStatus() == TestRunOutcome.Status.REJECTED
+                  || (outcome.isPosted() && !outcome.isLogsUploaded())) {
             failedCount++;
          }
       }
       log.info("Total number of valid test result rows :" + testResults.size()
                + ", Number of test results failed to post into QC :" + failedCount);
+      if (spooledCount > 0) {
+         log.warn("Number of test results spooled in " + postResult2Qc.getResultSpool().getSpoolDir()
+                  + ", to be posted by the next upload once QC is available :" + spooledCount);
+      }
+      log.info("PostResult2Qc statistics :" + postResult2Qc.getStatistics());
    }
 
    /**
-    * Load all test instances associated to the given testset names from QC and cache them.
+    * Load all test instances associated to the given testset names from QC and cache them. If the
+    * test lab snapshot is enabled and has all the test sets, test instances are looked up in the
+    * snapshot instead, and are loaded from QC only once the snapshot misses one.
     *
     * @param testsetNames list of testset name.
     */
    private void loadTestInstances(List<String> testsetNames)
                                   throws Exception
    {
-      Map<Long, String> allTestsets = connector.getTestSets(QcConstants.QC_TESTSETFOLDER_PATH);
-      if (allTestsets != null && !allTestsets.isEmpty()) {
-         cacheAllTestSets.putAll(allTestsets);
-            List<Long> testsetIds = null;
-            if (QcConstants.QC_TESTSET_IDS != null && QcConstants.QC_TESTSET_IDS.length > 0) {
-                testsetIds = new ArrayList<Long>(allTestsets.keySet());
-            } else {
-                testsetIds = QcUtil.getIds(allTestsets, testsetNames);
+      this.testsetNames = testsetNames;
+      if (QcConstants.QC_SNAPSHOT_ENABLE && (QcConstants.QC_TESTSET_IDS == null
+               || QcConstants.QC_TESTSET_IDS.length == 0)) {
+         try {
+            snapshot = TestLabSnapshot.getSnapshot(QcConstants.QC_TESTSETFOLDER_PATH);
+            TestSetRegistry allTestsets = snapshot.getTestSetRegistry();
+            boolean allFound = true;
+            for (String testsetName : testsetNames) {
+               allFound &= allTestsets.getId(testsetName) > 0;
+            }
+            if (allFound) {
+               testSetRegistry = allTestsets;
+               log.info("Looking up test instances in test lab snapshot :" + snapshot);
+               return;
             }
+            discardSnapshot("testsets " + testsetNames);
+         } catch (Exception ex) {
+            log.error("Got an exception while loading test lab snapshot, reading test lab from QC :", ex);
+            snapshot = null;
+         }
+      }
+      loadTestInstancesFromQc(testsetNames);
+   }
+
+   /**
+    * Stops using the test lab snapshot once it misses a test set or test instance of the result
+    * file, as it is older than QC. The snapshot is refreshed in the background for the next uploads.
+    */
+   private void discardSnapshot(String missing)
+   {
+      log.info("Test lab snapshot has no " + missing + ", reading test lab from QC and refreshing the snapshot");
+      TestLabSnapshot.refreshAsync(QcConstants.QC_TESTSETFOLDER_PATH);
+      snapshot = null;
+   }
+
+   /**
+    * Load all test instances associated to the given testset names from QC and cache them.
+    *
+    * @param testsetNames list of testset name.
+    */
+   private void loadTestInstancesFromQc(List<String> testsetNames)
+                                        throws Exception
+   {
+      boolean testsetIdsGiven = (QcConstants.QC_TESTSET_IDS != null && QcConstants.QC_TESTSET_IDS.length > 0);
+      TestSetRegistry allTestsets = connector.getTestSetRegistry(QcConstants.QC_TESTSETFOLDER_PATH);
+      if (allTestsets != null && !allTestsets.isEmpty()) {
+         testSetRegistry = (testsetIdsGiven ? nameTestSets(allTestsets) : allTestsets);
+         List<Long> testsetIds = (testsetIdsGiven ? allTestsets.getIds() : allTestsets.getIds(testsetNames));
          if (testsetIds != null && !testsetIds.isEmpty()) {
-            List<TestInstanceInfo> testInstances = connector.getTestInstances(testsetIds);
-            if (testInstances != null && !testInstances.isEmpty()) {
-               for (TestInstanceInfo testInstance : testInstances) {
-                  if (!cacheTestInstances.containsKey(testInstance.getTestName())) {
-                     cacheTestInstances.put(testInstance.getTestName(),
-                              testInstance);
-                  } else {
-                     // This same test has multiple test instances.
-                     Object obj = cacheTestInstances.get(testInstance.getTestName());
-                     if (obj instanceof TestInstanceInfo) {
-                        cacheTestInstances.put(testInstance.getTestName(),
-                                 new ArrayList(Arrays.asList(((TestInstanceInfo) obj),
-                                          testInstance)));
-                     } else if (obj instanceof List) {
-                        List<TestInstanceInfo> testList = ((List<TestInstanceInfo>) cacheTestInstances.get(testInstance.getTestName()));
-                        testList.add(testInstance);
-                        cacheTestInstances.put(testInstance.getTestName(),
-                                 testList);
-                     }
-                  }
+            //test instances are indexed page by page as they arrive from QC.
+            Iterator<TestInstanceInfo> testInstances = connector.iterateTestInstances(testsetIds);
+            int testInstanceCount = 0;
+            try {
+               while (testInstances.hasNext()) {
+                  TestInstanceInfo testInstance = testInstances.next();
+                  testInstanceCount++;
+                  testInstanceIndex.add(testInstance);
                }
+            } catch (UncheckedQcException uqe) {
+               throw (Exception) uqe.getCause();
+            }
+            if (testInstanceCount > 0) {
+               log.info("Loaded " + testInstanceCount + " test instances from QC");
             } else {
                log.warn("No test instances found associated to specified testset names :"
                         + testsetNames);
@@ -157,7 +211,41 @@ public class PostResultFile2Qc
    }
 
    /**
-    * Find test instance associated to a test in test instances cache.
+    * Names the test sets of qc.testset.ids [registered without names] after the test sets of the
+    * same ids under qc.testsetfolder.path, so that result rows are matched to their own test set.
+    * Test sets not found under the folder are kept without name.
+    *
+    * @param testsetIds test sets of qc.testset.ids.
+    * @return test set registry.
+    */
+   private TestSetRegistry nameTestSets(TestSetRegistry testsetIds)
+   {
+      TestSetRegistry namedTestsets = new TestSetRegistry();
+      try {
+         List<TestSetInfo> folderTestsets = connector.getTestSets(QcConstants.QC_TESTSETFOLDER_PATH, true);
+         if (folderTestsets != null) {
+            for (TestSetInfo testset : folderTestsets) {
+               if (testsetIds.contains(testset.getId())) {
+                  namedTestsets.add(testset.getId(), testset.getName(), testset.getFolderName());
+               }
+            }
+         }
+      } catch (Exception ex) {
+         log.warn("Could not read test set names under folder :" + QcConstants.QC_TESTSETFOLDER_PATH
+                  + ", result rows are matched to test instances of any of qc.testset.ids", ex);
+      }
+      for (Long testsetId : testsetIds.getIds()) {
+         if (!namedTestsets.contains(testsetId)) {
+            namedTestsets.add(testsetId, "", null);
+         }
+      }
+      return namedTestsets;
+   }
+
+   /**
+    * Find test instance associated to a test in test instances cache. The test instance must be in
+    * the test set of the result row; only with qc.testset.ids set, a row whose test set is not
+    * known matches a test instance of any of those test sets.
     *
     * @param resultData
     * @return test instance
@@ -165,34 +253,25 @@ public class PostResultFile2Qc
    private TestInstanceInfo findTestInstance(TestResultData resultData)
                                              throws Exception
    {
-      TestInstanceInfo testInstance = null;
       String testInstanceName = (resultData.getTestConfigId() == null ? resultData.getTestName()
                : resultData.getTestConfigId());
-      Object obj = cacheTestInstances.get(resultData.getTestName());
-      if (obj != null) {
-         if (obj instanceof TestInstanceInfo) {
-            TestInstanceInfo testInstance1 = (TestInstanceInfo) obj;
-            if (testInstance1.getName().equals(testInstanceName)
-                     && testInstance1.getTestName().equals(
-                              resultData.getTestName())
-                        && (QcConstants.QC_TESTSET_IDS != null || testInstance1.getTestSetId() == QcUtil
-                                .getIdByName(cacheAllTestSets, resultData.getTestSetName()))) {
-               testInstance = testInstance1;
-            }
-         } else if (obj instanceof List) {
-            List<TestInstanceInfo> testInstances = (List<TestInstanceInfo>) obj;
-            for (TestInstanceInfo testInstance1 : testInstances) {
-               if (testInstance1.getName().equals(testInstanceName)
-                        && testInstance1.getTestName().equals(
-                                 resultData.getTestName())
-                        && testInstance1.getTestSetId() == QcUtil.getIdByName(
-                                 cacheAllTestSets, resultData.getTestSetName())) {
-                  testInstance = testInstance1;
-                  break;
-               }
-            }
+      if (snapshot != null) {
+         TestInstanceInfo testInstance = snapshot.findTestInstance(resultData.getTestName(), testInstanceName,
+                  testSetRegistry.getId(resultData.getTestSetName()));
+         if (testInstance != null) {
+            return testInstance;
          }
+         discardSnapshot("test instance for test " + resultData.getTestName());
+         loadTestInstancesFromQc(testsetNames);
+      }
+      long testSetId = testSetRegistry.getId(resultData.getTestSetName());
+      if (testSetId != 0) {
+         return testInstanceIndex.find(resultData.getTestName(), testInstanceName, testSetId);
+      }
+      if (QcConstants.QC_TESTSET_IDS != null && QcConstants.QC_TESTSET_IDS.length > 0) {
+         //the row's test set is not one of qc.testset.ids, any of them may hold the test.
+         return testInstanceIndex.find(resultData.getTestName(), testInstanceName);
       }
-      return testInstance;
+      return null;
    }
 }
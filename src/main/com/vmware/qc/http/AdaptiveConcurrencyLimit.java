@@ -0,0 +1,166 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vmware.qc.QcConstants;
+
+/**
+ * Limits the number of requests in flight against QC to a window that adapts to what QC
+ * can currently absorb [additive increase, multiplicative decrease].
+ *
+ *  A request that completes within the latency threshold while the window is fully used
+ *  grows the limit by 1/limit, i.e. by about one request per window of completed requests.
+ *  A request that is slower than the threshold, or that fails, shrinks the limit by the
+ *  backoff ratio. The limit is shrunk at most once per latency threshold period, so the
+ *  requests of one overloaded window do not collapse the limit to the minimum.
+ *
+ * Every {@link #acquire()} must be paired with exactly one of {@link #onSuccess(long)},
+ * {@link #onDropped()} or {@link #onIgnored()}.
+ *
+ * Configuration properties:
+ *  qc.concurrency.initial - limit at start up.
+ *  qc.concurrency.min - lower bound of the limit.
+ *  qc.concurrency.max - upper bound of the limit.
+ *  qc.concurrency.latency.threshold - milliseconds above which a request is taken as a sign of overload.
+ *  qc.concurrency.backoff.ratio - factor [0..1] the limit is multiplied by on overload.
+ */
+public class AdaptiveConcurrencyLimit
+{
+   private final static Logger log = LoggerFactory.getLogger(AdaptiveConcurrencyLimit.class);
+
+   private final int minLimit;
+   private final int maxLimit;
+   private final long latencyThreshold;
+   private final double backoffRatio;
+   private double limit;
+   private int inFlight = 0;
+   private long lastDecreaseTime = 0;
+
+   public AdaptiveConcurrencyLimit(int initialLimit,
+                                   int minLimit,
+                                   int maxLimit,
+                                   long latencyThreshold,
+                                   double backoffRatio)
+   {
+      this.minLimit = Math.max(1, minLimit);
+      this.maxLimit = Math.max(this.minLimit, maxLimit);
+      this.latencyThreshold = latencyThreshold;
+      this.backoffRatio = backoffRatio;
+      this.limit = Math.min(Math.max(initialLimit, this.minLimit), this.maxLimit);
+   }
+
+   /**
+    * Creates a limit configured in qcConfig.properties.
+    */
+   public static AdaptiveConcurrencyLimit newDefault()
+   {
+      return new AdaptiveConcurrencyLimit(QcConstants.QC_CONCURRENCY_INITIAL,
+               QcConstants.QC_CONCURRENCY_MIN, QcConstants.QC_CONCURRENCY_MAX,
+               QcConstants.QC_CONCURRENCY_LATENCY_THRESHOLD, QcConstants.QC_CONCURRENCY_BACKOFF_RATIO);
+   }
+
+   /**
+    * Creates a limit configured in qcConfig.properties whose upper bound is at most maxLimit
+    * [Ex : the number of threads that send the requests, so that no request waits for a thread
+    * while it holds a slot; that wait is not part of its latency and would let the limit grow
+    * past what QC absorbs].
+    */
+   public static AdaptiveConcurrencyLimit newDefault(int maxLimit)
+   {
+      return new AdaptiveConcurrencyLimit(QcConstants.QC_CONCURRENCY_INITIAL,
+               Math.min(QcConstants.QC_CONCURRENCY_MIN, maxLimit), Math.min(QcConstants.QC_CONCURRENCY_MAX, maxLimit),
+               QcConstants.QC_CONCURRENCY_LATENCY_THRESHOLD, QcConstants.QC_CONCURRENCY_BACKOFF_RATIO);
+   }
+
+   /**
+    * Waits until the number of requests in flight is below the limit and takes a slot.
+    */
+   public synchronized void acquire() throws InterruptedException
+   {
+      while (inFlight >= getLimit()) {
+         wait();
+      }
+      inFlight++;
+   }
+
+   /**
+    * Releases a slot of a request that completed, and adapts the limit to its latency.
+    *
+    * @param latency milliseconds the request took.
+    */
+   public synchronized void onSuccess(long latency)
+   {
+      if (latency > latencyThreshold) {
+         decrease("latency " + latency + " ms");
+      } else if (inFlight >= getLimit() && limit < maxLimit) {
+         int oldLimit = getLimit();
+         limit = Math.min(maxLimit, limit + 1.0 / limit);
+         if (getLimit() != oldLimit) {
+            log.info("QC concurrency limit increased to " + getLimit());
+         }
+      }
+      release();
+   }
+
+   /**
+    * Releases a slot of a request that failed or timed out, and shrinks the limit.
+    */
+   public synchronized void onDropped()
+   {
+      decrease("request failed");
+      release();
+   }
+
+   /**
+    * Releases a slot of a request whose outcome says nothing about the QC load
+    * [Ex : the request was not sent].
+    */
+   public synchronized void onIgnored()
+   {
+      release();
+   }
+
+   /**
+    * Return current limit of requests in flight.
+    */
+   public synchronized int getLimit()
+   {
+      return (int) limit;
+   }
+
+   /**
+    * Return number of requests in flight.
+    */
+   public synchronized int getInFlight()
+   {
+      return inFlight;
+   }
+
+   private void decrease(String reason)
+   {
+      long now = System.currentTimeMillis();
+      if (now - lastDecreaseTime < latencyThreshold) {
+         return;
+      }
+      lastDecreaseTime = now;
+      int oldLimit = getLimit();
+      limit = Math.max(minLimit, limit * backoffRatio);
+      if (getLimit() != oldLimit) {
+         log.warn("QC concurrency limit decreased from " + oldLimit + " to " + getLimit()
+                  + " [" + reason + "]");
+      }
+   }
+
+   private void release()
+   {
+      if (inFlight > 0) {
+         inFlight--;
+      }
+      notifyAll();
+   }
+}
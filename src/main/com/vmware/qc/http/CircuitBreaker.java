@@ -0,0 +1,195 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vmware.qc.QcConstants;
+
+/**
+ * Circuit breaker that stops sending requests to QC while QC is failing.
+ *
+ *  CLOSED - requests are sent; the outcome of the last requests is kept in a sliding window.
+ *           When the failure rate in the window reaches the threshold, the breaker opens.
+ *  OPEN - requests are refused without contacting QC until the open duration has elapsed.
+ *  HALF_OPEN - a single probe request is let through. Its success closes the breaker,
+ *              its failure opens it again.
+ *
+ * Only failures that denote an unavailable QC [socket errors, 5xx and 429 responses] are
+ * counted as failures; any other response proves that QC is up.
+ *
+ * Configuration properties:
+ *  qc.breaker.failure.rate - failure rate [0..1] at which the breaker opens.
+ *  qc.breaker.window.size - number of most recent requests the failure rate is computed over.
+ *  qc.breaker.min.calls - minimum number of requests in the window before the breaker can open.
+ *  qc.breaker.open.duration - milliseconds the breaker stays open before a probe is let through.
+ */
+public class CircuitBreaker
+{
+   /**
+    * Breaker states.
+    */
+   public enum State {
+      CLOSED, OPEN, HALF_OPEN
+   }
+
+   private static CircuitBreaker circuitBreaker = new CircuitBreaker(QcConstants.QC_BREAKER_FAILURE_RATE,
+            QcConstants.QC_BREAKER_WINDOW_SIZE, QcConstants.QC_BREAKER_MIN_CALLS,
+            QcConstants.QC_BREAKER_OPEN_DURATION);
+   private final static Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+   private final double failureRateThreshold;
+   private final int minCalls;
+   private final long openDuration;
+   private final boolean[] window;
+   private int windowIndex = 0;
+   private int windowCount = 0;
+   private int windowFailures = 0;
+   private State state = State.CLOSED;
+   private long openedAt = 0;
+   private boolean probeInFlight = false;
+
+   public CircuitBreaker(double failureRateThreshold,
+                         int windowSize,
+                         int minCalls,
+                         long openDuration)
+   {
+      this.failureRateThreshold = failureRateThreshold;
+      this.window = new boolean[Math.max(1, windowSize)];
+      this.minCalls = Math.min(Math.max(1, minCalls), window.length);
+      this.openDuration = openDuration;
+   }
+
+   /**
+    * Returns the circuit breaker configured in qcConfig.properties. It is shared by all QC requests.
+    */
+   public static CircuitBreaker getDefault()
+   {
+      return circuitBreaker;
+   }
+
+   /**
+    * Checks whether a request can be sent to QC now. In HALF_OPEN state only one caller
+    * gets permission, and it must report the outcome through {@link #onSuccess()} or {@link #onFailure()}.
+    *
+    * @return true if the request can be sent.
+    */
+   public synchronized boolean allowRequest()
+   {
+      switch (getState()) {
+         case CLOSED:
+            return true;
+         case HALF_OPEN:
+            if (!probeInFlight) {
+               probeInFlight = true;
+               log.info("QC circuit breaker is half-open, sending probe request");
+               return true;
+            }
+            return false;
+         default:
+            return false;
+      }
+   }
+
+   /**
+    * Records a request that reached a working QC.
+    */
+   public synchronized void onSuccess()
+   {
+      if (state != State.CLOSED) {
+         if (probeInFlight) {
+            transitionTo(State.CLOSED);
+         }
+         return;
+      }
+      record(false);
+   }
+
+   /**
+    * Records a request that failed because QC is unavailable.
+    */
+   public synchronized void onFailure()
+   {
+      if (state != State.CLOSED) {
+         if (probeInFlight) {
+            transitionTo(State.OPEN);
+         }
+         return;
+      }
+      record(true);
+      if (windowCount >= minCalls
+               && windowFailures >= failureRateThreshold * windowCount) {
+         transitionTo(State.OPEN);
+      }
+   }
+
+   /**
+    * Records a request whose outcome says nothing about QC availability [Ex : interrupted caller].
+    * A probe request reporting this outcome lets another probe through.
+    */
+   public synchronized void onIgnored()
+   {
+      probeInFlight = false;
+   }
+
+   /**
+    * Return current state. An open breaker whose open duration has elapsed is reported HALF_OPEN.
+    */
+   public synchronized State getState()
+   {
+      if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openDuration) {
+         transitionTo(State.HALF_OPEN);
+      }
+      return state;
+   }
+
+   /**
+    * Checks whether the half-open probe has been sent and its outcome is still awaited.
+    */
+   public synchronized boolean isProbeInFlight()
+   {
+      return probeInFlight;
+   }
+
+   /**
+    * Return failure rate of the requests in the current window.
+    */
+   public synchronized double getFailureRate()
+   {
+      return (windowCount > 0 ? (double) windowFailures / windowCount : 0);
+   }
+
+   private void record(boolean failure)
+   {
+      if (windowCount == window.length) {
+         if (window[windowIndex]) {
+            windowFailures--;
+         }
+      } else {
+         windowCount++;
+      }
+      window[windowIndex] = failure;
+      if (failure) {
+         windowFailures++;
+      }
+      windowIndex = (windowIndex + 1) % window.length;
+   }
+
+   private void transitionTo(State newState)
+   {
+      log.warn("QC circuit breaker state changed from " + state + " to " + newState
+               + " [failure rate :" + getFailureRate() + "]");
+      state = newState;
+      probeInFlight = false;
+      if (newState == State.OPEN) {
+         openedAt = System.currentTimeMillis();
+      } else if (newState == State.CLOSED) {
+         windowIndex = 0;
+         windowCount = 0;
+         windowFailures = 0;
+      }
+   }
+}
@@ -0,0 +1,109 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc.http;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Bounds the number of connections that are in use against a single QC host.
+ * A permit is taken when a request is sent and given back once its response body
+ * has been fully read, so the number of open sockets never exceeds the pool size.
+ * Permits can be waited for by blocking the caller or asynchronously, in which case
+ * waiters are served in arrival order without holding a thread.
+ */
+public class HostConnectionLimiter
+{
+   private final String host;
+   private final int maxConnections;
+   private final Queue<CompletableFuture<Void>> waiters = new ArrayDeque<CompletableFuture<Void>>();
+   private int activeConnections = 0;
+
+   public HostConnectionLimiter(String host, int maxConnections)
+   {
+      this.host = host;
+      this.maxConnections = maxConnections;
+   }
+
+   /**
+    * Waits until a connection slot is free and takes it.
+    */
+   public void acquire() throws InterruptedException
+   {
+      CompletableFuture<Void> permit = acquireAsync();
+      try {
+         permit.get();
+      } catch (InterruptedException ie) {
+         if (!permit.cancel(false)) {
+            //permit was granted while being interrupted.
+            release();
+         }
+         throw ie;
+      } catch (ExecutionException ee) {
+         throw new IllegalStateException(ee.getCause());
+      }
+   }
+
+   /**
+    * Returns a future that is completed once a connection slot has been taken for the caller.
+    */
+   public CompletableFuture<Void> acquireAsync()
+   {
+      CompletableFuture<Void> permit = new CompletableFuture<Void>();
+      synchronized (this) {
+         if (activeConnections < maxConnections) {
+            activeConnections++;
+            permit.complete(null);
+         } else {
+            waiters.add(permit);
+         }
+      }
+      return permit;
+   }
+
+   /**
+    * Returns a connection slot. The slot is handed over to the oldest waiter, if any.
+    */
+   public void release()
+   {
+      CompletableFuture<Void> next;
+      do {
+         synchronized (this) {
+            next = waiters.poll();
+            if (next == null) {
+               activeConnections--;
+               return;
+            }
+         }
+         //complete outside the lock; a cancelled waiter does not take the slot.
+      } while (!next.complete(null));
+   }
+
+   /**
+    * Return number of connections currently in use.
+    */
+   public synchronized int getActiveConnections()
+   {
+      return activeConnections;
+   }
+
+   /**
+    * Return number of requests waiting for a connection.
+    */
+   public synchronized int getWaitingRequests()
+   {
+      return waiters.size();
+   }
+
+   /**
+    * Return host name this limiter is applied to.
+    */
+   public String getHost()
+   {
+      return host;
+   }
+}
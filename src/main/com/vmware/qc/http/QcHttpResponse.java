@@ -0,0 +1,74 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc.http;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpHeaders;
+
+/**
+ * Response of a request sent through {@link QcHttpTransport}. The whole body has been received
+ * when the response is returned, and the connection is already back in the keep-alive pool.
+ */
+public class QcHttpResponse implements Closeable
+{
+   private final int statusCode;
+   private final HttpHeaders headers;
+   private final InputStream body;
+
+   /**
+    * Constructor.
+    *
+    * @param statusCode http status code.
+    * @param headers response headers.
+    * @param body response body stream.
+    */
+   QcHttpResponse(int statusCode, HttpHeaders headers, InputStream body)
+   {
+      this.statusCode = statusCode;
+      this.headers = headers;
+      this.body = body;
+   }
+
+   /**
+    * Return HTTP status code.
+    */
+   public int getStatusCode()
+   {
+      return statusCode;
+   }
+
+   /**
+    * Return first value of a response header, or null if the header is not present.
+    */
+   public String getHeader(String name)
+   {
+      return headers.firstValue(name).orElse(null);
+   }
+
+   /**
+    * Return response body stream. Closing the returned stream has no effect [XML parsers close
+    * their input at the end of the document]; the body is closed with the response.
+    */
+   public InputStream getBody()
+   {
+      return new FilterInputStream(body) {
+         @Override
+         public void close()
+         {
+         }
+      };
+   }
+
+   /**
+    * Closes the response body.
+    */
+   public void close() throws IOException
+   {
+      body.close();
+   }
+}
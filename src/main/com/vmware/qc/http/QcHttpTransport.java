@@ -0,0 +1,290 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vmware.qc.QcConstants;
+
+/**
+ * HTTP transport shared by all QcRestClient/QcConnector objects in the JVM.
+ * It keeps connections to the QC server alive between requests and bounds the number
+ * of connections opened against each host. Idle connections are evicted from the pool
+ * after the configured idle timeout, which is to be lower than the keep-alive timeout of the QC server.
+ * A request sent over a pooled connection that the server has closed meanwhile is sent again over
+ * a new connection, whatever its method.
+ * Requests are also rate limited per {@link RequestType}, so that a large batch of results
+ * cannot flood the QC server.
+ * It is a singleton class.
+ *
+ * Configuration properties:
+ *  qc.http.pool.size - maximum number of connections per QC host.
+ *  qc.http.idle.timeout - seconds an idle keep-alive connection is kept in the pool.
+ *  qc.http.connect.timeout - milliseconds allowed to establish a connection.
+ *  qc.http.read.timeout.[get|run.post|log.upload] - milliseconds allowed for the response of each request type.
+ *  qc.ratelimit.[get|run.post|log.upload].rate - requests per second of each request type.
+ *  qc.ratelimit.[get|run.post|log.upload].burst - requests of each type that can be sent at once.
+ */
+public class QcHttpTransport
+{
+   //logger is initialized first, the constructor of the singleton logs through it.
+   private final static Logger log = LoggerFactory.getLogger(QcHttpTransport.class);
+   private static QcHttpTransport transport = new QcHttpTransport(
+            QcConstants.QC_HTTP_POOL_SIZE, QcConstants.QC_HTTP_IDLE_TIMEOUT);
+
+   private final HttpClient httpClient;
+   private final int maxConnectionsPerHost;
+   private final ConcurrentMap<String, HostConnectionLimiter> hostLimiters = new ConcurrentHashMap<String, HostConnectionLimiter>();
+   private final Map<RequestType, RateLimiter> rateLimiters = new EnumMap<RequestType, RateLimiter>(RequestType.class);
+   private final Map<RequestType, Long> readTimeouts = new EnumMap<RequestType, Long>(RequestType.class);
+
+   /**
+    * Private constructor.
+    *
+    * @param maxConnectionsPerHost maximum number of connections per host.
+    * @param idleTimeout seconds after which an idle connection is closed.
+    */
+   private QcHttpTransport(int maxConnectionsPerHost, int idleTimeout)
+   {
+      this.maxConnectionsPerHost = maxConnectionsPerHost;
+      //JDK HTTP client reads its pool settings once, when the first client is created.
+      setPropertyIfAbsent("jdk.httpclient.keepalive.timeout", String.valueOf(idleTimeout));
+      setPropertyIfAbsent("jdk.httpclient.connectionPoolSize", String.valueOf(maxConnectionsPerHost));
+      //a request sent over a pooled connection that QC closed meanwhile gets EOF before any byte of
+      //the response. JDK HTTP client sends it again over a new connection, by default only for
+      //idempotent methods; enabled for all so that test run POSTs and log uploads are not lost.
+      setPropertyIfAbsent("jdk.httpclient.enableAllMethodRetry", "true");
+      this.httpClient = HttpClient.newBuilder()
+               .version(HttpClient.Version.HTTP_1_1)
+               .followRedirects(HttpClient.Redirect.NEVER)
+               .connectTimeout(Duration.ofMillis(QcConstants.QC_HTTP_CONNECT_TIMEOUT))
+               .build();
+      readTimeouts.put(RequestType.GET, QcConstants.QC_HTTP_READ_TIMEOUT_GET);
+      readTimeouts.put(RequestType.RUN_POST, QcConstants.QC_HTTP_READ_TIMEOUT_RUN_POST);
+      readTimeouts.put(RequestType.LOG_UPLOAD, QcConstants.QC_HTTP_READ_TIMEOUT_LOG_UPLOAD);
+      rateLimiters.put(RequestType.GET, new RateLimiter(RequestType.GET.name(),
+               QcConstants.QC_RATELIMIT_GET_RATE, QcConstants.QC_RATELIMIT_GET_BURST));
+      rateLimiters.put(RequestType.RUN_POST, new RateLimiter(RequestType.RUN_POST.name(),
+               QcConstants.QC_RATELIMIT_RUN_POST_RATE, QcConstants.QC_RATELIMIT_RUN_POST_BURST));
+      rateLimiters.put(RequestType.LOG_UPLOAD, new RateLimiter(RequestType.LOG_UPLOAD.name(),
+               QcConstants.QC_RATELIMIT_LOG_UPLOAD_RATE, QcConstants.QC_RATELIMIT_LOG_UPLOAD_BURST));
+      log.info("Created QC HTTP transport with pool size :{}, idle timeout :{} secs",
+               maxConnectionsPerHost, idleTimeout);
+   }
+
+   /**
+    * Returns a singleton instance of this class.
+    */
+   public static QcHttpTransport getInstance()
+   {
+      return transport;
+   }
+
+   /**
+    * Creates a request builder for the given url.
+    *
+    * @param url request url.
+    * @return request builder.
+    */
+   public HttpRequest.Builder newRequestBuilder(String url)
+   {
+      return HttpRequest.newBuilder(URI.create(url));
+   }
+
+   /**
+    * Waits until the rate limit of the request type lets one more request through.
+    * It must be called once before every request [retries included] is executed.
+    *
+    * @param requestType type of the request.
+    * @return milliseconds waited for the permit.
+    */
+   public long acquirePermit(RequestType requestType)
+                             throws InterruptedException
+   {
+      return rateLimiters.get(requestType).acquire();
+   }
+
+   /**
+    * Acquires a permit of the request type without blocking the caller.
+    *
+    * @param requestType type of the request.
+    * @return future completed with the milliseconds waited once the permit is available.
+    */
+   public CompletableFuture<Long> acquirePermitAsync(RequestType requestType)
+   {
+      return rateLimiters.get(requestType).acquireAsync();
+   }
+
+   /**
+    * Return milliseconds allowed for QC to answer a request of the given type.
+    */
+   public long getReadTimeout(RequestType requestType)
+   {
+      return readTimeouts.get(requestType);
+   }
+
+   /**
+    * Return rate limiter of the request type.
+    */
+   public RateLimiter getRateLimiter(RequestType requestType)
+   {
+      return rateLimiters.get(requestType);
+   }
+
+   /**
+    * Sends a request over a pooled connection and returns once the whole response body has been
+    * received. The request timeout [if set] bounds the whole exchange, body included : if the body
+    * is not received in time the exchange is aborted and HttpTimeoutException is thrown, so a server
+    * that stalls in the middle of the body cannot hold the caller or the connection.
+    * The caller must close the returned response.
+    *
+    * @param request http request.
+    * @return response.
+    */
+   public QcHttpResponse execute(HttpRequest request)
+                                 throws IOException, InterruptedException
+   {
+      HostConnectionLimiter limiter = getHostLimiter(request.uri());
+      limiter.acquire();
+      CompletableFuture<HttpResponse<byte[]>> sent = null;
+      try {
+         sent = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+         HttpResponse<byte[]> response;
+         if (request.timeout().isPresent()) {
+            long timeout = request.timeout().get().toMillis();
+            try {
+               response = sent.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException te) {
+               throw new HttpTimeoutException("Response of " + request.method() + " " + request.uri()
+                        + " is not received within " + timeout + " ms");
+            }
+         } else {
+            response = sent.get();
+         }
+         return new QcHttpResponse(response.statusCode(), response.headers(),
+                  new ByteArrayInputStream(response.body()));
+      } catch (ExecutionException ee) {
+         Throwable cause = ee.getCause();
+         if (cause instanceof IOException) {
+            throw (IOException) cause;
+         }
+         if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+         }
+         throw new IOException(cause);
+      } finally {
+         if (sent != null && !sent.isDone()) {
+            //timed out or interrupted : abort the exchange.
+            sent.cancel(true);
+         }
+         limiter.release();
+      }
+   }
+
+   /**
+    * Sends a request over a pooled connection without blocking the caller.
+    * The returned future is completed once the whole response body has been received;
+    * while waiting for a free connection or for the server no thread is held.
+    *
+    * Cancelling the returned future gives up the wait for a connection, or aborts the exchange
+    * in flight [HttpClient aborts it on cancel(true) of its future], and gives the connection back.
+    *
+    * @param request http request.
+    * @return future of the response.
+    */
+   public CompletableFuture<QcHttpResponse> executeAsync(final HttpRequest request)
+   {
+      final HostConnectionLimiter limiter = getHostLimiter(request.uri());
+      final CompletableFuture<QcHttpResponse> result = new CompletableFuture<QcHttpResponse>();
+      final CompletableFuture<Void> permit = limiter.acquireAsync();
+      permit.thenAccept(ignore -> {
+         if (result.isDone()) {
+            //cancelled while the connection was handed over.
+            limiter.release();
+            return;
+         }
+         final CompletableFuture<HttpResponse<byte[]>> sent;
+         try {
+            sent = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+         } catch (RuntimeException re) {
+            limiter.release();
+            result.completeExceptionally(re);
+            return;
+         }
+         sent.whenComplete((response, error) -> {
+            limiter.release();
+            if (error != null) {
+               result.completeExceptionally(error);
+            } else {
+               result.complete(new QcHttpResponse(response.statusCode(), response.headers(),
+                        new ByteArrayInputStream(response.body())));
+            }
+         });
+         result.whenComplete((response, error) -> {
+            if (result.isCancelled()) {
+               sent.cancel(true);
+            }
+         });
+      });
+      result.whenComplete((response, error) -> {
+         if (result.isCancelled()) {
+            //a cancelled waiter is skipped when a connection is given back.
+            permit.cancel(false);
+         }
+      });
+      return result;
+   }
+
+   /**
+    * Return number of connections in use against the given host.
+    */
+   public int getActiveConnections(String host)
+   {
+      HostConnectionLimiter limiter = hostLimiters.get(host);
+      return (limiter != null ? limiter.getActiveConnections() : 0);
+   }
+
+   /**
+    * Return connection limiter of the host of the given uri.
+    */
+   private HostConnectionLimiter getHostLimiter(URI uri)
+   {
+      String host = uri.getHost() + ":" + uri.getPort();
+      HostConnectionLimiter limiter = hostLimiters.get(host);
+      if (limiter == null) {
+         limiter = new HostConnectionLimiter(host, maxConnectionsPerHost);
+         HostConnectionLimiter existing = hostLimiters.putIfAbsent(host, limiter);
+         if (existing != null) {
+            limiter = existing;
+         }
+      }
+      return limiter;
+   }
+
+   private static void setPropertyIfAbsent(String name, String value)
+   {
+      if (System.getProperty(name) == null) {
+         System.setProperty(name, value);
+      }
+   }
+}
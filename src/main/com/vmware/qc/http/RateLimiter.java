@@ -0,0 +1,111 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc.http;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket rate limiter allowing a sustained number of requests per second and
+ * bursts of up to a given number of requests.
+ * The bucket is kept as the "theoretical arrival time" of the next request [generic cell rate
+ * algorithm], a single atomic counter updated with compare-and-set, so acquiring a permit
+ * never takes a lock. A caller reserves its permit first and then waits for it, hence
+ * permits are handed out in the order they were requested.
+ */
+public class RateLimiter
+{
+   private final String name;
+   private final double permitsPerSecond;
+   private final long interval;
+   private final long burstTolerance;
+   private final AtomicLong nextArrivalTime;
+
+   /**
+    * Constructor.
+    *
+    * @param name limiter name used for logging.
+    * @param permitsPerSecond sustained rate. A rate of 0 or less disables the limiter.
+    * @param burst number of requests that can be sent at once after an idle period.
+    */
+   public RateLimiter(String name,
+                      double permitsPerSecond,
+                      int burst)
+   {
+      this.name = name;
+      this.permitsPerSecond = permitsPerSecond;
+      this.interval = (permitsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond) : 0);
+      this.burstTolerance = interval * (Math.max(1, burst) - 1);
+      this.nextArrivalTime = new AtomicLong(System.nanoTime());
+   }
+
+   /**
+    * Acquires a permit, waiting until it is available.
+    *
+    * @return milliseconds waited for the permit.
+    */
+   public long acquire() throws InterruptedException
+   {
+      long wait = reserve();
+      if (wait > 0) {
+         TimeUnit.NANOSECONDS.sleep(wait);
+      }
+      return TimeUnit.NANOSECONDS.toMillis(wait);
+   }
+
+   /**
+    * Acquires a permit without blocking the caller.
+    *
+    * @return future completed with the milliseconds waited once the permit is available.
+    */
+   public CompletableFuture<Long> acquireAsync()
+   {
+      long wait = reserve();
+      final long waitMillis = TimeUnit.NANOSECONDS.toMillis(wait);
+      if (wait <= 0) {
+         return CompletableFuture.completedFuture(waitMillis);
+      }
+      return CompletableFuture.supplyAsync(() -> waitMillis,
+               CompletableFuture.delayedExecutor(wait, TimeUnit.NANOSECONDS));
+   }
+
+   /**
+    * Return limiter name.
+    */
+   public String getName()
+   {
+      return name;
+   }
+
+   /**
+    * Return sustained rate in permits per second, 0 or less if unlimited.
+    */
+   public double getPermitsPerSecond()
+   {
+      return permitsPerSecond;
+   }
+
+   /**
+    * Reserves the next permit.
+    *
+    * @return nanoseconds until the reserved permit can be used.
+    */
+   private long reserve()
+   {
+      if (interval <= 0) {
+         return 0;
+      }
+      long current;
+      long now;
+      long arrival;
+      do {
+         current = nextArrivalTime.get();
+         now = System.nanoTime();
+         arrival = Math.max(current, now);
+      } while (!nextArrivalTime.compareAndSet(current, arrival + interval));
+      return Math.max(0, arrival - burstTolerance - now);
+   }
+}
@@ -0,0 +1,17 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc.http;
+
+/**
+ * Kinds of requests sent to QC. Each kind is rate limited separately.
+ */
+public enum RequestType {
+   /** Read of test sets / test instances / test cases. */
+   GET,
+   /** POST of a new test run. */
+   RUN_POST,
+   /** Upload of a log file attached to a test run. */
+   LOG_UPLOAD
+}
@@ -0,0 +1,84 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits retries to a fraction of the requests sent, so that retries cannot multiply
+ * the load on QC while it is in trouble.
+ * Every request deposits a fraction of a token and every retry withdraws a whole token.
+ * The balance is capped, so a long healthy period does not buy an unlimited retry storm later.
+ * The balance is kept in an atomic counter of thousandths of a token.
+ */
+public class RetryBudget
+{
+   private static final long SCALE = 1000;
+
+   private final long depositPerRequest;
+   private final long maxBalance;
+   private final AtomicLong balance;
+   private final AtomicLong rejectedRetries = new AtomicLong();
+
+   /**
+    * Constructor.
+    *
+    * @param retryRatio fraction of retries allowed per request sent [Ex : 0.2 for one retry per five requests].
+    * @param maxRetries maximum number of retries that can be saved up. The budget starts full.
+    */
+   public RetryBudget(double retryRatio, int maxRetries)
+   {
+      this.depositPerRequest = (long) (retryRatio * SCALE);
+      this.maxBalance = maxRetries * SCALE;
+      this.balance = new AtomicLong(maxBalance);
+   }
+
+   /**
+    * Adds the share of a new request to the budget.
+    */
+   public void deposit()
+   {
+      long current;
+      long next;
+      do {
+         current = balance.get();
+         next = Math.min(maxBalance, current + depositPerRequest);
+      } while (current != next && !balance.compareAndSet(current, next));
+   }
+
+   /**
+    * Takes a retry from the budget.
+    *
+    * @return true if a retry is allowed, false if the budget is exhausted.
+    */
+   public boolean tryWithdraw()
+   {
+      long current;
+      do {
+         current = balance.get();
+         if (current < SCALE) {
+            rejectedRetries.incrementAndGet();
+            return false;
+         }
+      } while (!balance.compareAndSet(current, current - SCALE));
+      return true;
+   }
+
+   /**
+    * Return number of retries currently available.
+    */
+   public long getAvailableRetries()
+   {
+      return balance.get() / SCALE;
+   }
+
+   /**
+    * Return number of retries refused because the budget was exhausted.
+    */
+   public long getRejectedRetries()
+   {
+      return rejectedRetries.get();
+   }
+}
@@ -0,0 +1,185 @@
+/* **********************************************************************
+ * Copyright 2012 VMware, Inc. All rights reserved. VMware Confidential
+ * **********************************************************************
+ */
+package com.vmware.qc.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.vmware.qc.QcConstants;
+
+/**
+ * Decides whether a failed QC request is retried and how long to wait before the next attempt.
+ *
+ * Retryable failures are HTTP 408, 429, 500, 502, 503, 504 responses and socket level errors
+ * [connection refused/reset, timeouts]. Requests that are not idempotent [Ex : POST of a new
+ * test run, upload of a log file] are only retried when QC cannot have processed them: the connection could not be
+ * established, or QC answered 429/503. A request sent over a stale keep-alive connection is already
+ * sent again by {@link QcHttpTransport}, it is not charged to this policy.
+ * The wait time grows exponentially from the initial backoff up to the max backoff and is
+ * randomized between half and full value to avoid clients retrying in lock-step.
+ * Every retry is also charged to a shared {@link RetryBudget}.
+ *
+ * Configuration properties:
+ *  qc.retry.max.attempts - maximum attempts per request including the first one.
+ *  qc.retry.initial.backoff - wait time in milliseconds before the first retry.
+ *  qc.retry.max.backoff - maximum wait time in milliseconds between two attempts.
+ */
+public class RetryPolicy
+{
+   private static RetryPolicy retryPolicy = new RetryPolicy(QcConstants.QC_RETRY_MAX_ATTEMPTS,
+            QcConstants.QC_RETRY_INITIAL_BACKOFF, QcConstants.QC_RETRY_MAX_BACKOFF,
+            new RetryBudget(QcConstants.QC_RETRY_BUDGET_RATIO, QcConstants.QC_RETRY_BUDGET_MAX));
+
+   private final int maxAttempts;
+   private final long initialBackoff;
+   private final long maxBackoff;
+   private final RetryBudget retryBudget;
+
+   public RetryPolicy(int maxAttempts,
+                      long initialBackoff,
+                      long maxBackoff,
+                      RetryBudget retryBudget)
+   {
+      this.maxAttempts = Math.max(1, maxAttempts);
+      this.initialBackoff = initialBackoff;
+      this.maxBackoff = maxBackoff;
+      this.retryBudget = retryBudget;
+   }
+
+   /**
+    * Returns the retry policy configured in qcConfig.properties.
+    */
+   public static RetryPolicy getDefault()
+   {
+      return retryPolicy;
+   }
+
+   /**
+    * Return maximum number of attempts per request.
+    */
+   public int getMaxAttempts()
+   {
+      return maxAttempts;
+   }
+
+   /**
+    * Return retry budget shared by all requests using this policy.
+    */
+   public RetryBudget getRetryBudget()
+   {
+      return retryBudget;
+   }
+
+   /**
+    * Notifies the policy that a new request [not a retry] is sent.
+    */
+   public void onRequest()
+   {
+      retryBudget.deposit();
+   }
+
+   /**
+    * Checks whether a request that got the given response code is to be retried.
+    *
+    * @param statusCode http response code.
+    * @param attempt number of attempts made so far.
+    * @param idempotent true if the request can be repeated safely.
+    * @return true if the request is to be retried; a retry is withdrawn from the budget.
+    */
+   public boolean shouldRetry(int statusCode,
+                              int attempt,
+                              boolean idempotent)
+   {
+      return attempt < maxAttempts && isRetryableStatus(statusCode, idempotent)
+               && retryBudget.tryWithdraw();
+   }
+
+   /**
+    * Checks whether a request that failed with the given exception is to be retried.
+    *
+    * @param error exception received while sending the request.
+    * @param attempt number of attempts made so far.
+    * @param idempotent true if the request can be repeated safely.
+    * @return true if the request is to be retried; a retry is withdrawn from the budget.
+    */
+   public boolean shouldRetry(Throwable error,
+                              int attempt,
+                              boolean idempotent)
+   {
+      return attempt < maxAttempts && isRetryableException(error, idempotent)
+               && retryBudget.tryWithdraw();
+   }
+
+   /**
+    * Checks whether the response code denotes a transient QC failure.
+    */
+   public boolean isRetryableStatus(int statusCode,
+                                    boolean idempotent)
+   {
+      switch (statusCode) {
+         case 429: //Too many requests.
+         case 503: //Service unavailable.
+            return true;
+         case 408: //Request timeout.
+         case 500: //Internal server error.
+         case 502: //Bad gateway.
+         case 504: //Gateway timeout.
+            return idempotent;
+         default:
+            return false;
+      }
+   }
+
+   /**
+    * Checks whether the exception denotes a transient network failure.
+    */
+   public boolean isRetryableException(Throwable error,
+                                       boolean idempotent)
+   {
+      if (isConnectFailure(error)) {
+         return true;
+      }
+      if (!idempotent) {
+         return false;
+      }
+      return error instanceof HttpTimeoutException || error instanceof SocketTimeoutException
+               || error instanceof SocketException
+               || (error instanceof IOException && !(error instanceof InterruptedIOException));
+   }
+
+   /**
+    * Checks whether the exception denotes that the connection to QC could not be established,
+    * that is the request never reached QC.
+    */
+   public static boolean isConnectFailure(Throwable error)
+   {
+      return error instanceof ConnectException || error instanceof HttpConnectTimeoutException
+               || error instanceof NoRouteToHostException || error instanceof UnknownHostException;
+   }
+
+   /**
+    * Return wait time in milliseconds before the next attempt.
+    *
+    * @param attempt number of attempts made so far [1 for the first retry].
+    */
+   public long getBackoff(int attempt)
+   {
+      long backoff = initialBackoff;
+      for (int i = 1; i < attempt && backoff < maxBackoff; i++) {
+         backoff = backoff * 2;
+      }
+      backoff = Math.min(backoff, maxBackoff);
+      long half = backoff / 2;
+      return half + ThreadLocalRandom.current().nextLong(half + 1);
+   }
+}
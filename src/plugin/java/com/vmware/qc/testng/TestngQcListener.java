@@ -28,8 +28,11 @@ import com.vmware.qc.QcConnector;
 import com.vmware.qc.QcConstants;
 import com.vmware.qc.QcTestStatus;
 import com.vmware.qc.QcUtil;
+import com.vmware.qc.TestInstanceIndex;
 import com.vmware.qc.TestInstanceInfo;
+import com.vmware.qc.TestLabSnapshot;
 import com.vmware.qc.TestRunInfo;
+import com.vmware.qc.TestSetRegistry;
 
 /**
  * TestNGListener class for QC is to collect test result & log file after each test execution and
@@ -43,11 +46,13 @@ import com.vmware.qc.TestRunInfo;
 public class TestngQcListener implements ISuiteListener, IInvokedMethodListener
 {
    private final QcConnector qcConnector = new QcConnector();
-   private final PostResult2Qc postResult2Qc = PostResult2Qc.getInstance();
+   private final PostResult2Qc postResult2Qc = new PostResult2Qc("testng");
    private final Configuration configData = QcConfigDataHandler.getConfigDataHandler().getConfigData();
    private final Map<Object, List<ITestResult>> testResults = new Hashtable<Object, List<ITestResult>>();
    private final Map<Integer, QcTestStatus> testngQcStatusValues = new HashMap<Integer, QcTestStatus>();
-   private List<TestInstanceInfo> testInstances;
+   private TestInstanceIndex testInstanceIndex = new TestInstanceIndex();
+   private TestLabSnapshot snapshot;
+   private List<Long> testSetIds;
    private long qcTestSetId;
    private String qcTestSetName = null;
    private boolean enableTestLogUpload = false;
@@ -144,17 +149,18 @@ public class TestngQcListener implements ISuiteListener, IInvokedMethodListener
    }
 
    /**
-    * Populates test instances for a set of testsets.
+    * Populates test instances for a set of testsets from QC.
     *
     * @param testsetIds a set of testset ids.
-    * @return list of test instances associated with the testsets.
+    * @return index of test instances associated with the testsets.
     */
-   private List<TestInstanceInfo> populateTestInstances(List<Long> testsetIds)
+   private TestInstanceIndex populateTestInstances(List<Long> testsetIds)
    {
+      TestInstanceIndex testInstances = new TestInstanceIndex();
       try {
          if (testsetIds != null && !testsetIds.isEmpty()) {
-            testInstances = qcConnector.getTestInstances(testsetIds);
-            if (testInstances != null && !testInstances.isEmpty()) {
+            testInstances.addAll(qcConnector.iterateTestInstances(testsetIds));
+            if (!testInstances.isEmpty()) {
                log.info("Got test instances for testset :" + testsetIds);
             } else {
                log.warn("No test instances found for testset :" + testsetIds);
@@ -167,6 +173,17 @@ public class TestngQcListener implements ISuiteListener, IInvokedMethodListener
       return testInstances;
    }
 
+   /**
+    * Stops using the test lab snapshot once it misses a test set or test instance of the suite, as
+    * it is older than QC. The snapshot is refreshed in the background for the next runs.
+    */
+   private void discardSnapshot(String missing)
+   {
+      log.info("Test lab snapshot has no " + missing + ", reading test lab from QC and refreshing the snapshot");
+      TestLabSnapshot.refreshAsync(QcConstants.QC_TESTSETFOLDER_PATH);
+      snapshot = null;
+   }
+
    /**
     * Populate testset ids for the suite or testset id/name sent via command line or config file.
     *
@@ -179,11 +196,19 @@ public class TestngQcListener implements ISuiteListener, IInvokedMethodListener
       try {
          if (this.qcTestSetId > 0) { //testset id sent via command line or config file.
             testSetIds = Arrays.asList(this.qcTestSetId);
+            if (snapshot != null && !snapshot.getTestSetRegistry().contains(this.qcTestSetId)) {
+               discardSnapshot("testset " + this.qcTestSetId);
+            }
          } else {
             String testsetName = map2QcTestSetName(suite);
             if (testsetName != null) {
-               long testSetId = qcConnector.getTestSetId(
-                        QcConstants.QC_TESTSETFOLDER_PATH, testsetName);
+               long testSetId = (snapshot != null ? snapshot.getTestSetId(testsetName) : 0);
+               if (testSetId == 0) {
+                  if (snapshot != null) {
+                     discardSnapshot("testset " + testsetName);
+                  }
+                  testSetId = qcConnector.getTestSetId(QcConstants.QC_TESTSETFOLDER_PATH, testsetName);
+               }
                if (testSetId > 0) {
                   log.info("Got testset for suite {} : {}", testsetName,
                            testSetId);
@@ -192,10 +217,10 @@ public class TestngQcListener implements ISuiteListener, IInvokedMethodListener
                   log.warn("No testset found for suite :");
                }
             } else {
-               Map<Long, String> testsets = qcConnector.getTestSets(QcConstants.QC_TESTSETFOLDER_PATH);
+               TestSetRegistry testsets = (snapshot != null ? snapshot.getTestSetRegistry()
+                        : qcConnector.getTestSetRegistry(QcConstants.QC_TESTSETFOLDER_PATH));
                if (testsets != null && !testsets.isEmpty()) {
-                  testSetIds = Arrays.asList(testsets.keySet().toArray(
-                           new Long[0]));
+                  testSetIds = testsets.getIds();
                   log.info("Got testsets under specified folder {} : {}",
                            QcConstants.QC_TESTSETFOLDER_PATH, testSetIds);
                } else {
@@ -212,14 +237,42 @@ public class TestngQcListener implements ISuiteListener, IInvokedMethodListener
 
    /**
     * This method is invoked before the test suite starts.
-    * This method caches test instances from QC for the current suite.
+    * This method caches test instances from QC for the current suite. If the test lab snapshot is
+    * enabled, test instances are looked up in the snapshot instead, and read from QC only once the
+    * snapshot misses one.
     */
    public void onStart(ISuite suite)
    {
-      List<Long> testSetIds = populateTestSetIds(suite);
-      if (testSetIds != null && !testSetIds.isEmpty()) {
-         this.testInstances = populateTestInstances(testSetIds);
+      if (QcConstants.QC_SNAPSHOT_ENABLE) {
+         try {
+            this.snapshot = TestLabSnapshot.getSnapshot(QcConstants.QC_TESTSETFOLDER_PATH);
+         } catch (Exception ex) {
+            log.error("Got an exception while loading test lab snapshot, reading test lab from QC :", ex);
+         }
+      }
+      this.testSetIds = populateTestSetIds(suite);
+      if (snapshot == null && testSetIds != null && !testSetIds.isEmpty()) {
+         this.testInstanceIndex = populateTestInstances(testSetIds);
+      }
+   }
+
+   /**
+    * Finds test instance of a test in the test sets of the suite.
+    */
+   private synchronized TestInstanceInfo findTestInstance(String qcTestName,
+                                                          String qcTestInstanceName)
+   {
+      if (snapshot != null && testSetIds != null) {
+         //test sets of a folder are all in the snapshot, so any of its test sets matches.
+         TestInstanceInfo testInstanceInfo = snapshot.findTestInstance(qcTestName, qcTestInstanceName,
+                  (testSetIds.size() == 1 ? testSetIds.get(0) : 0));
+         if (testInstanceInfo != null) {
+            return testInstanceInfo;
+         }
+         discardSnapshot("test instance for test " + qcTestName);
+         this.testInstanceIndex = populateTestInstances(testSetIds);
       }
+      return testInstanceIndex.find(qcTestName, qcTestInstanceName);
    }
 
    public void onFinish(ISuite suite)
@@ -339,8 +392,7 @@ public class TestngQcListener implements ISuiteListener, IInvokedMethodListener
                   finalStatus);
          qcStatus = QcTestStatus.FAILED;
       }
-      TestInstanceInfo testInstanceInfo = QcUtil.findTestInstance(
-               this.testInstances, qcTestName, qcTestInstanceName, null);
+      TestInstanceInfo testInstanceInfo = findTestInstance(qcTestName, qcTestInstanceName);
       if (testInstanceInfo != null) {
          log.info("Test instance id for test {}: {}", qcTestName,
                   testInstanceInfo.getId());